@@ -9,6 +9,7 @@ import android.content.ServiceConnection;
 import android.content.res.Resources;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
@@ -43,13 +44,19 @@ public class BluetoothOnMotion extends Activity {
 	private EditText txtSpeedRequired;
 	private CheckBox cStartOnBoot;
 	private CheckBox cCreateNotificationOnToggle;
+	private CheckBox cAutoTune;
+	private EditText txtTargetTimeToEnable;
 	private Spinner sCreateNotificationWithLocationType;
+	private TextView txtMetrics;
+	private TextView lblMotionStatus;
 
 	private IOnMotionService onMotionService;
 
 	private boolean bConnected = false;
 	private boolean bStarted=false;
 	private BluetoothOnMotionPreferences preferences;
+	//the status pushed by the service is shown on the UI thread
+	private final Handler uiHandler = new Handler();
 
 	//easier access to resources R.strings from code
 	private Resources res;
@@ -73,6 +80,10 @@ public class BluetoothOnMotion extends Activity {
 		txtLocationFrequencyTime = (EditText) findViewById(R.id.txtLocationFrequencyTime);
 		txtSpeedRequired = (EditText) findViewById(R.id.txtSpeedRequired);
 		cCreateNotificationOnToggle= (CheckBox) findViewById(R.id.cCreateNotificationOnToggle);
+		cAutoTune = (CheckBox) findViewById(R.id.cAutoTune);
+		txtTargetTimeToEnable = (EditText) findViewById(R.id.txtTargetTimeToEnable);
+		txtMetrics = (TextView) findViewById(R.id.txtMetrics);
+		lblMotionStatus = (TextView) findViewById(R.id.lblMotionStatus);
 
 		sCreateNotificationWithLocationType = (Spinner) findViewById(R.id.sCreateNotificationWithLocationType);
         ArrayAdapter<String> adapter = new ArrayAdapter(this, android.R.layout.simple_spinner_item);
@@ -100,6 +111,13 @@ public class BluetoothOnMotion extends Activity {
 		});
 	}
 
+	@Override
+	protected void onDestroy() {
+		//stop the status updates
+		unBindService();
+		super.onDestroy();
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		MenuInflater inflater = getMenuInflater();
@@ -116,7 +134,8 @@ public class BluetoothOnMotion extends Activity {
 			//TODO: Update service
 			if (bConnected) {
 				try {
-					onMotionService.doUpdatePreferences();
+					//the stored values are read back from memory, the write to disk may not be done
+					onMotionService.doApplyConfig(preferences.getConfig());
 				}catch (RemoteException e){
 					Log.w(this.getClass().getName(),"Could not update preferences for running service",e);
 				}
@@ -130,6 +149,12 @@ public class BluetoothOnMotion extends Activity {
 					R.string.msgPreferencesCleared,
 					Toast.LENGTH_LONG).show();
 
+			return true;
+		case R.id.menuMetrics:
+			showMetrics();
+			return true;
+		case R.id.menuTriggerDevices:
+			storeConnectedAsTriggers();
 			return true;
 		case R.id.menuHelp:
 			Intent i = new Intent();
@@ -153,6 +178,8 @@ public class BluetoothOnMotion extends Activity {
 				+ preferences.getMinDistanceNetwork());
 		txtLocationFrequencyTime.setText("" + preferences.getMinTimeNetwork());
 		txtSpeedRequired.setText("" + preferences.getMinSpeedForChange());
+		cAutoTune.setChecked(preferences.getAutoTune());
+		txtTargetTimeToEnable.setText("" + preferences.getTargetTimeToEnable());
 
 		cCreateNotificationOnToggle.setChecked(preferences.getDoNotificationOnToggle());
 		//set selected spinner
@@ -216,6 +243,20 @@ public class BluetoothOnMotion extends Activity {
 			return;
 		}
 		
+		boolean bAutoTune = cAutoTune.isChecked();
+		int targetTimeToEnable;
+		try {
+			targetTimeToEnable = Integer.parseInt(txtTargetTimeToEnable
+					.getText().toString());
+		} catch (NumberFormatException e) {
+			Toast.makeText(
+					this,
+					R.string.lblTargetTimeToEnable
+							+ " is not a valid number", Toast.LENGTH_LONG)
+					.show();
+			return;
+		}
+
 		boolean bCreateNotificationWithLocation=false;
 		String createNotificationWithLocationType = (String)sCreateNotificationWithLocationType.getSelectedItem();
 		if(!createNotificationWithLocationType.equals(BluetoothOnMotionPreferences.NOTIFICATION_WITH_LOCATION_DISABLED)){
@@ -223,11 +264,12 @@ public class BluetoothOnMotion extends Activity {
 		}
 
 		//store the preferences
-		//currently we use the same values for GPS as for network 
+		//currently we use the same values for GPS as for network,
+		//the service tunes the GPS sampling on top of them if bAutoTune
 		preferences.storePreferences(bDoServiceStartOnBoot,
 				bCreateNotificationWithLocation,createNotificationWithLocationType,bCreateNotificationOnToggle, minSpeedForChange,
 				minTimeForNetwork, minDistanceForNetwork, minTimeForNetwork,
-				minDistanceForNetwork);
+				minDistanceForNetwork, bAutoTune, targetTimeToEnable);
 		
 		Toast.makeText(
 				this,
@@ -235,6 +277,64 @@ public class BluetoothOnMotion extends Activity {
 				.show();
 	}
 
+	/**
+	 * Show what the running service has done
+	 * 
+	 */
+	private void showMetrics() {
+		if (!bConnected) {
+			Toast.makeText(this,
+					R.string.msgServiceNotConnected,
+					Toast.LENGTH_SHORT).show();
+			return;
+		}
+		try {
+			ServiceMetrics metrics = onMotionService.getMetrics();
+			DeviceStats devices = onMotionService.getDeviceStats();
+			String text = metrics.describe();
+			if (devices.getDeviceCount() > 0) {
+				text = text + "\n" + devices.describe();
+			}
+			txtMetrics.setText(text);
+		} catch (RemoteException e) {
+			Log.w(this.getClass().getName(),
+					"Got remote exception when reading metrics", e);
+		}
+	}
+
+	/**
+	 * Use the devices connected right now (the car kit) as the only
+	 * devices whose disconnect turns off bluetooth. If none are
+	 * connected, every device is used again
+	 * 
+	 */
+	private void storeConnectedAsTriggers() {
+		if (!bConnected) {
+			Toast.makeText(this,
+					R.string.msgServiceNotConnected,
+					Toast.LENGTH_SHORT).show();
+			return;
+		}
+		try {
+			DeviceStats devices = onMotionService.getDeviceStats();
+			long[] keys = new long[devices.getDeviceCount()];
+			int connected = 0;
+			for (int i = 0; i < devices.getDeviceCount(); i++) {
+				if (devices.isConnected(i)) {
+					keys[connected++] = DeviceRegistry.toKey(devices.getAddress(i));
+				}
+			}
+			preferences.storeTriggerDevices(DeviceRegistry.encodeAddresses(keys, connected));
+			onMotionService.doApplyConfig(preferences.getConfig());
+			Toast.makeText(this,
+					connected > 0 ? R.string.msgTriggerDevicesSaved : R.string.msgTriggerDevicesCleared,
+					Toast.LENGTH_LONG).show();
+		} catch (RemoteException e) {
+			Log.w(this.getClass().getName(),
+					"Got remote exception when reading devices", e);
+		}
+	}
+
 	/**
 	 * Update service status should be called when we have
 	 * 
@@ -317,10 +417,44 @@ public class BluetoothOnMotion extends Activity {
 
 	private void unBindService() {
 		if (bConnected) {
+			try {
+				onMotionService.unregisterCallback(statusCallback);
+			} catch (RemoteException e) {
+				Log.w(this.getClass().getName(),
+						"Got remote exception when unregistering for status", e);
+			}
 			unbindService(serviceConnection);
+			bConnected = false;
 		}
 	}
 
+	/**
+	 * Receives the status of the service. The service coalesces the
+	 * changes, so this is called at most about once a second
+	 */
+	private final IOnMotionCallback statusCallback = new IOnMotionCallback.Stub() {
+		@Override
+		public void onStatusChanged(final boolean serviceStarted, final int motionState,
+				final float speed, final boolean bluetoothEnabled,
+				final int lastDecision, final int lastReason) {
+			//called on a binder thread
+			uiHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					bStarted = serviceStarted;
+					updateServiceStatus();
+					String lastToggle = lastDecision == MotionController.DECISION_NONE ? "-"
+							: MotionController.decisionName(lastDecision) + " ("
+									+ MotionController.reasonName(lastReason) + ")";
+					lblMotionStatus.setText(res.getString(R.string.lblMotionStatus,
+							MotionStateMachine.stateName(motionState),
+							Math.round(speed / MotionSettings.MPH),
+							bluetoothEnabled ? "on" : "off", lastToggle));
+				}
+			});
+		}
+	};
+
 
 	/**
 	 * Class for interacting with the BluetoothOnMotionService
@@ -331,8 +465,13 @@ public class BluetoothOnMotion extends Activity {
 				IBinder binderService) {
 			onMotionService = IOnMotionService.Stub.asInterface(binderService);
 			bConnected = true;
-			//TODO:Implement a handler so that this thread can update the UI?
-			//updateServiceStatus();
+			//the service pushes its status, which updates the UI
+			try {
+				onMotionService.registerCallback(statusCallback);
+			} catch (RemoteException e) {
+				Log.w(this.getClass().getName(),
+						"Got remote exception when registering for status", e);
+			}
 		}
 
 		public void onServiceDisconnected(ComponentName className) {
@@ -340,8 +479,7 @@ public class BluetoothOnMotion extends Activity {
 			// unexpectedly disconnected -- that is, its process crashed.
 			onMotionService = null;
 			bConnected = false;
-			//TODO:Implement a handler so that this thread can update the UI?
-			//updateServiceStatus();
+			lblMotionStatus.setText("");
 		}
 
 	};
@@ -3,8 +3,22 @@ package com.banasiak.android.btom;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The preferences of the application, kept in a SharedPreferences object
+ * 
+ * The store methods return at once, the values are written to disk by a
+ * background thread in the order they were stored. Until they are written
+ * the getters read them from memory, so a value is seen as soon as it is
+ * stored. Every store of the settings the service uses increases the
+ * version given to ServiceConfig, see ConfigVersion.
+ */
 public class BluetoothOnMotionPreferences {
-	public final String PREFERENCES_ID="onmotion";
+	public final static String PREFERENCES_ID="onmotion";
 
 	//these are the types of notification with locations we support
 	public final static String NOTIFICATION_WITH_LOCATION_DISABLED="Disabled";
@@ -18,10 +32,19 @@ public class BluetoothOnMotionPreferences {
 	private final static int DEFAULT_MIN_DISTANCE_NETWORK=500;//500
 	private final static int DEFAULT_MIN_DISTANCE_GPS=500;//500
 	private final static int DEFAULT_MIN_SPEED_FOR_CHANGE=30;
+	private final static int DEFAULT_MAX_SPEED_FOR_DISABLE=10;
+	private final static int DEFAULT_ENABLE_DWELL=0;
+	private final static int DEFAULT_DRIVING_DWELL=120;
+	private final static int DEFAULT_STATIONARY_TIMEOUT=300;
+	private final static int DEFAULT_NOTIFICATION_WINDOW=10;
+	private final static int DEFAULT_NOTIFICATIONS_PER_MINUTE=4;
+	private final static int DEFAULT_TARGET_TIME_TO_ENABLE=90;
+	private final static boolean DEFAULT_AUTO_TUNE=true;
 	private final static boolean DEAFULT_SERVICE_START_ON_BOOT=false;
 	private final static boolean DEFAULT_CREATE_NOTIFICATION_WITH_LOCATION=true;
 	private final static boolean DEFAULT_CREATE_NOTIFICATION_ON_TOGGLE=true;
 	private final static String DEFAULT_NOTIFICATION_WITH_LOCATION_MULTI=NOTIFICATION_WITH_LOCATION_DISABLED;
+	private final static String DEFAULT_SPEED_ESTIMATOR=SpeedEstimators.KALMAN;
 
 	//Keys for the values
 	private final static String KEY_MIN_TIME_NETWORK="minTimeNetwork";
@@ -29,13 +52,33 @@ public class BluetoothOnMotionPreferences {
 	private final static String KEY_MIN_DISTANCE_NETWORK="minDistanceNetwork";
 	private final static String KEY_MIN_DISTANCE_GPS="minDistanceGPS";
 	private final static String KEY_MIN_SPEED_FOR_CHANGE="minSpeedForChange";
+	private final static String KEY_MAX_SPEED_FOR_DISABLE="maxSpeedForDisable";
+	private final static String KEY_ENABLE_DWELL="enableDwell";
+	private final static String KEY_DRIVING_DWELL="drivingDwell";
+	private final static String KEY_STATIONARY_TIMEOUT="stationaryTimeout";
+	private final static String KEY_NOTIFICATION_WINDOW="notificationWindow";
+	private final static String KEY_NOTIFICATIONS_PER_MINUTE="notificationsPerMinute";
+	private final static String KEY_GEOFENCES="geofences";
+	private final static String KEY_TRIGGER_DEVICES="triggerDevices";
+	private final static String KEY_AUTO_TUNE="autoTune";
+	private final static String KEY_TARGET_TIME_TO_ENABLE="targetTimeToEnable";
 	private final static String KEY_SERVICE_START_ON_BOOT="doServiceStartOnBoot";	
 	private final static String KEY_CREATE_NOTIFICATION_WITH_LOCATION="doNotificationWithLocation";
 	private final static String KEY_CREATE_NOTIFICATION_ON_TOGGLE="doNotificationOnToggle";
 	private final static String KEY_CREATE_NOTIFICATION_WITH_LOCATION_MULTI="typeOfNotificationWithLocation";
+	private final static String KEY_SPEED_ESTIMATOR="speedEstimator";
+	private final static String KEY_CONFIG_VERSION="configVersion";
 	
 	public final static String HELP_URL="http://code.google.com/p/android-bluetooth-on-motion/wiki/UserGuide";
 	
+	//writes to disk, one at a time and in order, for all instances in the process
+	private final static ExecutorService diskWriter=Executors.newSingleThreadExecutor();
+	//values stored but not yet written, guarded by itself
+	private final static HashMap<String, Object> unwritten=new HashMap<String, Object>();
+	//the preferences have been cleared, but it is not yet written
+	private static boolean unwrittenClear=false;
+	private static int pendingWrites=0;
+	
 	private SharedPreferences preferences;
 	
 	public BluetoothOnMotionPreferences(Context context){
@@ -43,6 +86,125 @@ public class BluetoothOnMotionPreferences {
 		preferences = context.getSharedPreferences(PREFERENCES_ID, 0);
 	}
 	
+	/**
+	 * Collects the values of a store, and hands them to the writer
+	 */
+	private class Writer {
+		private final HashMap<String, Object> values=new HashMap<String, Object>();
+		private final boolean clear;
+		private boolean nextVersion=false;
+		
+		Writer(boolean clear){
+			this.clear=clear;
+		}
+		Writer put(String key, Object value){
+			values.put(key, value);
+			return this;
+		}
+		/**
+		 * Put a new version of the config, newer than the current one
+		 * even if another process has written since we read it
+		 */
+		Writer putNextVersion(){
+			nextVersion=true;
+			return this;
+		}
+		void write(){
+			synchronized(unwritten){
+				if(nextVersion){
+					values.put(KEY_CONFIG_VERSION, Long.valueOf(ConfigVersion.next(getConfigVersion(), System.currentTimeMillis())));
+				}
+				if(clear){
+					unwritten.clear();
+					unwrittenClear=true;
+				}
+				unwritten.putAll(values);
+				pendingWrites++;
+			}
+			diskWriter.execute(new Runnable(){
+				@Override
+				public void run() {
+					SharedPreferences.Editor editor = preferences.edit();
+					if(clear){
+						editor.clear();
+					}
+					for(Map.Entry<String, Object> entry : values.entrySet()){
+						Object value=entry.getValue();
+						if(value instanceof Integer){
+							editor.putInt(entry.getKey(), ((Integer)value).intValue());
+						}else if(value instanceof Long){
+							editor.putLong(entry.getKey(), ((Long)value).longValue());
+						}else if(value instanceof Boolean){
+							editor.putBoolean(entry.getKey(), ((Boolean)value).booleanValue());
+						}else {
+							editor.putString(entry.getKey(), (String)value);
+						}
+					}
+					editor.commit();
+					synchronized(unwritten){
+						//a later store may still be waiting, and it has the newest values
+						if(--pendingWrites==0){
+							unwritten.clear();
+							unwrittenClear=false;
+						}
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * @return the value which has been stored but not written, or null if the
+	 * value should be read from the SharedPreferences. Must hold the lock of unwritten
+	 */
+	private Object getUnwritten(String key, Object defaultValue){
+		Object value=unwritten.get(key);
+		if(value!=null){
+			return value;
+		}
+		return unwrittenClear ? defaultValue : null;
+	}
+	
+	private int getInt(String key, int defaultValue){
+		synchronized(unwritten){
+			Object value=getUnwritten(key, Integer.valueOf(defaultValue));
+			if(value!=null){
+				return ((Integer)value).intValue();
+			}
+		}
+		return preferences.getInt(key, defaultValue);
+	}
+	
+	private long getLong(String key, long defaultValue){
+		synchronized(unwritten){
+			Object value=getUnwritten(key, Long.valueOf(defaultValue));
+			if(value!=null){
+				return ((Long)value).longValue();
+			}
+		}
+		return preferences.getLong(key, defaultValue);
+	}
+	
+	private boolean getBoolean(String key, boolean defaultValue){
+		synchronized(unwritten){
+			Object value=getUnwritten(key, Boolean.valueOf(defaultValue));
+			if(value!=null){
+				return ((Boolean)value).booleanValue();
+			}
+		}
+		return preferences.getBoolean(key, defaultValue);
+	}
+	
+	private String getString(String key, String defaultValue){
+		synchronized(unwritten){
+			Object value=getUnwritten(key, defaultValue);
+			if(value!=null){
+				return (String)value;
+			}
+		}
+		return preferences.getString(key, defaultValue);
+	}
+	
 	/**
 	 * Store the preferences in a SharedPreferences object
 	 * 
@@ -53,55 +215,197 @@ public class BluetoothOnMotionPreferences {
 	 * @param minDistanceForNetwork
 	 * @param minTimeForGPS
 	 * @param minDistanceForGPS
+	 * @param bAutoTune let the service tune the GPS sampling on top of minTimeForGPS and minDistanceForGPS
+	 * @param targetTimeToEnable seconds the tuning allows from passing minSpeedForChange to enabling bluetooth
 	 */
-	public void storePreferences(boolean bDoServiceStartOnBoot, boolean bCreateNotificationWithLocation, String notificationWithLocationType,boolean bCreateNotificationOnToggle,int minSpeedForChange, int minTimeForNetwork,int minDistanceForNetwork, int minTimeForGPS,int minDistanceForGPS){
-		SharedPreferences.Editor editor = preferences.edit();
-		editor.putInt(KEY_MIN_TIME_NETWORK, minTimeForNetwork);
-		editor.putInt(KEY_MIN_TIME_GPS, minTimeForGPS);
-		editor.putInt(KEY_MIN_DISTANCE_NETWORK, minDistanceForNetwork);
-		editor.putInt(KEY_MIN_DISTANCE_GPS, minDistanceForGPS);
-		editor.putInt(KEY_MIN_SPEED_FOR_CHANGE, minSpeedForChange);	
-		editor.putBoolean(KEY_SERVICE_START_ON_BOOT, bDoServiceStartOnBoot);
-		editor.putBoolean(KEY_CREATE_NOTIFICATION_WITH_LOCATION, bCreateNotificationWithLocation);
-		editor.putString(KEY_CREATE_NOTIFICATION_WITH_LOCATION_MULTI, notificationWithLocationType);
-		editor.commit();		
+	public void storePreferences(boolean bDoServiceStartOnBoot, boolean bCreateNotificationWithLocation, String notificationWithLocationType,boolean bCreateNotificationOnToggle,int minSpeedForChange, int minTimeForNetwork,int minDistanceForNetwork, int minTimeForGPS,int minDistanceForGPS, boolean bAutoTune, int targetTimeToEnable){
+		new Writer(false)
+			.put(KEY_AUTO_TUNE, Boolean.valueOf(bAutoTune))
+			.put(KEY_TARGET_TIME_TO_ENABLE, Integer.valueOf(targetTimeToEnable))
+			.put(KEY_MIN_TIME_NETWORK, Integer.valueOf(minTimeForNetwork))
+			.put(KEY_MIN_TIME_GPS, Integer.valueOf(minTimeForGPS))
+			.put(KEY_MIN_DISTANCE_NETWORK, Integer.valueOf(minDistanceForNetwork))
+			.put(KEY_MIN_DISTANCE_GPS, Integer.valueOf(minDistanceForGPS))
+			.put(KEY_MIN_SPEED_FOR_CHANGE, Integer.valueOf(minSpeedForChange))
+			.put(KEY_SERVICE_START_ON_BOOT, Boolean.valueOf(bDoServiceStartOnBoot))
+			.put(KEY_CREATE_NOTIFICATION_WITH_LOCATION, Boolean.valueOf(bCreateNotificationWithLocation))
+			.put(KEY_CREATE_NOTIFICATION_WITH_LOCATION_MULTI, notificationWithLocationType)
+			.putNextVersion()
+			.write();
 	}
 	
+	/**
+	 * Store which SpeedEstimator the service should use
+	 * 
+	 * @param speedEstimator one of the names in SpeedEstimators
+	 */
+	public void storeSpeedEstimator(String speedEstimator){
+		new Writer(false).put(KEY_SPEED_ESTIMATOR, speedEstimator).putNextVersion().write();
+	}
+
+	/**
+	 * Store the hysteresis used when deciding to enable and disable bluetooth
+	 * 
+	 * @param maxSpeedForDisable speed (mph) below which we start cooling down
+	 * @param enableDwell seconds the speed must stay above minSpeedForChange
+	 * @param drivingDwell minimum seconds driving before cooling down
+	 * @param stationaryTimeout seconds below maxSpeedForDisable before bluetooth is disabled
+	 */
+	public void storeMotionPreferences(int maxSpeedForDisable, int enableDwell, int drivingDwell, int stationaryTimeout){
+		new Writer(false)
+			.put(KEY_MAX_SPEED_FOR_DISABLE, Integer.valueOf(maxSpeedForDisable))
+			.put(KEY_ENABLE_DWELL, Integer.valueOf(enableDwell))
+			.put(KEY_DRIVING_DWELL, Integer.valueOf(drivingDwell))
+			.put(KEY_STATIONARY_TIMEOUT, Integer.valueOf(stationaryTimeout))
+			.putNextVersion()
+			.write();
+	}
+
+	/**
+	 * Store how often notifications may be posted
+	 * 
+	 * @param notificationWindow seconds in which toggles are coalesced into one notification
+	 * @param notificationsPerMinute most notifications of each kind posted in a minute
+	 */
+	public void storeNotificationThrottle(int notificationWindow, int notificationsPerMinute){
+		new Writer(false)
+			.put(KEY_NOTIFICATION_WINDOW, Integer.valueOf(notificationWindow))
+			.put(KEY_NOTIFICATIONS_PER_MINUTE, Integer.valueOf(notificationsPerMinute))
+			.putNextVersion()
+			.write();
+	}
+
+	/**
+	 * Store the places where bluetooth is forced on or off
+	 * 
+	 * @param geofences the zones, as returned by GeofenceIndex.encode
+	 */
+	public void storeGeofences(String geofences){
+		new Writer(false).put(KEY_GEOFENCES, geofences).putNextVersion().write();
+	}
+
+	/**
+	 * Store the devices whose disconnect turns off bluetooth
+	 * 
+	 * @param triggerDevices addresses as returned by DeviceRegistry.encodeAddresses, empty for all devices
+	 */
+	public void storeTriggerDevices(String triggerDevices){
+		new Writer(false).put(KEY_TRIGGER_DEVICES, triggerDevices).putNextVersion().write();
+	}
+
+	/**
+	 * Go back to the defaults. The version is kept increasing, so the
+	 * service takes the cleared config as the newest
+	 */
 	public void clearPreferences(){
-		SharedPreferences.Editor editor = preferences.edit();
-		editor.clear();
-		editor.commit();		
+		new Writer(true).putNextVersion().write();
 	}	
 	
+	/**
+	 * Read everything the service uses into one snapshot
+	 */
+	public ServiceConfig getConfig(){
+		synchronized(unwritten){
+			//the lock is reentrant, so no store can come between the values
+			return new ServiceConfig(getConfigVersion(), getMotionSettings(), getDoServiceStartOnBoot(),
+					getDoNotificationOnToggle(), getDoNotificationWithLocation(), getNotificationWithLocationType(),
+					getNotificationWindow()*1000L, getNotificationsPerMinute(), getTriggerDevices(),
+					getAutoTune(), getTargetTimeToEnable()*1000L);
+		}
+	}
+	
+	public long getConfigVersion(){
+		return getLong(KEY_CONFIG_VERSION, 0);
+	}
+	
+	/**
+	 * Read the settings used by the MotionController,
+	 * converted to meters, meters pr second and milliseconds
+	 */
+	public MotionSettings getMotionSettings(){
+		MotionSettings settings = new MotionSettings();
+		settings.speedEstimator=getSpeedEstimator();
+		//speed is stored in mph, but we need meters/second
+		settings.minSpeedForChange=getMinSpeedForChange()*MotionSettings.MPH;
+		settings.maxSpeedForDisable=getMaxSpeedForDisable()*MotionSettings.MPH;
+		//times are stored in seconds, we need milliseconds
+		settings.enableDwell=getEnableDwell()*1000L;
+		settings.drivingDwell=getDrivingDwell()*1000L;
+		settings.stationaryTimeout=getStationaryTimeout()*1000L;
+		settings.minTimeNetwork=getMinTimeNetwork()*1000L;
+		settings.minDistanceNetwork=getMinDistanceNetwork();
+		settings.minTimeGPS=getMinTimeGPS()*1000L;
+		settings.minDistanceGPS=getMinDistanceGPS();
+		settings.geofences=getGeofences();
+		return settings;
+	}
+
 	public int getMinTimeNetwork(){
-		return preferences.getInt(KEY_MIN_TIME_NETWORK, DEFAULT_MIN_TIME_NETWORK);
+		return getInt(KEY_MIN_TIME_NETWORK, DEFAULT_MIN_TIME_NETWORK);
 	}
 	public int getMinTimeGPS(){
-		return preferences.getInt(KEY_MIN_TIME_GPS, DEFAULT_MIN_TIME_GPS);
+		return getInt(KEY_MIN_TIME_GPS, DEFAULT_MIN_TIME_GPS);
 	}
 	public int getMinDistanceNetwork(){
-		return preferences.getInt(KEY_MIN_DISTANCE_NETWORK, DEFAULT_MIN_DISTANCE_NETWORK);
+		return getInt(KEY_MIN_DISTANCE_NETWORK, DEFAULT_MIN_DISTANCE_NETWORK);
 	}
 	public int getMinDistanceGPS(){
-		return preferences.getInt(KEY_MIN_DISTANCE_GPS, DEFAULT_MIN_DISTANCE_GPS);
+		return getInt(KEY_MIN_DISTANCE_GPS, DEFAULT_MIN_DISTANCE_GPS);
 	}	
 	public int getMinSpeedForChange(){
-		return preferences.getInt(KEY_MIN_SPEED_FOR_CHANGE, DEFAULT_MIN_SPEED_FOR_CHANGE);
+		return getInt(KEY_MIN_SPEED_FOR_CHANGE, DEFAULT_MIN_SPEED_FOR_CHANGE);
+	}
+	public int getMaxSpeedForDisable(){
+		return getInt(KEY_MAX_SPEED_FOR_DISABLE, DEFAULT_MAX_SPEED_FOR_DISABLE);
+	}
+	public int getEnableDwell(){
+		return getInt(KEY_ENABLE_DWELL, DEFAULT_ENABLE_DWELL);
+	}
+	public int getDrivingDwell(){
+		return getInt(KEY_DRIVING_DWELL, DEFAULT_DRIVING_DWELL);
+	}
+	public int getStationaryTimeout(){
+		return getInt(KEY_STATIONARY_TIMEOUT, DEFAULT_STATIONARY_TIMEOUT);
+	}
+	public int getNotificationWindow(){
+		return getInt(KEY_NOTIFICATION_WINDOW, DEFAULT_NOTIFICATION_WINDOW);
+	}
+	public int getNotificationsPerMinute(){
+		return getInt(KEY_NOTIFICATIONS_PER_MINUTE, DEFAULT_NOTIFICATIONS_PER_MINUTE);
+	}
+	public int getTargetTimeToEnable(){
+		return getInt(KEY_TARGET_TIME_TO_ENABLE, DEFAULT_TARGET_TIME_TO_ENABLE);
+	}
+	public boolean getAutoTune(){
+		return getBoolean(KEY_AUTO_TUNE, DEFAULT_AUTO_TUNE);
 	}
 	public boolean getDoServiceStartOnBoot(){
-		return preferences.getBoolean(KEY_SERVICE_START_ON_BOOT, DEAFULT_SERVICE_START_ON_BOOT);
+		return getBoolean(KEY_SERVICE_START_ON_BOOT, DEAFULT_SERVICE_START_ON_BOOT);
 	}		
 
 	public boolean getDoNotificationWithLocation() {
-		return preferences.getBoolean(KEY_CREATE_NOTIFICATION_WITH_LOCATION,DEFAULT_CREATE_NOTIFICATION_WITH_LOCATION);
+		return getBoolean(KEY_CREATE_NOTIFICATION_WITH_LOCATION, DEFAULT_CREATE_NOTIFICATION_WITH_LOCATION);
 	}
 	
 	public String getNotificationWithLocationType() {
-		return preferences.getString(KEY_CREATE_NOTIFICATION_WITH_LOCATION_MULTI,DEFAULT_NOTIFICATION_WITH_LOCATION_MULTI);
+		return getString(KEY_CREATE_NOTIFICATION_WITH_LOCATION_MULTI, DEFAULT_NOTIFICATION_WITH_LOCATION_MULTI);
 	}	
 	
 	public boolean getDoNotificationOnToggle() {
-		return preferences.getBoolean(KEY_CREATE_NOTIFICATION_ON_TOGGLE, DEFAULT_CREATE_NOTIFICATION_ON_TOGGLE);
+		return getBoolean(KEY_CREATE_NOTIFICATION_ON_TOGGLE, DEFAULT_CREATE_NOTIFICATION_ON_TOGGLE);
+	}
+
+	public String getGeofences() {
+		return getString(KEY_GEOFENCES, "");
+	}
+
+	public String getTriggerDevices() {
+		return getString(KEY_TRIGGER_DEVICES, "");
+	}
+
+
+	public String getSpeedEstimator() {
+		return getString(KEY_SPEED_ESTIMATOR, DEFAULT_SPEED_ESTIMATOR);
 	}
 	
 }
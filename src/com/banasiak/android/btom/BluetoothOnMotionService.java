@@ -1,8 +1,5 @@
 package com.banasiak.android.btom;
 
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -10,16 +7,20 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.res.Resources;
 import android.location.Criteria;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
-import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * This service provides the core of the application
  * 
@@ -34,6 +35,10 @@ import android.util.Log;
  * It listens to the bluetooth service in order to get events of
  * change in bluetooth state
  * 
+ * The callbacks run on the main thread and only put the events in a
+ * MotionEventQueue. The events are processed in order by a single worker
+ * thread, which owns the MotionController and everything it decides.
+ * 
  * The bluetooth handling requires the following uses-permissions
  * in the AndroidManifest.xml :
  * android.permission.BLUETOOTH
@@ -44,18 +49,15 @@ import android.util.Log;
  */
 public class BluetoothOnMotionService extends Service{
     private final static boolean DEBUG=true;
-    //parameters read from the preferences
-    private int minTimeNetwork;
-    private int minTimeGPS;
-    private int minDistanceNetwork;
-    private int minDistanceGPS;
-    private boolean bNotificationOnToggle;
+    //the newest config, swapped in from any thread under configLock
+    private volatile ServiceConfig config;
+    private final Object configLock = new Object();
+    //the config the worker runs with
+    private ServiceConfig appliedConfig;
     private boolean bNotificationWithLocation;
-    private String bNotificationWithLocaitonType;
-    private float minSpeedForChangeMS;
 
     //is this service started
-    private boolean bIsServiceStarted=false;
+    private volatile boolean bIsServiceStarted=false;
 
     //bluetooth interface
     private BluetoothAdapter bluetoothAdapter;
@@ -65,16 +67,119 @@ public class BluetoothOnMotionService extends Service{
     //location interface
     private LocationManager locationManager ;
     private LocationListener locationListener;
+    //the times and distances each provider is registered with, by LocationHistory.PROVIDER_*. -1 if not registered
+    private final long[] registeredMinTime = {-1, -1, -1};
+    private final int[] registeredMinDistance = {-1, -1, -1};
+
+    //the decision logic: history, speed estimation, state machine, zones and commutes
+    //only used from the worker thread
+    private MotionController motionController;
+    //the worker thread, and its handler which also runs the timeouts of the controller
+    private HandlerThread workerThread;
+    private Handler motionHandler;
+    //location and bluetooth events on their way to the worker
+    private final MotionEventQueue eventQueue = new MotionEventQueue();
+    private final Runnable processEvents = new Runnable(){
+        @Override
+        public void run() {
+            processEvents();
+        }
+    };
+    private final Runnable applyConfig = new Runnable(){
+        @Override
+        public void run() {
+            applyConfig();
+        }
+    };
+    private final Runnable readConfig = new Runnable(){
+        @Override
+        public void run() {
+            swapConfig(new BluetoothOnMotionPreferences(BluetoothOnMotionService.this).getConfig());
+            applyConfig();
+        }
+    };
+    //fixes coalesced or dropped when the last lag warning was logged
+    private long lastLoggedLostFixes=0;
+    //a fix went into the history, from processLocation or, if it was held, from motionTimeout
+    private final MotionController.FixListener fixListener = new MotionController.FixListener(){
+        @Override
+        public void onFixProcessed(int providerId, double lat, double lon, long timeMillis, float accuracy, int gateResult) {
+            lastFixCache.offer(lat, lon, timeMillis, accuracy, providerId);
+            samplingTuner.onFix(motionController.getSpeed(), motionController.getMotionState());
+            if(fixJournal!=null){
+                try {
+                    fixJournal.appendFix(timeMillis, lat, lon, accuracy, motionController.getSpeed(), providerId, gateResult);
+                }catch (IOException e){
+                    journalFailed(e);
+                }
+            }
+        }
+    };
+    private final Runnable motionTimeout = new Runnable(){
+        @Override
+        public void run() {
+            motionController.setBluetoothEnabled(bluetoothToggle.isEnabled());
+            handleDecision(motionController.onTick(System.currentTimeMillis()));
+            statusPublisher.setMotion(motionController.getMotionState(), motionController.getSpeed());
+            //e.g. parked after a stationary timeout, no fix will come to switch the profile
+            reRegisterIfNeeded();
+        }
+    };
+    //mirror of the adapter state and the commands in flight, used from the worker thread
+    private final BluetoothToggle bluetoothToggle = new BluetoothToggle();
+    private final Runnable toggleTimeout = new Runnable(){
+        @Override
+        public void run() {
+            if(bluetoothToggle.checkTimeout(System.currentTimeMillis())){
+                bluetoothToggle.sync(bluetoothAdapter.getState());
+                Log.w(this.getClass().getName(), "Bluetooth did not change state in time, adapter is "
+                        + BluetoothToggle.stateName(bluetoothToggle.getState()));
+                metrics.recordBluetoothState(bluetoothToggle.isEnabled(), System.currentTimeMillis());
+                statusPublisher.setBluetoothEnabled(bluetoothToggle.isEnabled());
+            }
+            scheduleToggleTimeout();
+        }
+    };
+
+    //the best recent fix, used for the parked location notification
+    private final LastFixCache lastFixCache = new LastFixCache();
+
+    //accepted fixes and decisions, kept when the process dies. null if it could not be opened.
+    //Opened in onCreate, then only used from the worker thread
+    private FixJournal fixJournal;
+
+    //what the service has learned, in a file only this process writes. Used from the worker thread
+    private LearnedPreferences learnedPreferences;
+
+    //posts the toggle and location notifications, used from the worker thread
+    private MotionNotifier motionNotifier;
+
+    //turns bluetooth off again if nothing connects after we enabled it, used from the worker thread
+    private final ConnectWatchdog connectWatchdog = new ConnectWatchdog();
+    private final Runnable connectTimeout = new Runnable(){
+        @Override
+        public void run() {
+            if(connectWatchdog.checkTimeout(System.currentTimeMillis())){
+                onConnectTimeout();
+            }
+        }
+    };
 
-    //class which stores previous locations
-    private LocationHistory locationHistory;
+    //the devices seen, and which of them are the car kit. Only changed from the worker thread,
+    //getDeviceStats copies it on a binder thread while holding its lock
+    private final DeviceRegistry deviceRegistry = new DeviceRegistry();
 
-    //easier access to resources R.strings from code
-    private Resources res;
+    //pushes the status to the bound clients, used from the worker thread
+    private StatusPublisher statusPublisher;
 
-    //identifiers for notifications
-    private final int NOTIFICATION_TOGGLE_ID=1;
-    private final int NOTIFICATION_LOCATION_ID=2;
+    //written by the worker thread only, read through getMetrics
+    private final ServiceMetrics metrics = new ServiceMetrics(System.currentTimeMillis());
+
+    //estimates the battery we cost, and chooses the GPS sampling. Used from the worker thread
+    private final EnergyModel energyModel = new EnergyModel();
+    private final SamplingTuner samplingTuner = new SamplingTuner();
+    //a tuned setting must be this much cheaper than the current one before it is applied
+    private final static float TUNING_IMPROVEMENT=0.1f;
 
     /**
      * Create the service, but do not setup the listeners.
@@ -85,7 +190,11 @@ public class BluetoothOnMotionService extends Service{
     public void onCreate() {
         super.onCreate();
 
-        res= this.getResources();
+        workerThread = new HandlerThread("BluetoothOnMotion");
+        workerThread.start();
+        motionHandler = new Handler(workerThread.getLooper());
+        motionNotifier = new MotionNotifier(this, motionHandler);
+        statusPublisher = new StatusPublisher(motionHandler);
 
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         if (bluetoothAdapter == null) {
@@ -96,6 +205,11 @@ public class BluetoothOnMotionService extends Service{
             bDeviceSupportsBluetooth=true;
         }
 
+        try {
+            fixJournal = new FixJournal(new File(getFilesDir(), "journal"));
+        }catch (IOException e){
+            Log.e(this.getClass().getName(), "Could not open the journal, fixes will not be stored", e);
+        }
     }
 
     /**
@@ -108,15 +222,24 @@ public class BluetoothOnMotionService extends Service{
     public void onStart(Intent intent, int startId) {
         super.onStart(intent, startId);
 
+        bIsServiceStarted=true;
         if(bDeviceSupportsBluetooth){
-            doUpdatePreferences();
-            //5 locations are stored. Can be used for more advanced speed
-            //calculations in the future
-            locationHistory = new LocationHistory(5);
-            setupBluetoothListener();
             setupLocationListener();
+            //queued before any event, so the controller exists when they are processed.
+            //It also registers the location listener
+            motionHandler.post(readConfig);
+            motionHandler.post(new Runnable(){
+                @Override
+                public void run() {
+                    //the only time we ask the adapter, after this the broadcasts keep the mirror
+                    bluetoothToggle.sync(bluetoothAdapter.getState());
+                    metrics.recordBluetoothState(bluetoothToggle.isEnabled(), System.currentTimeMillis());
+                    statusPublisher.setServiceStarted(true);
+                    statusPublisher.setBluetoothEnabled(bluetoothToggle.isEnabled());
+                }
+            });
+            setupBluetoothListener();
         }
-        bIsServiceStarted=true;
     }
 
 
@@ -125,36 +248,98 @@ public class BluetoothOnMotionService extends Service{
      * Read the preferences that have been set
      * by the activity.
      * 
+     * The preferences are read on the worker thread,
+     * between the events which are already queued.
      */
     public void doUpdatePreferences(){
-        // if no user is setup, redirect to setup
-        BluetoothOnMotionPreferences preferences =  new BluetoothOnMotionPreferences(this);
-        //preference stored in seconds, we need milliseconds
-        minTimeNetwork=preferences.getMinTimeNetwork()*1000;
-        minTimeGPS=preferences.getMinTimeGPS()*1000;
-
-        minDistanceNetwork=preferences.getMinDistanceNetwork();
-        minDistanceGPS=preferences.getMinDistanceGPS();
-        //speed is stored in km/h,but we need meters/second
-        //minSpeedForChangeMS=preferences.getMinSpeedForChange()/3.6f;
-        // speed is stored in mph, but we need meters/second
-        minSpeedForChangeMS=preferences.getMinSpeedForChange() * 0.44704f;
-        bNotificationOnToggle=preferences.getDoNotificationOnToggle();
-        bNotificationWithLocation = preferences.getDoNotificationWithLocation();
-        bNotificationWithLocaitonType = preferences.getNotificationWithLocationType();
-
-        //If the service is already started, we will reset the location listener
-        //with the new settings
+        motionHandler.post(readConfig);
+    }
+
+    /**
+     * Use a config pushed by the activity, if it is newer
+     * than the one we have. It is applied on the worker thread.
+     * 
+     * @return false if the config was older and ignored
+     */
+    public boolean doApplyConfig(ServiceConfig newConfig){
+        if(!swapConfig(newConfig)){
+            return false;
+        }
+        motionHandler.post(applyConfig);
+        return true;
+    }
+
+    private boolean swapConfig(ServiceConfig newConfig){
+        synchronized(configLock){
+            if(config!=null && newConfig.getVersion()<=config.getVersion()){
+                return false;
+            }
+            config=newConfig;
+            return true;
+        }
+    }
+
+    /**
+     * Bring the worker in line with the newest config. Only what has
+     * changed is touched: the controller keeps its state and statistics
+     * when it gets new settings, and only the providers whose time or
+     * distance changed are registered again.
+     */
+    private void applyConfig(){
+        ServiceConfig newConfig = config;
+        if(newConfig!=appliedConfig){
+            bNotificationWithLocation = newConfig.getDoNotificationWithLocation();
+            deviceRegistry.setTriggerDevices(newConfig.getTriggerDevices());
+            motionNotifier.configure(newConfig.getDoNotificationOnToggle(), bNotificationWithLocation,
+                    newConfig.getNotificationWithLocationType(), newConfig.getNotificationWindow(),
+                    newConfig.getNotificationsPerMinute());
+
+            if(motionController==null){
+                //the learned state is not part of the config, it is read once
+                learnedPreferences = new LearnedPreferences(this);
+                connectWatchdog.decode(learnedPreferences.getConnectLatencies());
+                metrics.recordConnectWatchdog(connectWatchdog);
+                CommutePredictor commutePredictor = new CommutePredictor();
+                commutePredictor.decode(learnedPreferences.getCommutePatterns());
+                commutePredictor.evictStale(System.currentTimeMillis());
+                samplingTuner.decode(learnedPreferences.getTunedSampling());
+                motionController = new MotionController(getMotionSettings(newConfig), commutePredictor);
+                motionController.setFixListener(fixListener);
+            }else if(!newConfig.hasSameMotionSettings(appliedConfig) || newConfig.getAutoTune()!=appliedConfig.getAutoTune()){
+                motionController.applySettings(getMotionSettings(newConfig));
+                //the state is kept, but its timeouts may have changed
+                scheduleMotionTimeout();
+            }
+            MotionSettings settings = motionController.getSettings();
+            samplingTuner.configure(settings.minSpeedForChange, settings.enableDwell, newConfig.getTargetTimeToEnable());
+            appliedConfig=newConfig;
+            Log.i(this.getClass().getName(), "Config version " + newConfig.getVersion() + " applied");
+        }
+
+        //If the service is already started, we will register the location listener
+        //for the providers whose settings changed, when the rate limit allows it
         if(bIsServiceStarted){
-            locationManager.removeUpdates(locationListener);
-            setupLocationListener();
+            updateLocationUpdates();
+        }
+    }
+
+    /**
+     * @return the settings of the config, with the tuned GPS sampling if auto tuning is on
+     */
+    private MotionSettings getMotionSettings(ServiceConfig serviceConfig){
+        MotionSettings settings = serviceConfig.getMotionSettings();
+        if(serviceConfig.getAutoTune() && samplingTuner.hasApplied()){
+            settings.minTimeGPS=samplingTuner.getAppliedTime();
+            settings.minDistanceGPS=samplingTuner.getAppliedDistance();
         }
+        return settings;
     }
 
     /**
      * Setup the location listener and action handler
      * 
-     * The action handler contains the main logic of the application
+     * The action handler queues the locations for the worker thread,
+     * which hands them to the MotionController
      * 
      */
     private void setupLocationListener() {
@@ -171,29 +356,12 @@ public class BluetoothOnMotionService extends Service{
                 {
                     Log.d(this.getClass().getName(), "Location changed  :"+ location.toString());
                 }
-
-                locationHistory.addLocation(location);
-                float speed;
-                if (location.hasSpeed()){
-                    speed=location.getSpeed();
-                }else {
-                    speed = locationHistory.getEstimatedSpeed();
-                }
-
-                if(DEBUG)
-                {
-                    Log.d(this.getClass().getName(), "Speed estimated to " + speed + " meters pr second");
-                }
-
-                //enable check
-                if(!bluetoothAdapter.isEnabled() && speed>minSpeedForChangeMS){
-                    Log.i(this.getClass().getName(), "Enabling bluetooth since speed " + speed + " is larger than " + minSpeedForChangeMS);
-                    enableBluetooth();
-                    if(bNotificationOnToggle){
-                        createNotificationOnToggle(true);
-                    }
+                if(eventQueue.offerLocation(location.getLatitude(), location.getLongitude(), location.getTime(),
+                        location.hasAccuracy() ? location.getAccuracy() : Float.NaN,
+                        location.hasSpeed() ? location.getSpeed() : Float.NaN,
+                        LocationHistory.toProviderId(location.getProvider()), System.nanoTime())){
+                    motionHandler.post(processEvents);
                 }
-                //TODO: Check for disabling
             }
 
 
@@ -212,13 +380,364 @@ public class BluetoothOnMotionService extends Service{
                 // TODO Auto-generated method stub
             }
         };
+    }
+
+    /**
+     * Process the queued events in order, on the worker thread
+     */
+    private void processEvents(){
+        int event;
+        while((event=eventQueue.poll(System.nanoTime()))!=MotionEventQueue.EVENT_NONE){
+            if(event==MotionEventQueue.EVENT_LOCATION){
+                processLocation();
+            }else if(event==MotionEventQueue.EVENT_ACL_CONNECTED){
+                processConnected();
+            }else if(event==MotionEventQueue.EVENT_ACL_DISCONNECTED){
+                processDisconnected();
+            }else if(event==MotionEventQueue.EVENT_ADAPTER_STATE){
+                onAdapterStateChanged(eventQueue.getAdapterState());
+            }
+        }
+        long lostFixes = eventQueue.getCoalescedCount()+eventQueue.getDroppedCount();
+        if(lostFixes!=lastLoggedLostFixes){
+            lastLoggedLostFixes=lostFixes;
+            Log.w(this.getClass().getName(), "Event processing fell behind: lag " + eventQueue.getLastLag()/1000000 + " ms (max "
+                    + eventQueue.getMaxLag()/1000000 + " ms), max queue depth " + eventQueue.getMaxDepth()
+                    + ", " + eventQueue.getCoalescedCount() + " fixes coalesced, " + eventQueue.getDroppedCount() + " dropped");
+        }
+    }
+
+    /**
+     * Hand a fix to the MotionController and carry out what it decides
+     */
+    private void processLocation(){
+        long start = System.nanoTime();
+        motionController.setBluetoothEnabled(bluetoothToggle.isEnabled());
+        int decision = motionController.onLocation(eventQueue.getProvider(),
+                eventQueue.getLatitude(), eventQueue.getLongitude(), eventQueue.getTime(),
+                eventQueue.getAccuracy(), eventQueue.getSpeed(), System.currentTimeMillis());
+
+        if(DEBUG)
+        {
+            int fixResult = motionController.getLastFixResult();
+            if(fixResult==MotionController.FIX_NOT_FUSED){
+                Log.d(this.getClass().getName(), "Location ignored: " + ProviderFusion.resultName(motionController.getLastFixDetail()));
+            }else if(fixResult==MotionController.FIX_REJECTED){
+                Log.d(this.getClass().getName(), "Location ignored: " + FixGate.resultName(motionController.getLastFixDetail())
+                        + " (" + motionController.getFixGate().getRejectedCount() + " rejected so far)");
+            }else {
+                Log.d(this.getClass().getName(), "Speed estimated to " + motionController.getSpeed() + " meters pr second ("
+                        + motionController.getSpeedForChange() + " used for change), state "
+                        + MotionStateMachine.stateName(motionController.getMotionState())
+                        + ", event lag " + eventQueue.getLastLag()/1000 + " us");
+            }
+        }
+
+        handleDecision(decision);
+        storeCommutePatterns();
+        reRegisterIfNeeded();
+        statusPublisher.setMotion(motionController.getMotionState(), motionController.getSpeed());
+        metrics.recordFix(eventQueue.getProvider(), motionController.getLastFixResult(), System.nanoTime()-start,
+                System.currentTimeMillis()-eventQueue.getTime());
+        tuneSampling();
+    }
+
+    /**
+     * Update the energy estimate, and let the tuner evaluate one more
+     * candidate. When it finishes a pass its result is applied, if auto
+     * tuning is on, we are stationary so the state machine can be reset,
+     * and it is clearly cheaper than the current GPS sampling or the
+     * current one misses the target.
+     */
+    private void tuneSampling(){
+        long now = System.currentTimeMillis();
+        SamplingScheduler samplingScheduler = motionController.getSamplingScheduler();
+        double networkFixesPerHour = samplingScheduler.getNetworkFixesPerHour(now);
+        double bluetoothOnFraction = metrics.getBluetoothOnFraction(now);
+        energyModel.estimate(registeredMinTime[LocationHistory.PROVIDER_GPS], samplingScheduler.getGpsFixesPerHour(now),
+                networkFixesPerHour, bluetoothOnFraction);
+        metrics.recordEnergy(energyModel);
+
+        samplingTuner.setContext(networkFixesPerHour, bluetoothOnFraction);
+        if(!samplingTuner.step()){
+            return;
+        }
+        MotionSettings settings = motionController.getSettings();
+        long minTime = samplingTuner.getResultTime();
+        int minDistance = samplingTuner.getResultDistance();
+        boolean apply = appliedConfig.getAutoTune()
+                && motionController.getMotionState()==MotionStateMachine.STATIONARY
+                && (minTime!=settings.minTimeGPS || minDistance!=settings.minDistanceGPS)
+                && (!samplingTuner.meetsTarget(settings.minTimeGPS, settings.minDistanceGPS)
+                    || samplingTuner.getResultCost()<samplingTuner.getCost(settings.minTimeGPS, settings.minDistanceGPS)*(1-TUNING_IMPROVEMENT));
+        metrics.recordTuning(samplingTuner, apply);
+        if(apply){
+            Log.i(this.getClass().getName(), "Tuned GPS sampling from " + settings.minTimeGPS + " ms / " + settings.minDistanceGPS
+                    + " m to " + minTime + " ms / " + minDistance + " m, estimated " + samplingTuner.getResultCost() + " mA");
+            //learned state, in the file of the service. The config and its version are left to the activity
+            samplingTuner.setApplied(minTime, minDistance);
+            if(samplingTuner.isChanged()){
+                samplingTuner.clearChanged();
+                learnedPreferences.storeTunedSampling(samplingTuner.encode());
+            }
+            motionController.applySettings(getMotionSettings(appliedConfig));
+            scheduleMotionTimeout();
+            updateLocationUpdates();
+        }
+    }
+
+    private void processConnected(){
+        long device = eventQueue.getDevice();
+        boolean trigger = deviceRegistry.onConnected(device, System.currentTimeMillis());
+        //every connection counts, so the controller never cuts one
+        motionController.onConnected(deviceRegistry.getConnectedCount(), System.currentTimeMillis());
+        statusPublisher.setBluetoothEnabled(true);
+        reRegisterIfNeeded();
+        if(!trigger){
+            Log.i(this.getClass().getName(), "Device " + DeviceRegistry.toAddress(device) + " is not a trigger device, its disconnect is ignored");
+            return;
+        }
+        metrics.recordConnected(System.currentTimeMillis());
+        if(connectWatchdog.onConnected(System.currentTimeMillis())>=0){
+            motionHandler.removeCallbacks(connectTimeout);
+            metrics.recordConnectWatchdog(connectWatchdog);
+            storeConnectLatencies();
+        }
+    }
+
+    /**
+     * A device has disconnected. If it was the last trigger device
+     * -turn off bluetooth
+     * -create notification(s)
+     */
+    private void processDisconnected(){
+        long start = System.nanoTime();
+        long device = eventQueue.getDevice();
+        if(!deviceRegistry.onDisconnected(device, System.currentTimeMillis())){
+            Log.i(this.getClass().getName(), "Device " + DeviceRegistry.toAddress(device) + " disconnected, "
+                    + deviceRegistry.getConnectedTriggerCount() + " trigger devices still connected, bluetooth is kept on");
+            motionController.onDeviceDisconnected(deviceRegistry.getConnectedCount(), System.currentTimeMillis());
+            reRegisterIfNeeded();
+            return;
+        }
+        disableBluetooth();
+        metrics.recordDisable();
+        stopConnectWatchdog();
+        //start over, the next drive should enable bluetooth again
+        motionController.onDisconnected(System.currentTimeMillis());
+        reRegisterIfNeeded();
+        motionNotifier.notifyToggle(false);
+        statusPublisher.setLastToggle(MotionController.DECISION_DISABLE, MotionController.REASON_DISCONNECTED);
+        statusPublisher.setMotion(motionController.getMotionState(), motionController.getSpeed());
+        if (bNotificationWithLocation){
+            createNotificationOnParkedLocation();
+        }
+        Log.i(this.getClass().getName(), "Disconnect handled in " + (System.nanoTime()-start)/1000 + " us, "
+                + eventQueue.getLastLag()/1000 + " us after the broadcast");
+    }
+
+    /**
+     * Carry out what the MotionController decided
+     */
+    private void handleDecision(int decision){
+        if(decision==MotionController.DECISION_NONE){
+            return;
+        }
+        String reason = MotionController.reasonName(motionController.getDecisionReason());
+        journalDecision(decision, motionController.getDecisionReason());
+        statusPublisher.setLastToggle(decision, motionController.getDecisionReason());
+        if(decision==MotionController.DECISION_ENABLE){
+            Log.i(this.getClass().getName(), "Enabling bluetooth, reason " + reason + ", speed " + motionController.getSpeed());
+            if(enableBluetooth()){
+                metrics.recordEnable(System.currentTimeMillis());
+                //a FORCE_ON zone keeps bluetooth on whether a device connects or not
+                if(motionController.getCurrentZoneRule()!=GeofenceIndex.RULE_FORCE_ON){
+                    connectWatchdog.onEnabled(System.currentTimeMillis());
+                    scheduleConnectTimeout();
+                }
+            }
+            motionNotifier.notifyToggle(true);
+        }else if(decision==MotionController.DECISION_DISABLE){
+            Log.i(this.getClass().getName(), "Disabling bluetooth, reason " + reason);
+            disableBluetooth();
+            metrics.recordDisable();
+            stopConnectWatchdog();
+            motionNotifier.notifyToggle(false);
+        }
+    }
+
+    private void journalDecision(int decision, int reason){
+        if(fixJournal!=null){
+            try {
+                fixJournal.appendDecision(System.currentTimeMillis(), decision, reason,
+                        motionController.getMotionState(), motionController.getSpeed());
+            }catch (IOException e){
+                journalFailed(e);
+            }
+        }
+    }
 
+    /**
+     * No device connected in time after we enabled bluetooth,
+     * turn it off again unless some device is using it
+     */
+    private void onConnectTimeout(){
+        metrics.recordConnectWatchdog(connectWatchdog);
+        //the timeout is a sample too
+        storeConnectLatencies();
+        if(motionController.getCurrentZoneRule()==GeofenceIndex.RULE_FORCE_ON){
+            Log.i(this.getClass().getName(), "No device connected in time, bluetooth is kept on inside a FORCE_ON zone");
+            return;
+        }
+        if(deviceRegistry.getConnectedCount()>0){
+            Log.i(this.getClass().getName(), "No trigger device connected in time, bluetooth is kept on for "
+                    + deviceRegistry.getConnectedCount() + " other devices");
+            return;
+        }
+        Log.i(this.getClass().getName(), "Disabling bluetooth, no device connected within " + connectWatchdog.getTimeout()
+                + " ms, " + connectWatchdog.getTimeoutCount() + " timeouts so far");
+        journalDecision(MotionController.DECISION_DISABLE, MotionController.REASON_CONNECT_TIMEOUT);
+        statusPublisher.setLastToggle(MotionController.DECISION_DISABLE, MotionController.REASON_CONNECT_TIMEOUT);
+        disableBluetooth();
+        metrics.recordDisable();
+        motionNotifier.notifyToggle(false);
+    }
+
+    private void scheduleConnectTimeout(){
+        motionHandler.removeCallbacks(connectTimeout);
+        long deadline = connectWatchdog.getDeadline();
+        if(deadline>=0){
+            motionHandler.postDelayed(connectTimeout, Math.max(0, deadline-System.currentTimeMillis()));
+        }
+    }
+
+    private void stopConnectWatchdog(){
+        connectWatchdog.onDisabled();
+        motionHandler.removeCallbacks(connectTimeout);
+    }
+
+    /**
+     * Store the learned connect times when they have changed
+     */
+    private void storeConnectLatencies(){
+        if(connectWatchdog.isChanged()){
+            connectWatchdog.clearChanged();
+            learnedPreferences.storeConnectLatencies(connectWatchdog.encode());
+            Log.i(this.getClass().getName(), "Connect timeout is now " + connectWatchdog.getTimeout() + " ms, from "
+                    + connectWatchdog.getSampleCount() + " connects and timeouts");
+        }
+    }
+
+    /**
+     * Stop journaling after an error, the storage is most likely full
+     */
+    private void journalFailed(IOException e){
+        Log.e(this.getClass().getName(), "Could not append to the journal, journaling stopped", e);
+        try {
+            fixJournal.close();
+        }catch (IOException closeException){
+            //we are giving up on it anyway
+        }
+        fixJournal=null;
+    }
+
+    /**
+     * Store the learned commutes when they have changed
+     */
+    private void storeCommutePatterns(){
+        CommutePredictor commutePredictor = motionController.getCommutePredictor();
+        if(commutePredictor.isChanged()){
+            commutePredictor.clearChanged();
+            learnedPreferences.storeCommutePatterns(commutePredictor.encode());
+            Log.i(this.getClass().getName(), "Commute predictions " + commutePredictor.getPredictionCount()
+                    + ", hits " + commutePredictor.getHitCount() + ", misses " + commutePredictor.getMissCount()
+                    + ", unpredicted drives " + commutePredictor.getUnpredictedCount()
+                    + ", average lead time " + commutePredictor.getAverageLeadTime() + " ms");
+        }
+    }
+
+    /**
+     * Register the location listener again if new settings changed the
+     * sampling and the rate limit of the sampling scheduler allows it.
+     * Otherwise the scheduler asks again with a later fix. The first
+     * registration is always made.
+     */
+    private void updateLocationUpdates(){
+        motionController.updateSamplingSchedule(System.currentTimeMillis());
+        boolean needed = motionController.takeReRegistrationNeeded();
+        if(needed || !motionController.getSamplingScheduler().isRegistered()){
+            registerLocationUpdates();
+        }
+        //a registration held back is retried by the motion timeout
+        scheduleMotionTimeout();
+    }
+
+    /**
+     * (Re)register the location listener with the times and distances
+     * the sampling scheduler wants right now. A provider is only
+     * registered again if its time or distance has changed, so GPS is
+     * not restarted for nothing.
+     */
+    private void registerLocationUpdates() {
+        SamplingScheduler samplingScheduler = motionController.getSamplingScheduler();
+        long now = System.currentTimeMillis();
+        //listen for both the network and GPS. However, we must assume GPS is disabled
+        boolean registered = registerProvider(LocationManager.NETWORK_PROVIDER, LocationHistory.PROVIDER_NETWORK, samplingScheduler);
+        registered |= registerProvider(LocationManager.GPS_PROVIDER, LocationHistory.PROVIDER_GPS, samplingScheduler);
+        samplingScheduler.onRegistered(now);
+        if(registered){
+            Log.i(this.getClass().getName(), "Location updates registered with profile " + SamplingScheduler.profileName(samplingScheduler.getProfile())
+                    + ", GPS fixes pr hour " + samplingScheduler.getGpsFixesPerHour(now)
+                    + ", average time to enable " + samplingScheduler.getAverageTimeToEnable() + " ms");
+        }
+    }
+
+    /**
+     * Register one provider, if its time or distance has changed. Registering
+     * the same listener again replaces the request for that provider only.
+     * If it fails, the registered values are left as they were so the
+     * next registration tries again.
+     * @return true if it was registered, false if nothing changed or it failed
+     */
+    private boolean registerProvider(String provider, int providerId, SamplingScheduler samplingScheduler){
+        long minTime = samplingScheduler.getMinTime(providerId);
+        int minDistance = samplingScheduler.getMinDistance(providerId);
+        if(registeredMinTime[providerId]==minTime && registeredMinDistance[providerId]==minDistance){
+            return false;
+        }
         try {
-            //listen for both the network and GPS. However, we must assume GPS is disabled
-            locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, minTimeNetwork, minDistanceNetwork,locationListener);
-            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, minTimeGPS, minDistanceGPS,locationListener);
+            //the fixes are delivered on the main thread, in order with the bluetooth broadcasts
+            locationManager.requestLocationUpdates(provider, minTime, minDistance, locationListener, Looper.getMainLooper());
+            registeredMinTime[providerId]=minTime;
+            registeredMinDistance[providerId]=minDistance;
         }catch (Throwable t){
-            Log.e(this.getClass().getName(), "Could not set location updates", t);
+            Log.e(this.getClass().getName(), "Could not set location updates for " + provider, t);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Register the location updates again if the controller asks for it.
+     * If the rate limit held a change back, the motion timeout is set to
+     * retry it when the limit allows it.
+     */
+    private void reRegisterIfNeeded(){
+        if(motionController.takeReRegistrationNeeded()){
+            registerLocationUpdates();
+        }
+        scheduleMotionTimeout();
+    }
+
+    /**
+     * Make sure onTick of the controller runs when its
+     * next timeout is due, even if no fixes arrive
+     */
+    private void scheduleMotionTimeout(){
+        motionHandler.removeCallbacks(motionTimeout);
+        long deadline = motionController.getNextDeadline();
+        if(deadline>=0){
+            motionHandler.postDelayed(motionTimeout, Math.max(0, deadline-System.currentTimeMillis()));
         }
     }
 
@@ -239,40 +758,42 @@ public class BluetoothOnMotionService extends Service{
 
 
                 if (action.equals(BluetoothDevice.ACTION_ACL_CONNECTED)){
-                    //if bluetooth is connected with a device we just log it
+                    //if bluetooth is connected with a device, the worker records it
+                    BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                    long deviceKey = device!=null ? DeviceRegistry.toKey(device.getAddress()) : -1;
                     Log.i(this.getClass().getName(),"ACTION_ACL_CONNECTED A bluetooth device has been connected");
-                }else if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED)){
-                    //if bluetooth is disconnected with a device
-                    //-turn off bluetooth
-                    //-create notification(s)
-                    Log.i(this.getClass().getName(),"ACTION_ACL_DISCONNECTED A bluetooth device has been disconnected. Therefore, we are turning off bluetooth");
-                    disableBluetooth();
-                    if(bNotificationOnToggle){
-                        createNotificationOnToggle(false);
+                    if(eventQueue.offerBluetooth(MotionEventQueue.EVENT_ACL_CONNECTED, deviceKey, System.nanoTime())){
+                        motionHandler.post(processEvents);
                     }
-                    if (bNotificationWithLocation){
-
-                        try {
-                            Criteria criteria = new Criteria();
-                            criteria.setAccuracy(Criteria.ACCURACY_COARSE);
-                            String bestProvider= locationManager.getBestProvider(criteria, true);
-                            Location loc = locationManager.getLastKnownLocation(bestProvider);
-                            if(loc!=null){
-                                createNotificationOnLocation(loc);
-                                Log.i(this.getClass().getName(),"Create notification with location " + loc.toString());
+                    if(device!=null){
+                        //after the connect, so the worker already knows the device
+                        final long nameKey = deviceKey;
+                        final String name = device.getName();
+                        motionHandler.post(new Runnable(){
+                            @Override
+                            public void run() {
+                                deviceRegistry.setName(nameKey, name);
                             }
-                        }catch (IllegalArgumentException e) {
-                            Log.w(this.getClass().getName(), "Location not found for best provider ", e);
-                        }catch (RuntimeException e){
-                            Log.w(this.getClass().getName(), "Runtime exception when trying to create notification with location ", e);
-                        }
-
+                        });
+                    }
+                }else if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED)){
+                    //if bluetooth is disconnected with the last trigger device, the worker turns off bluetooth
+                    BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                    long deviceKey = device!=null ? DeviceRegistry.toKey(device.getAddress()) : -1;
+                    Log.i(this.getClass().getName(),"ACTION_ACL_DISCONNECTED A bluetooth device has been disconnected");
+                    if(eventQueue.offerBluetooth(MotionEventQueue.EVENT_ACL_DISCONNECTED, deviceKey, System.nanoTime())){
+                        motionHandler.post(processEvents);
                     }
 
                 }else if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)){
                     //if the adapter has changed status (on/off/starting...etc)
-                    //we just log it
-                    Log.i(this.getClass().getName(),"ACTION_STATE_CHANGED The status of the bluetooth adapter has changed");
+                    //the worker updates its mirror of the state, in order with the other events
+                    int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
+                    Log.i(this.getClass().getName(),"ACTION_STATE_CHANGED The status of the bluetooth adapter has changed to "
+                            + BluetoothToggle.stateName(state));
+                    if(eventQueue.offerAdapterState(state, System.nanoTime())){
+                        motionHandler.post(processEvents);
+                    }
                 }
 
                 /* Some debug code
@@ -309,20 +830,56 @@ public class BluetoothOnMotionService extends Service{
 
     }
 
+    /**
+     * The adapter has changed state, on the worker thread
+     */
+    private void onAdapterStateChanged(int state){
+        if(state==BluetoothAdapter.ERROR){
+            bluetoothToggle.sync(bluetoothAdapter.getState());
+        }else {
+            bluetoothToggle.onStateChanged(state);
+        }
+        metrics.recordBluetoothState(bluetoothToggle.isEnabled(), System.currentTimeMillis());
+        scheduleToggleTimeout();
+        statusPublisher.setBluetoothEnabled(bluetoothToggle.isEnabled());
+    }
+
+    /**
+     * Make sure a command which never reaches its state is given up
+     */
+    private void scheduleToggleTimeout(){
+        motionHandler.removeCallbacks(toggleTimeout);
+        long deadline = bluetoothToggle.getDeadline();
+        if(deadline>=0){
+            motionHandler.postDelayed(toggleTimeout, Math.max(0, deadline-System.currentTimeMillis()));
+        }
+    }
+
     /**
      * Called when we want to enable bluetooth
      * Requires both
      *   <uses-permission android:name="android.permission.BLUETOOTH" />
      *   <uses-permission android:name="android.permission.BLUETOOTH_ADMIN" />
+     * 
+     * The command is dropped if bluetooth is on, turning on or
+     * already asked to turn on
+     * 
+     * @return true if the enable command was sent to the adapter
      */
-    private void enableBluetooth(){
-        if (!bluetoothAdapter.isEnabled()) {
+    private boolean enableBluetooth(){
+        if (bluetoothToggle.requestEnable(System.currentTimeMillis())) {
             //the standard way of turning on bluetooth equires user input and is therefore not suitable
             //Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             //enableBtIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
             //startActivity(enableBtIntent);
-            bluetoothAdapter.enable();
+            boolean sent = bluetoothAdapter.enable();
+            if(!sent){
+                bluetoothToggle.onCommandFailed();
+            }
+            scheduleToggleTimeout();
+            return sent;
         }
+        return false;
     }
 
     /**
@@ -330,10 +887,18 @@ public class BluetoothOnMotionService extends Service{
      * Requires both
      *   <uses-permission android:name="android.permission.BLUETOOTH" />
      *   <uses-permission android:name="android.permission.BLUETOOTH_ADMIN" />
+     * 
+     * The command is dropped if bluetooth is off, turning off or
+     * already asked to turn off
      */
     private boolean disableBluetooth(){
-        if (bluetoothAdapter.isEnabled()) {
-            return bluetoothAdapter.disable();
+        if (bluetoothToggle.requestDisable(System.currentTimeMillis())) {
+            boolean sent = bluetoothAdapter.disable();
+            if(!sent){
+                bluetoothToggle.onCommandFailed();
+            }
+            scheduleToggleTimeout();
+            return sent;
         }else {
             //TODO: should we really return boolean here? might trigger a notification from calling party
             return true;
@@ -343,78 +908,31 @@ public class BluetoothOnMotionService extends Service{
 
 
     /**
-     * Create a notification into the system tray
-     * Should be called every time we enable or disable bluetooth
-     * 
-     * It will reuse the same notification message for enable and disable
-     * 
-     * 
+     * Create the notification of where we parked. The location comes from
+     * the last fix cache, the location manager is only asked if the cache
+     * has no recent fix.
      */
-    private void createNotificationOnToggle(boolean isEnable){
-        //we have reuse the sys warning icon
-        int icon = android.R.drawable.stat_sys_warning;        // icon from resources
-        long when = System.currentTimeMillis();         // notification time
-
-        //Create the intent
-        Intent notificationIntent = new Intent(this, BluetoothOnMotion.class);
-        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, notificationIntent,0 );
-
-        //trigger the notification
-        Notification notification;
-        if(isEnable){
-            notification = new Notification(icon,res.getString(R.string.notificationEnableTicker) , when);
-            notification.setLatestEventInfo(this, res.getText(R.string.notificationEnableTitle), res.getText(R.string.notificationEnableMessage), contentIntent);
-        }else {
-            notification= new Notification(icon,res.getString(R.string.notificationDisableTicker) , when);
-            notification.setLatestEventInfo(this, res.getText(R.string.notificationDisableTitle), res.getText(R.string.notificationDisableMessage), contentIntent);
-        }
-
-
-        NotificationManager mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        mNotificationManager.notify(NOTIFICATION_TOGGLE_ID, notification);
-    }
-
-    /**
-     * Create a notification into the system tray
-     * Should be called if the user wants to store a certain location
-     * such as where the car is parked
-     * 
-     */
-    private void createNotificationOnLocation(Location loc){
-        if(loc==null){
+    private void createNotificationOnParkedLocation(){
+        if(lastFixCache.isUsable(System.currentTimeMillis())){
+            motionNotifier.notifyLocation(lastFixCache.getLatitude(), lastFixCache.getLongitude());
+            Log.i(this.getClass().getName(),"Create notification with cached location " + lastFixCache.getLatitude() + "," + lastFixCache.getLongitude()
+                    + " accuracy " + lastFixCache.getAccuracy() + " age " + (System.currentTimeMillis()-lastFixCache.getTime()) + " ms");
             return;
         }
-        //we have reuse the sys warning icon
-        int icon = android.R.drawable.star_off;        // icon from resources
-        long when = System.currentTimeMillis();         // notification time
-
-        //Create the intent
-        Intent notificationIntent;
-
-        if(bNotificationWithLocaitonType.equals(BluetoothOnMotionPreferences.NOTIFICATION_WITH_LOCATION_RADAR)){
-            notificationIntent = new Intent ("com.google.android.radar.SHOW_RADAR");
-            notificationIntent.putExtra("latitude",loc.getLatitude());
-            notificationIntent.putExtra("longitude",loc.getLongitude() );
-        }else if (bNotificationWithLocaitonType.equals(BluetoothOnMotionPreferences.NOTIFICATION_WITH_LOCATION_STREETVIEW)){
-            //google streetview integration
-            notificationIntent = new Intent(Intent.ACTION_VIEW);
-            notificationIntent.setData(Uri.parse("google.streetview:cbll=" + loc.getLatitude()+ ","+ loc.getLongitude()));
-        }else {
-            //Google maps integrations is default
-            notificationIntent = new Intent(Intent.ACTION_VIEW);
-            notificationIntent.setData(Uri.parse("geo:" + loc.getLatitude()+ ","+ loc.getLongitude()));
+        try {
+            Criteria criteria = new Criteria();
+            criteria.setAccuracy(Criteria.ACCURACY_COARSE);
+            String bestProvider= locationManager.getBestProvider(criteria, true);
+            Location loc = locationManager.getLastKnownLocation(bestProvider);
+            if(loc!=null){
+                motionNotifier.notifyLocation(loc.getLatitude(), loc.getLongitude());
+                Log.i(this.getClass().getName(),"Create notification with location " + loc.toString());
+            }
+        }catch (IllegalArgumentException e) {
+            Log.w(this.getClass().getName(), "Location not found for best provider ", e);
+        }catch (RuntimeException e){
+            Log.w(this.getClass().getName(), "Runtime exception when trying to create notification with location ", e);
         }
-        //
-
-
-        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, notificationIntent,0 );
-
-        //trigger the notification
-        Notification notification = new Notification(icon,res.getString(R.string.notificationLocationTicker) , when);
-        notification.setLatestEventInfo(this, res.getText(R.string.notificationLocationTitle), res.getText(R.string.notificationLocationMessage), contentIntent);
-
-        NotificationManager mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        mNotificationManager.notify(NOTIFICATION_LOCATION_ID, notification);
     }
 
     /**
@@ -425,13 +943,46 @@ public class BluetoothOnMotionService extends Service{
         Log.i(this.getClass().getName(),"In Service OnDesctroy and will remove all listeners");
 
         //make sure all receivers are destroyed
-        unregisterReceiver(bluetoothReceiver);
-        bluetoothReceiver=null;
-        bluetoothAdapter=null;
-        locationManager.removeUpdates(locationListener);
-        locationListener=null;
-        locationManager=null;
         bIsServiceStarted=false;
+        if(bluetoothReceiver!=null){
+            unregisterReceiver(bluetoothReceiver);
+            bluetoothReceiver=null;
+        }
+        //the worker stops after the events already queued
+        motionHandler.post(new Runnable(){
+            @Override
+            public void run() {
+                motionHandler.removeCallbacks(motionTimeout);
+                motionHandler.removeCallbacks(toggleTimeout);
+                motionHandler.removeCallbacks(connectTimeout);
+                motionNotifier.cancelPending();
+                statusPublisher.setServiceStarted(false);
+                statusPublisher.kill();
+                if(locationManager!=null){
+                    locationManager.removeUpdates(locationListener);
+                    for(int i=0;i<registeredMinTime.length;i++){
+                        registeredMinTime[i]=-1;
+                        registeredMinDistance[i]=-1;
+                    }
+                }
+                eventQueue.clear();
+                if(fixJournal!=null){
+                    try {
+                        fixJournal.close();
+                    }catch (IOException e){
+                        Log.w(this.getClass().getName(), "Could not close the journal", e);
+                    }
+                    fixJournal=null;
+                }
+                Log.i(this.getClass().getName(), "Worker stopped after " + eventQueue.getProcessedCount() + " events, average lag "
+                        + eventQueue.getAverageLag()/1000 + " us, max lag " + eventQueue.getMaxLag()/1000 + " us, max queue depth "
+                        + eventQueue.getMaxDepth());
+                Log.i(this.getClass().getName(), metrics.snapshot(System.currentTimeMillis()).describe());
+                Log.i(this.getClass().getName(), "Bluetooth commands sent " + bluetoothToggle.getSentCount() + ", dropped "
+                        + bluetoothToggle.getDroppedCount() + ", timed out " + bluetoothToggle.getTimedOutCount());
+                workerThread.quit();
+            }
+        });
         super.onDestroy();
     }
     /**
@@ -462,10 +1013,54 @@ public class BluetoothOnMotionService extends Service{
             BluetoothOnMotionService.this.doUpdatePreferences();
         }
 
+        /**
+         * Hands the service a new config, without a read from disk.
+         * Only what changed is set up again
+         */
+        @Override
+        public void doApplyConfig(ServiceConfig config){
+            BluetoothOnMotionService.this.doApplyConfig(config);
+        }
+
         @Override
         public void doStopService(){
             BluetoothOnMotionService.this.stopSelf();
         }
+
+        /**
+         * A copy of the counters of the service
+         */
+        @Override
+        public ServiceMetrics getMetrics(){
+            return metrics.snapshot(System.currentTimeMillis());
+        }
+
+        /**
+         * The sessions of each bluetooth device seen since the service started
+         */
+        @Override
+        public DeviceStats getDeviceStats(){
+            //copied under the lock of the registry, so the worker can not change it meanwhile
+            return new DeviceStats(deviceRegistry, System.currentTimeMillis());
+        }
+
+        /**
+         * The client is told about changes of the status until it
+         * unregisters or dies
+         */
+        @Override
+        public void registerCallback(IOnMotionCallback callback){
+            if(callback!=null){
+                statusPublisher.register(callback);
+            }
+        }
+
+        @Override
+        public void unregisterCallback(IOnMotionCallback callback){
+            if(callback!=null){
+                statusPublisher.unregister(callback);
+            }
+        }
     };
 
     public boolean isServiceStarted(){
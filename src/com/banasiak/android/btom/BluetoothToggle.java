@@ -0,0 +1,153 @@
+package com.banasiak.android.btom;
+
+/**
+ * A mirror of the state of the bluetooth adapter, and the enable and
+ * disable commands sent to it.
+ *
+ * The mirror is fed from ACTION_STATE_CHANGED, so asking if bluetooth is
+ * enabled is a field read instead of a binder call. A command is only
+ * sent if the adapter is not already in, or on its way to, the wanted
+ * state and the same command is not in flight. A command which has not
+ * reached its state within the timeout is given up, and the caller
+ * should read the real state with sync.
+ *
+ * The states have the values of BluetoothAdapter.STATE_*. Time is passed
+ * in by the caller.
+ */
+public class BluetoothToggle {
+    public final static int STATE_OFF=10;
+    public final static int STATE_TURNING_ON=11;
+    public final static int STATE_ON=12;
+    public final static int STATE_TURNING_OFF=13;
+
+    public final static int COMMAND_NONE=0;
+    public final static int COMMAND_ENABLE=1;
+    public final static int COMMAND_DISABLE=2;
+
+    public final static long DEFAULT_TIMEOUT_MS=20*1000L;
+
+    private final long timeout;
+
+    private int state=STATE_OFF;
+    private int inFlight=COMMAND_NONE;
+    private long inFlightSince;
+
+    private long sentCount=0;
+    private long droppedCount=0;
+    private long timedOutCount=0;
+
+    public BluetoothToggle(){
+        this(DEFAULT_TIMEOUT_MS);
+    }
+
+    public BluetoothToggle(long timeout){
+        this.timeout=timeout;
+    }
+
+    /**
+     * Take the state read from the adapter, e.g. at start or after a timeout
+     */
+    public void sync(int adapterState){
+        state=adapterState;
+        inFlight=COMMAND_NONE;
+    }
+
+    /**
+     * The adapter has changed state, from the extras of ACTION_STATE_CHANGED
+     */
+    public void onStateChanged(int newState){
+        state=newState;
+        if((inFlight==COMMAND_ENABLE && newState==STATE_ON) || (inFlight==COMMAND_DISABLE && newState==STATE_OFF)){
+            inFlight=COMMAND_NONE;
+        }
+    }
+
+    /**
+     * @return true if the enable command should be sent to the adapter
+     */
+    public boolean requestEnable(long now){
+        return request(COMMAND_ENABLE, now);
+    }
+
+    /**
+     * @return true if the disable command should be sent to the adapter
+     */
+    public boolean requestDisable(long now){
+        return request(COMMAND_DISABLE, now);
+    }
+
+    private boolean request(int command, long now){
+        boolean there = command==COMMAND_ENABLE ? isEnabled() : !isEnabled();
+        if(inFlight==command || (inFlight==COMMAND_NONE && there)){
+            droppedCount++;
+            return false;
+        }
+        inFlight=command;
+        inFlightSince=now;
+        sentCount++;
+        return true;
+    }
+
+    /**
+     * The adapter refused the command
+     */
+    public void onCommandFailed(){
+        inFlight=COMMAND_NONE;
+    }
+
+    /**
+     * @return when checkTimeout should be called, -1 if no command is in flight
+     */
+    public long getDeadline(){
+        return inFlight==COMMAND_NONE ? -1 : inFlightSince+timeout;
+    }
+
+    /**
+     * @return true if the command in flight timed out, the state should be synced
+     */
+    public boolean checkTimeout(long now){
+        if(inFlight==COMMAND_NONE || now<inFlightSince+timeout){
+            return false;
+        }
+        inFlight=COMMAND_NONE;
+        timedOutCount++;
+        return true;
+    }
+
+    /**
+     * @return true if bluetooth is on or turning on
+     */
+    public boolean isEnabled(){
+        return state==STATE_ON || state==STATE_TURNING_ON;
+    }
+
+    public int getState(){
+        return state;
+    }
+    public int getInFlight(){
+        return inFlight;
+    }
+
+    public long getSentCount(){
+        return sentCount;
+    }
+    /**
+     * @return commands not sent, because the adapter was already there or on its way
+     */
+    public long getDroppedCount(){
+        return droppedCount;
+    }
+    public long getTimedOutCount(){
+        return timedOutCount;
+    }
+
+    public static String stateName(int state){
+        switch(state){
+        case STATE_OFF: return "OFF";
+        case STATE_TURNING_ON: return "TURNING_ON";
+        case STATE_ON: return "ON";
+        case STATE_TURNING_OFF: return "TURNING_OFF";
+        default: return "UNKNOWN";
+        }
+    }
+}
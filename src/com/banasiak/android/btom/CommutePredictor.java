@@ -0,0 +1,274 @@
+package com.banasiak.android.btom;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Learns recurring trips so bluetooth can be enabled as soon as a known
+ * commute starts, instead of waiting for the speed threshold.
+ *
+ * A pattern is keyed by the grid cell where the movement started and the
+ * 15 minute bucket of the week. Every time the device starts moving the
+ * pattern is counted as a start, and if the movement turns into driving
+ * within the trip window it is counted as a trip. Once a pattern has
+ * enough trips, and most of its starts became trips, the next start
+ * predicts a drive.
+ *
+ * The patterns are kept in an LRU map of bounded size, and patterns
+ * not seen for a number of weeks are dropped.
+ */
+public class CommutePredictor {
+    public final static int PREDICT_NONE=0;
+    public final static int PREDICT_ENABLE=1;
+    //a predicted drive did not happen
+    public final static int PREDICT_MISS=2;
+
+    private final static double CELL_SIZE_M=1000.0;
+    private final static double METERS_PER_DEGREE=Math.toRadians(1)*GeoDistance.EARTH_RADIUS_M;
+    private final static long BUCKET_MS=15*60*1000L;
+    private final static long BUCKETS_PER_WEEK=7*24*4;
+    private final static long WEEK_MS=BUCKETS_PER_WEEK*BUCKET_MS;
+
+    public final static int DEFAULT_MAX_PATTERNS=256;
+    private final static int MIN_TRIPS=3;
+    private final static float MIN_TRIP_RATIO=0.6f;
+    //a start must become driving within this to count as a trip
+    private final static long TRIP_WINDOW_MS=10*60*1000L;
+    private final static long STALE_AFTER_MS=6*WEEK_MS;
+
+    static class Pattern {
+        int starts;
+        int trips;
+        long lastSeen;
+    }
+
+    private final int maxPatterns;
+    private final LinkedHashMap<Long, Pattern> patterns;
+
+    private int lastState=MotionStateMachine.STATIONARY;
+    //the pattern of the movement in progress
+    private Pattern currentPattern;
+    private long movingSince=-1;
+    private boolean predicted=false;
+    private long predictedAt;
+
+    //statistics
+    private long predictions=0;
+    private long hits=0;
+    private long misses=0;
+    private long unpredictedDrives=0;
+    private long leadTimeTotal=0;
+    //the patterns have changed since the last clearChanged
+    private boolean changed=false;
+
+    public CommutePredictor(){
+        this(DEFAULT_MAX_PATTERNS);
+    }
+
+    public CommutePredictor(final int maxPatterns){
+        this.maxPatterns=maxPatterns;
+        //access order, so the eldest entry is the least recently used
+        patterns=new LinkedHashMap<Long, Pattern>(16, 0.75f, true){
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Pattern> eldest) {
+                return size()>CommutePredictor.this.maxPatterns;
+            }
+        };
+    }
+
+    /**
+     * Feed the state of the motion state machine after every fix.
+     * Only state changes do any work.
+     *
+     * @param now wall clock time, used for the time of week
+     * @return PREDICT_ENABLE when a known commute starts, PREDICT_MISS when
+     * a predicted drive stopped without driving, otherwise PREDICT_NONE
+     */
+    public int onMotionState(int state, double lat, double lon, long now){
+        int previous=lastState;
+        lastState=state;
+        if(state==previous){
+            if(predicted && state==MotionStateMachine.MOVING && now-movingSince>TRIP_WINDOW_MS){
+                //moving, but not driving (walking, cycling)
+                predicted=false;
+                misses++;
+                return PREDICT_MISS;
+            }
+            return PREDICT_NONE;
+        }
+
+        if(previous==MotionStateMachine.STATIONARY){
+            int result=onStart(lat, lon, now);
+            if(state==MotionStateMachine.DRIVING){
+                //went straight to driving, bluetooth is enabled anyway
+                onDriving(now);
+                return PREDICT_NONE;
+            }
+            return result;
+        }
+        if(state==MotionStateMachine.DRIVING && previous==MotionStateMachine.MOVING){
+            onDriving(now);
+            return PREDICT_NONE;
+        }
+        if(state==MotionStateMachine.STATIONARY && predicted){
+            predicted=false;
+            currentPattern=null;
+            misses++;
+            return PREDICT_MISS;
+        }
+        if(state==MotionStateMachine.STATIONARY){
+            currentPattern=null;
+        }
+        return PREDICT_NONE;
+    }
+
+    private int onStart(double lat, double lon, long now){
+        Long key=Long.valueOf(key(lat, lon, now));
+        Pattern pattern=patterns.get(key);
+        if(pattern!=null && now-pattern.lastSeen>STALE_AFTER_MS){
+            patterns.remove(key);
+            pattern=null;
+        }
+        if(pattern==null){
+            pattern=new Pattern();
+            patterns.put(key, pattern);
+        }
+        pattern.starts++;
+        pattern.lastSeen=now;
+        changed=true;
+        currentPattern=pattern;
+        movingSince=now;
+
+        //the start has already been counted, so leave it out of the ratio
+        int previousStarts=pattern.starts-1;
+        predicted=pattern.trips>=MIN_TRIPS && previousStarts>0
+                && pattern.trips>=MIN_TRIP_RATIO*previousStarts;
+        if(predicted){
+            predictedAt=now;
+            predictions++;
+            return PREDICT_ENABLE;
+        }
+        return PREDICT_NONE;
+    }
+
+    private void onDriving(long now){
+        if(currentPattern!=null && now-movingSince<=TRIP_WINDOW_MS){
+            currentPattern.trips++;
+            changed=true;
+        }
+        if(predicted){
+            hits++;
+            leadTimeTotal+=now-predictedAt;
+        }else {
+            unpredictedDrives++;
+        }
+        predicted=false;
+        currentPattern=null;
+    }
+
+    private static long key(double lat, double lon, long now){
+        long row=(long)Math.floor(lat*METERS_PER_DEGREE/CELL_SIZE_M);
+        long column=(long)Math.floor(lon*METERS_PER_DEGREE/CELL_SIZE_M);
+        long local=now+TimeZone.getDefault().getOffset(now);
+        long bucket=(local/BUCKET_MS)%BUCKETS_PER_WEEK;
+        return ((row & 0xFFFFFFL)<<34) | ((column & 0xFFFFFFL)<<10) | bucket;
+    }
+
+    /**
+     * Drop the patterns which have not been seen for a long time
+     */
+    public void evictStale(long now){
+        Iterator<Pattern> it=patterns.values().iterator();
+        while(it.hasNext()){
+            if(now-it.next().lastSeen>STALE_AFTER_MS){
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return true if the patterns have changed and should be stored again
+     */
+    public boolean isChanged(){
+        return changed;
+    }
+
+    public void clearChanged(){
+        changed=false;
+    }
+
+    public int getPatternCount(){
+        return patterns.size();
+    }
+    public long getPredictionCount(){
+        return predictions;
+    }
+    /**
+     * @return predicted drives which did turn into driving
+     */
+    public long getHitCount(){
+        return hits;
+    }
+    /**
+     * @return predicted drives which did not turn into driving
+     */
+    public long getMissCount(){
+        return misses;
+    }
+    /**
+     * @return drives which were not predicted
+     */
+    public long getUnpredictedCount(){
+        return unpredictedDrives;
+    }
+    /**
+     * @return average milliseconds bluetooth was enabled before the speed threshold, -1 if no hits
+     */
+    public long getAverageLeadTime(){
+        return hits==0 ? -1 : leadTimeTotal/hits;
+    }
+
+    /**
+     * Encode the patterns as text, one per line: key,starts,trips,lastSeen
+     */
+    public String encode(){
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Long, Pattern> entry : patterns.entrySet()){
+            Pattern pattern=entry.getValue();
+            sb.append(entry.getKey()).append(',')
+            .append(pattern.starts).append(',')
+            .append(pattern.trips).append(',')
+            .append(pattern.lastSeen).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Restore patterns from the output of encode.
+     * Lines which can not be parsed are skipped.
+     */
+    public void decode(String encoded){
+        if(encoded==null){
+            return;
+        }
+        for(String line : encoded.split("\n")){
+            String[] fields=line.split(",");
+            if(fields.length!=4){
+                continue;
+            }
+            try {
+                Pattern pattern=new Pattern();
+                pattern.starts=Integer.parseInt(fields[1]);
+                pattern.trips=Integer.parseInt(fields[2]);
+                pattern.lastSeen=Long.parseLong(fields[3]);
+                patterns.put(Long.valueOf(fields[0]), pattern);
+            }catch (NumberFormatException e){
+                //skip the pattern
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.banasiak.android.btom;
+
+/**
+ * Versions of the config given to ServiceConfig.
+ *
+ * The activity and the service run in different processes, each with
+ * its own cached copy of the preferences, so a version counted up from
+ * the cache can go back: a writer whose cache is stale would give a
+ * version the service already has, and the service would ignore the
+ * newer config. The version is therefore the wall clock time of the
+ * store, and at least one more than the version the writer knows, so it
+ * also increases within a process if the clock is set back.
+ */
+public class ConfigVersion {
+    private ConfigVersion(){
+    }
+
+    /**
+     * @param current the newest version this writer knows
+     * @param now the wall clock time, System.currentTimeMillis on the device
+     * @return the version of the next store
+     */
+    public static long next(long current, long now){
+        return Math.max(now, current+1);
+    }
+}
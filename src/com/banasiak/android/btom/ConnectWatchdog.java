@@ -0,0 +1,225 @@
+package com.banasiak.android.btom;
+
+/**
+ * Turns bluetooth off again if we enabled it and no device connected,
+ * e.g. when a passenger on a bus passes the speed threshold.
+ *
+ * The time allowed is learned from the time it took the car kit to
+ * connect after bluetooth was enabled: the 99th percentile of a histogram
+ * of those times, plus a margin. Until enough connects are seen the
+ * default timeout is used. When the histogram is full it is halved, so
+ * old samples fade and the timeout follows the current car kit.
+ *
+ * A timeout is counted as a sample too, at the time waited. We only know
+ * the connect would have taken at least that long, but without it the
+ * histogram would never see a latency above the current timeout, and the
+ * timeout could only shrink. A car kit that has become slower now pushes
+ * it up again.
+ *
+ * Time is passed in by the caller, which schedules checkTimeout at
+ * getDeadline.
+ */
+public class ConnectWatchdog {
+    //upper bounds of the latency buckets, in milliseconds. The last bucket has the rest
+    public final static long[] BUCKETS_MS={5000, 10000, 15000, 20000, 30000, 45000, 60000, 90000, 120000, 180000, 300000};
+
+    public final static long DEFAULT_TIMEOUT_MS=3*60*1000L;
+    public final static long MIN_TIMEOUT_MS=60*1000L;
+    public final static long MAX_TIMEOUT_MS=10*60*1000L;
+    public final static long MARGIN_MS=30*1000L;
+    private final static int MIN_SAMPLES=5;
+    private final static int MAX_SAMPLES=200;
+
+    private final int[] histogram=new int[BUCKETS_MS.length+1];
+    private int samples=0;
+    private boolean changed=false;
+
+    //when bluetooth was enabled, -1 if we are not waiting for a connect
+    private long enabledAt=-1;
+    private long deadline=-1;
+
+    private long armedCount=0;
+    private long connectedCount=0;
+    private long timeoutCount=0;
+
+    /**
+     * Bluetooth has been enabled, start waiting for a connect
+     */
+    public void onEnabled(long now){
+        if(enabledAt>=0){
+            //still waiting from the last enable, keep its deadline
+            return;
+        }
+        enabledAt=now;
+        deadline=now+getTimeout();
+        armedCount++;
+    }
+
+    /**
+     * A (trigger) device has connected
+     * @return milliseconds from enable to connect, -1 if we were not waiting
+     */
+    public long onConnected(long now){
+        if(enabledAt<0){
+            return -1;
+        }
+        long latency=Math.max(0, now-enabledAt);
+        record(latency);
+        connectedCount++;
+        disarm();
+        return latency;
+    }
+
+    /**
+     * Bluetooth has been disabled for another reason, stop waiting
+     */
+    public void onDisabled(){
+        disarm();
+    }
+
+    /**
+     * @return true if no device connected in time, bluetooth should be disabled
+     */
+    public boolean checkTimeout(long now){
+        if(enabledAt<0 || now<deadline){
+            return false;
+        }
+        timeoutCount++;
+        //at least this long, the connect did not come in time
+        record(now-enabledAt);
+        disarm();
+        return true;
+    }
+
+    private void disarm(){
+        enabledAt=-1;
+        deadline=-1;
+    }
+
+    private void record(long latency){
+        int bucket=0;
+        while(bucket<BUCKETS_MS.length && latency>BUCKETS_MS[bucket]){
+            bucket++;
+        }
+        histogram[bucket]++;
+        samples++;
+        if(samples>=MAX_SAMPLES){
+            samples=0;
+            for(int i=0;i<histogram.length;i++){
+                histogram[i]/=2;
+                samples+=histogram[i];
+            }
+        }
+        changed=true;
+    }
+
+    /**
+     * @return milliseconds to wait for a connect after enabling bluetooth
+     */
+    public long getTimeout(){
+        if(samples<MIN_SAMPLES){
+            return DEFAULT_TIMEOUT_MS;
+        }
+        long p99=getPercentile(0.99);
+        if(p99<0){
+            return MAX_TIMEOUT_MS;
+        }
+        return Math.min(MAX_TIMEOUT_MS, Math.max(MIN_TIMEOUT_MS, p99+MARGIN_MS));
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the percentile, -1 if it is in the last bucket
+     */
+    public long getPercentile(double fraction){
+        int needed=(int)Math.ceil(samples*fraction);
+        int count=0;
+        for(int i=0;i<BUCKETS_MS.length;i++){
+            count+=histogram[i];
+            if(count>=needed){
+                return BUCKETS_MS[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return when checkTimeout should be called, -1 if we are not waiting for a connect
+     */
+    public long getDeadline(){
+        return deadline;
+    }
+
+    public boolean isWaiting(){
+        return enabledAt>=0;
+    }
+
+    /**
+     * @return connects in each bucket of BUCKETS_MS, and above the last one
+     */
+    public int getBucketCount(int bucket){
+        return histogram[bucket];
+    }
+    public int getSampleCount(){
+        return samples;
+    }
+    public long getArmedCount(){
+        return armedCount;
+    }
+    public long getConnectedCount(){
+        return connectedCount;
+    }
+    public long getTimeoutCount(){
+        return timeoutCount;
+    }
+
+    /**
+     * @return true if the histogram has changed and should be stored again
+     */
+    public boolean isChanged(){
+        return changed;
+    }
+
+    public void clearChanged(){
+        changed=false;
+    }
+
+    /**
+     * Encode the histogram as the counts of the buckets separated by commas
+     */
+    public String encode(){
+        StringBuilder sb=new StringBuilder();
+        for(int i=0;i<histogram.length;i++){
+            if(i>0){
+                sb.append(',');
+            }
+            sb.append(histogram[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Restore the histogram from the output of encode.
+     * It is ignored if it can not be parsed or has other buckets.
+     */
+    public void decode(String encoded){
+        if(encoded==null){
+            return;
+        }
+        String[] fields=encoded.split(",");
+        if(fields.length!=histogram.length){
+            return;
+        }
+        int[] counts=new int[histogram.length];
+        int total=0;
+        try {
+            for(int i=0;i<fields.length;i++){
+                counts[i]=Integer.parseInt(fields[i]);
+                total+=counts[i];
+            }
+        }catch (NumberFormatException e){
+            return;
+        }
+        System.arraycopy(counts, 0, histogram, 0, counts.length);
+        samples=total;
+    }
+}
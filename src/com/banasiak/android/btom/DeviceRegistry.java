@@ -0,0 +1,322 @@
+package com.banasiak.android.btom;
+
+import java.util.Arrays;
+
+/**
+ * The bluetooth devices seen by the service, keyed by their address.
+ *
+ * For each device it keeps whether it is connected, the times of its
+ * last connect and disconnect, the number of sessions and the time spent
+ * connected. Some devices are trigger devices (the car kit): only they
+ * drive the decisions, so a watch or headset dropping does not turn off
+ * bluetooth while the car is still connected. If no trigger devices are
+ * configured, every device is a trigger device.
+ *
+ * The address is packed into a long, and the devices are found through
+ * an open addressing table of those keys, so a lookup allocates nothing.
+ * Devices are connected and disconnected rarely, so the methods are
+ * synchronized and the registry may be read from any thread. A reader
+ * which needs several values at once holds the lock of the registry
+ * while it reads them, as DeviceStats does.
+ */
+public class DeviceRegistry {
+    private final static long EMPTY=-1;
+    private final static int INITIAL_CAPACITY=8;
+
+    //hash table of keys, holding the index of the device in the arrays below
+    private long[] tableKeys;
+    private int[] tableIndex;
+
+    private int count=0;
+    private long[] keys;
+    private String[] names;
+    private boolean[] trigger;
+    private boolean[] connected;
+    private long[] lastConnect;
+    private long[] lastDisconnect;
+    private int[] sessions;
+    private long[] connectedTime;
+
+    //keys of the configured trigger devices, empty if all devices are triggers
+    private long[] triggerKeys=new long[0];
+    private int connectedTriggers=0;
+
+    public DeviceRegistry(){
+        tableKeys=new long[INITIAL_CAPACITY*2];
+        tableIndex=new int[INITIAL_CAPACITY*2];
+        Arrays.fill(tableKeys, EMPTY);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Set which devices are trigger devices
+     * @param triggerDevices addresses separated by commas, as returned by encodeAddresses.
+     * Empty if every device is a trigger device
+     */
+    public synchronized void setTriggerDevices(String triggerDevices){
+        triggerKeys=decodeAddresses(triggerDevices);
+        connectedTriggers=0;
+        for(int i=0;i<count;i++){
+            trigger[i]=isTriggerKey(keys[i]);
+            if(trigger[i] && connected[i]){
+                connectedTriggers++;
+            }
+        }
+    }
+
+    private boolean isTriggerKey(long key){
+        if(triggerKeys.length==0){
+            return true;
+        }
+        for(int i=0;i<triggerKeys.length;i++){
+            if(triggerKeys[i]==key){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remember the name of a device, for display
+     */
+    public synchronized void setName(long key, String name){
+        if(key!=EMPTY && name!=null){
+            names[indexOf(key)]=name;
+        }
+    }
+
+    /**
+     * A device has connected
+     * @return true if it is a trigger device
+     */
+    public synchronized boolean onConnected(long key, long now){
+        if(key==EMPTY){
+            //we do not know the device, so it has to count
+            return true;
+        }
+        int i=indexOf(key);
+        if(!connected[i]){
+            connected[i]=true;
+            sessions[i]++;
+            if(trigger[i]){
+                connectedTriggers++;
+            }
+        }
+        lastConnect[i]=now;
+        return trigger[i];
+    }
+
+    /**
+     * A device has disconnected
+     * @return true if it was a trigger device and no other trigger device is
+     * still connected, so the disconnect should be acted on
+     */
+    public synchronized boolean onDisconnected(long key, long now){
+        if(key==EMPTY){
+            return connectedTriggers==0;
+        }
+        int i=indexOf(key);
+        if(connected[i]){
+            connected[i]=false;
+            connectedTime[i]+=Math.max(0, now-lastConnect[i]);
+            if(trigger[i]){
+                connectedTriggers--;
+            }
+        }
+        lastDisconnect[i]=now;
+        return trigger[i] && connectedTriggers==0;
+    }
+
+    public synchronized int getConnectedTriggerCount(){
+        return connectedTriggers;
+    }
+
+    /**
+     * @return devices connected, trigger devices or not
+     */
+    public synchronized int getConnectedCount(){
+        int connectedCount=0;
+        for(int i=0;i<count;i++){
+            if(connected[i]){
+                connectedCount++;
+            }
+        }
+        return connectedCount;
+    }
+
+    /**
+     * @return the index of the device, it is added if it is new
+     */
+    private int indexOf(long key){
+        int mask=tableKeys.length-1;
+        int slot=hash(key)&mask;
+        while(tableKeys[slot]!=EMPTY){
+            if(tableKeys[slot]==key){
+                return tableIndex[slot];
+            }
+            slot=(slot+1)&mask;
+        }
+        if(count==keys.length){
+            grow();
+            return indexOf(key);
+        }
+        int i=count++;
+        tableKeys[slot]=key;
+        tableIndex[slot]=i;
+        keys[i]=key;
+        trigger[i]=isTriggerKey(key);
+        return i;
+    }
+
+    private static int hash(long key){
+        long h=key*0x9E3779B97F4A7C15L;
+        return (int)(h^(h>>>32));
+    }
+
+    private void grow(){
+        long[] oldKeys=keys;
+        String[] oldNames=names;
+        boolean[] oldTrigger=trigger;
+        boolean[] oldConnected=connected;
+        long[] oldLastConnect=lastConnect;
+        long[] oldLastDisconnect=lastDisconnect;
+        int[] oldSessions=sessions;
+        long[] oldConnectedTime=connectedTime;
+        allocate(oldKeys.length*2);
+        System.arraycopy(oldKeys, 0, keys, 0, count);
+        System.arraycopy(oldNames, 0, names, 0, count);
+        System.arraycopy(oldTrigger, 0, trigger, 0, count);
+        System.arraycopy(oldConnected, 0, connected, 0, count);
+        System.arraycopy(oldLastConnect, 0, lastConnect, 0, count);
+        System.arraycopy(oldLastDisconnect, 0, lastDisconnect, 0, count);
+        System.arraycopy(oldSessions, 0, sessions, 0, count);
+        System.arraycopy(oldConnectedTime, 0, connectedTime, 0, count);
+
+        //the table is kept at most half full
+        tableKeys=new long[keys.length*2];
+        tableIndex=new int[keys.length*2];
+        Arrays.fill(tableKeys, EMPTY);
+        int mask=tableKeys.length-1;
+        for(int i=0;i<count;i++){
+            int slot=hash(keys[i])&mask;
+            while(tableKeys[slot]!=EMPTY){
+                slot=(slot+1)&mask;
+            }
+            tableKeys[slot]=keys[i];
+            tableIndex[slot]=i;
+        }
+    }
+
+    private void allocate(int capacity){
+        keys=new long[capacity];
+        names=new String[capacity];
+        trigger=new boolean[capacity];
+        connected=new boolean[capacity];
+        lastConnect=new long[capacity];
+        lastDisconnect=new long[capacity];
+        sessions=new int[capacity];
+        connectedTime=new long[capacity];
+    }
+
+    public synchronized int getDeviceCount(){
+        return count;
+    }
+    public synchronized long getKey(int index){
+        return keys[index];
+    }
+    public synchronized String getName(int index){
+        return names[index];
+    }
+    public synchronized boolean isTrigger(int index){
+        return trigger[index];
+    }
+    public synchronized boolean isConnected(int index){
+        return connected[index];
+    }
+    public synchronized long getLastConnect(int index){
+        return lastConnect[index];
+    }
+    public synchronized long getLastDisconnect(int index){
+        return lastDisconnect[index];
+    }
+    public synchronized int getSessionCount(int index){
+        return sessions[index];
+    }
+    /**
+     * @return milliseconds connected in the finished sessions, and the current one up to now
+     */
+    public synchronized long getConnectedTime(int index, long now){
+        return connectedTime[index]+(connected[index] ? Math.max(0, now-lastConnect[index]) : 0);
+    }
+
+    /**
+     * @param address as in BluetoothDevice.getAddress, e.g. 00:11:22:AA:BB:CC
+     * @return the address packed into a long, -1 if it is not valid
+     */
+    public static long toKey(String address){
+        if(address==null || address.length()!=17){
+            return EMPTY;
+        }
+        long key=0;
+        for(int i=0;i<17;i++){
+            char c=address.charAt(i);
+            if(i%3==2){
+                if(c!=':'){
+                    return EMPTY;
+                }
+                continue;
+            }
+            int digit=Character.digit(c, 16);
+            if(digit<0){
+                return EMPTY;
+            }
+            key=(key<<4)|digit;
+        }
+        return key;
+    }
+
+    public static String toAddress(long key){
+        StringBuilder sb=new StringBuilder(17);
+        for(int i=5;i>=0;i--){
+            int b=(int)(key>>>(i*8))&0xff;
+            sb.append(Character.toUpperCase(Character.forDigit(b>>4, 16)));
+            sb.append(Character.toUpperCase(Character.forDigit(b&0xf, 16)));
+            if(i>0){
+                sb.append(':');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the keys of the addresses separated by commas, invalid addresses are skipped
+     */
+    public static long[] decodeAddresses(String encoded){
+        if(encoded==null || encoded.length()==0){
+            return new long[0];
+        }
+        String[] parts=encoded.split(",");
+        long[] result=new long[parts.length];
+        int n=0;
+        for(int i=0;i<parts.length;i++){
+            long key=toKey(parts[i].trim());
+            if(key!=EMPTY){
+                result[n++]=key;
+            }
+        }
+        long[] trimmed=new long[n];
+        System.arraycopy(result, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    public static String encodeAddresses(long[] keys, int length){
+        StringBuilder sb=new StringBuilder();
+        for(int i=0;i<length;i++){
+            if(i>0){
+                sb.append(',');
+            }
+            sb.append(toAddress(keys[i]));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,153 @@
+package com.banasiak.android.btom;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A copy of the sessions of each device in the DeviceRegistry, which
+ * can be sent over IOnMotionService.
+ */
+public final class DeviceStats implements Parcelable {
+    private final int count;
+    private final String[] addresses;
+    private final String[] names;
+    private final boolean[] trigger;
+    private final boolean[] connected;
+    private final long[] lastConnect;
+    private final long[] lastDisconnect;
+    private final int[] sessions;
+    private final long[] connectedTime;
+
+    /**
+     * Copy the registry while holding its lock, so it may be called from any thread
+     */
+    public DeviceStats(DeviceRegistry registry, long now){
+        synchronized(registry){
+            count=registry.getDeviceCount();
+            addresses=new String[count];
+            names=new String[count];
+            trigger=new boolean[count];
+            connected=new boolean[count];
+            lastConnect=new long[count];
+            lastDisconnect=new long[count];
+            sessions=new int[count];
+            connectedTime=new long[count];
+            for(int i=0;i<count;i++){
+                addresses[i]=DeviceRegistry.toAddress(registry.getKey(i));
+                names[i]=registry.getName(i);
+                trigger[i]=registry.isTrigger(i);
+                connected[i]=registry.isConnected(i);
+                lastConnect[i]=registry.getLastConnect(i);
+                lastDisconnect[i]=registry.getLastDisconnect(i);
+                sessions[i]=registry.getSessionCount(i);
+                connectedTime[i]=registry.getConnectedTime(i, now);
+            }
+        }
+    }
+
+    private DeviceStats(Parcel in){
+        count=in.readInt();
+        addresses=new String[count];
+        names=new String[count];
+        trigger=new boolean[count];
+        connected=new boolean[count];
+        lastConnect=new long[count];
+        lastDisconnect=new long[count];
+        sessions=new int[count];
+        connectedTime=new long[count];
+        for(int i=0;i<count;i++){
+            addresses[i]=in.readString();
+            names[i]=in.readString();
+            trigger[i]=in.readInt()!=0;
+            connected[i]=in.readInt()!=0;
+            lastConnect[i]=in.readLong();
+            lastDisconnect[i]=in.readLong();
+            sessions[i]=in.readInt();
+            connectedTime[i]=in.readLong();
+        }
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags){
+        dest.writeInt(count);
+        for(int i=0;i<count;i++){
+            dest.writeString(addresses[i]);
+            dest.writeString(names[i]);
+            dest.writeInt(trigger[i] ? 1 : 0);
+            dest.writeInt(connected[i] ? 1 : 0);
+            dest.writeLong(lastConnect[i]);
+            dest.writeLong(lastDisconnect[i]);
+            dest.writeInt(sessions[i]);
+            dest.writeLong(connectedTime[i]);
+        }
+    }
+
+    @Override
+    public int describeContents(){
+        return 0;
+    }
+
+    public final static Parcelable.Creator<DeviceStats> CREATOR = new Parcelable.Creator<DeviceStats>(){
+        @Override
+        public DeviceStats createFromParcel(Parcel in){
+            return new DeviceStats(in);
+        }
+        @Override
+        public DeviceStats[] newArray(int size){
+            return new DeviceStats[size];
+        }
+    };
+
+    public int getDeviceCount(){
+        return count;
+    }
+    public String getAddress(int index){
+        return addresses[index];
+    }
+    /**
+     * @return the name of the device, null if it is not known
+     */
+    public String getName(int index){
+        return names[index];
+    }
+    public boolean isTrigger(int index){
+        return trigger[index];
+    }
+    public boolean isConnected(int index){
+        return connected[index];
+    }
+    public long getLastConnect(int index){
+        return lastConnect[index];
+    }
+    public long getLastDisconnect(int index){
+        return lastDisconnect[index];
+    }
+    public int getSessionCount(int index){
+        return sessions[index];
+    }
+    /**
+     * @return milliseconds connected, the current session included
+     */
+    public long getConnectedTime(int index){
+        return connectedTime[index];
+    }
+
+    /**
+     * @return a line of text for each device, for display and logging
+     */
+    public String describe(){
+        StringBuilder sb=new StringBuilder();
+        for(int i=0;i<count;i++){
+            if(i>0){
+                sb.append("\n");
+            }
+            sb.append(names[i]!=null ? names[i] : addresses[i]);
+            if(trigger[i]){
+                sb.append(" (trigger)");
+            }
+            sb.append(connected[i] ? " connected" : " disconnected");
+            sb.append(", ").append(sessions[i]).append(" sessions, ").append(connectedTime[i]/60000).append(" min");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package com.banasiak.android.btom;
+
+/**
+ * A rough model of the battery the service costs, as the average
+ * current in mA (which is also mAh pr hour).
+ *
+ * The GPS engine wakes up every minTime whatever the distance filter
+ * says, and stays on while it gets a fix, so its cost is set by minTime
+ * alone. Each network fix costs a short burst of radio, and each fix
+ * delivered to us wakes the CPU. Bluetooth costs a small current while
+ * the radio is on. The figures are typical of phones of the size this
+ * application runs on, good enough to compare settings with each other.
+ */
+public class EnergyModel {
+    //GPS engine while it is on
+    public final static float GPS_ON_MA=60f;
+    //seconds the GPS is on to get a fix after sleeping
+    public final static float GPS_FIX_SECONDS=10f;
+    //charge of a network fix, in mA seconds
+    public final static float NETWORK_FIX_MAS=150f;
+    //charge of waking up to process a fix, in mA seconds
+    public final static float FIX_WAKE_MAS=20f;
+    //bluetooth radio on, not connected
+    public final static float BLUETOOTH_ON_MA=2f;
+
+    private float gps;
+    private float network;
+    private float fixes;
+    private float bluetooth;
+
+    /**
+     * Estimate the average current, the parts are available from the getters afterwards
+     *
+     * @param gpsMinTime milliseconds between GPS fixes, -1 if GPS is not used
+     * @param gpsFixesPerHour GPS fixes delivered after the distance filter
+     * @param bluetoothOnFraction part of the time the bluetooth radio is on, 0 to 1
+     * @return mA
+     */
+    public float estimate(long gpsMinTime, double gpsFixesPerHour, double networkFixesPerHour, double bluetoothOnFraction){
+        gps = gpsMinTime<0 ? 0f : GPS_ON_MA*getGpsOnFraction(gpsMinTime);
+        network=(float)(networkFixesPerHour*NETWORK_FIX_MAS/3600);
+        fixes=(float)((gpsFixesPerHour+networkFixesPerHour)*FIX_WAKE_MAS/3600);
+        bluetooth=(float)(bluetoothOnFraction*BLUETOOTH_ON_MA);
+        return getTotal();
+    }
+
+    /**
+     * @return part of the time the GPS engine is on with the given minTime
+     */
+    public static float getGpsOnFraction(long gpsMinTime){
+        if(gpsMinTime<=GPS_FIX_SECONDS*1000){
+            return 1f;
+        }
+        return GPS_FIX_SECONDS*1000/gpsMinTime;
+    }
+
+    public float getTotal(){
+        return gps+network+fixes+bluetooth;
+    }
+    public float getGps(){
+        return gps;
+    }
+    public float getNetwork(){
+        return network;
+    }
+    public float getFixes(){
+        return fixes;
+    }
+    public float getBluetooth(){
+        return bluetooth;
+    }
+}
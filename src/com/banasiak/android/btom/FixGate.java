@@ -0,0 +1,169 @@
+package com.banasiak.android.btom;
+
+/**
+ * Checks every fix before it is added to the LocationHistory.
+ *
+ * Fixes are rejected if they
+ * - report an accuracy worse than the maximum
+ * - are older than the maximum age
+ * - are not newer than the last accepted fix
+ * - imply an acceleration no car can do (e.g. a jump between cell towers)
+ * Fixes with an accuracy between the good and the maximum accuracy are
+ * accepted, but their accuracy is inflated so the speed estimators
+ * weight them down.
+ *
+ * Every result is counted, see getCount.
+ */
+public class FixGate {
+    public final static int ACCEPTED=0;
+    public final static int DOWN_WEIGHTED=1;
+    public final static int REJECTED_ACCURACY=2;
+    public final static int REJECTED_STALE=3;
+    public final static int REJECTED_OUT_OF_ORDER=4;
+    public final static int REJECTED_ACCELERATION=5;
+    private final static int RESULT_COUNT=6;
+
+    public final static float DEFAULT_GOOD_ACCURACY_M=100f;
+    public final static float DEFAULT_MAX_ACCURACY_M=2000f;
+    public final static long DEFAULT_MAX_AGE_MS=2*60*1000L;
+    public final static float DEFAULT_MAX_ACCELERATION_MS2=6f;
+    //after this many acceleration rejections in a row we trust the new position
+    private final static int MAX_CONSECUTIVE_ACCELERATION_REJECTS=3;
+
+    private final float goodAccuracy;
+    private final float maxAccuracy;
+    private final long maxAge;
+    private final float maxAcceleration;
+    private final GeoDistance geoDistance;
+
+    private final long[] counts = new long[RESULT_COUNT];
+
+    //the last accepted fix
+    private boolean hasLast=false;
+    private double lastLat;
+    private double lastLon;
+    private double lastCosLat;
+    private long lastTime;
+    private float lastAccuracy;
+    //speed implied by the last two accepted fixes
+    private float lastImpliedSpeed;
+    private int consecutiveAccelerationRejects;
+
+    //accuracy to use for the last accepted fix
+    private float adjustedAccuracy;
+
+    public FixGate(){
+        this(DEFAULT_GOOD_ACCURACY_M, DEFAULT_MAX_ACCURACY_M, DEFAULT_MAX_AGE_MS, DEFAULT_MAX_ACCELERATION_MS2, GeoDistance.DEFAULT);
+    }
+
+    public FixGate(float goodAccuracy, float maxAccuracy, long maxAge, float maxAcceleration, GeoDistance geoDistance){
+        this.goodAccuracy=goodAccuracy;
+        this.maxAccuracy=maxAccuracy;
+        this.maxAge=maxAge;
+        this.maxAcceleration=maxAcceleration;
+        this.geoDistance=geoDistance;
+    }
+
+    /**
+     * Check a fix. If it is accepted (ACCEPTED or DOWN_WEIGHTED) it becomes
+     * the reference for the next check and getAdjustedAccuracy returns the
+     * accuracy it should be stored with.
+     *
+     * @param accuracy reported accuracy in meters, NaN if unknown
+     * @param now current time in the same time base as timeMillis
+     * @return one of the result constants
+     */
+    public int check(double lat, double lon, long timeMillis, float accuracy, long now){
+        int result=evaluate(lat, lon, timeMillis, accuracy, now);
+        counts[result]++;
+        return result;
+    }
+
+    private int evaluate(double lat, double lon, long timeMillis, float accuracy, long now){
+        boolean accuracyKnown = !Float.isNaN(accuracy) && accuracy>0f;
+        if(accuracyKnown && accuracy>maxAccuracy){
+            return REJECTED_ACCURACY;
+        }
+        if(now-timeMillis>maxAge){
+            return REJECTED_STALE;
+        }
+        if(hasLast && timeMillis<=lastTime){
+            return REJECTED_OUT_OF_ORDER;
+        }
+
+        double cosLat=GeoDistance.cosLatitude(lat);
+        float impliedSpeed=0f;
+        if(hasLast){
+            //only count the distance which can not be explained by the accuracy of the fixes
+            double distance=geoDistance.distance(lastLat, lastLon, lastCosLat, lat, lon, cosLat);
+            double margin=(accuracyKnown ? accuracy : 0f) + (Float.isNaN(lastAccuracy) ? 0f : lastAccuracy);
+            double seconds=(timeMillis-lastTime)/1000.0;
+            impliedSpeed=(float)(Math.max(0.0, distance-margin)/seconds);
+            double acceleration=Math.abs(impliedSpeed-lastImpliedSpeed)/seconds;
+            if(acceleration>maxAcceleration
+                    && consecutiveAccelerationRejects<MAX_CONSECUTIVE_ACCELERATION_REJECTS){
+                consecutiveAccelerationRejects++;
+                return REJECTED_ACCELERATION;
+            }
+        }
+
+        consecutiveAccelerationRejects=0;
+        hasLast=true;
+        lastLat=lat;
+        lastLon=lon;
+        lastCosLat=cosLat;
+        lastTime=timeMillis;
+        lastAccuracy=accuracyKnown ? accuracy : Float.NaN;
+        lastImpliedSpeed=impliedSpeed;
+
+        if(accuracyKnown && accuracy>goodAccuracy){
+            //grows quadratically with how far we are past the good accuracy
+            adjustedAccuracy=accuracy*accuracy/goodAccuracy;
+            return DOWN_WEIGHTED;
+        }
+        adjustedAccuracy=accuracyKnown ? accuracy : Float.NaN;
+        return ACCEPTED;
+    }
+
+    public static boolean isAccepted(int result){
+        return result==ACCEPTED || result==DOWN_WEIGHTED;
+    }
+
+    /**
+     * @return accuracy in meters the last accepted fix should be stored with
+     */
+    public float getAdjustedAccuracy(){
+        return adjustedAccuracy;
+    }
+
+    /**
+     * @return number of fixes with the given result since the gate was created
+     */
+    public long getCount(int result){
+        return counts[result];
+    }
+
+    public long getRejectedCount(){
+        return counts[REJECTED_ACCURACY]+counts[REJECTED_STALE]+counts[REJECTED_OUT_OF_ORDER]+counts[REJECTED_ACCELERATION];
+    }
+
+    public static String resultName(int result){
+        switch(result){
+        case ACCEPTED: return "accepted";
+        case DOWN_WEIGHTED: return "down-weighted";
+        case REJECTED_ACCURACY: return "rejected-accuracy";
+        case REJECTED_STALE: return "rejected-stale";
+        case REJECTED_OUT_OF_ORDER: return "rejected-out-of-order";
+        case REJECTED_ACCELERATION: return "rejected-acceleration";
+        default: return "unknown";
+        }
+    }
+
+    /**
+     * Forget the last accepted fix, the counters are kept
+     */
+    public void reset(){
+        hasLast=false;
+        consecutiveAccelerationRejects=0;
+    }
+}
@@ -0,0 +1,334 @@
+package com.banasiak.android.btom;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only journal of accepted fixes and bluetooth decisions,
+ * so they survive the death of the service process.
+ *
+ * Records have a fixed size and are written into memory-mapped segment
+ * files, so an append is a few stores into the page cache and no system
+ * call. The kernel writes the pages back even if the process is killed.
+ * When a segment is full the next one is mapped, and the oldest segments
+ * are deleted to keep the journal below maxSegments.
+ *
+ * Every record ends with a checksum of its fields. On open the newest
+ * segment is scanned and appending continues after the last valid record,
+ * so a record torn by a crash is overwritten.
+ *
+ * Not thread safe. The service opens it in onCreate, before any work is
+ * posted to its worker thread, and from then on only the worker appends
+ * to it and closes it.
+ * Readers map the segments read only and read the records in place.
+ */
+public class FixJournal {
+    public final static int TYPE_FIX=1;
+    public final static int TYPE_DECISION=2;
+
+    //time, lat, lon (8 bytes each), accuracy, speed (4 each),
+    //type, provider/decision, fix result/reason, motion state (1 each), checksum (4)
+    public final static int RECORD_SIZE=40;
+    public final static int DEFAULT_SEGMENT_RECORDS=26214;
+    public final static int DEFAULT_MAX_SEGMENTS=8;
+
+    private final static String SEGMENT_PREFIX="journal-";
+    private final static String SEGMENT_SUFFIX=".bin";
+
+    private final File directory;
+    private final int segmentRecords;
+    private final int maxSegments;
+
+    private RandomAccessFile file;
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    //next record to write in the segment
+    private int position;
+    private long appendCount=0;
+
+    /**
+     * Open the journal in directory, creating it if needed,
+     * and continue after the last valid record
+     */
+    public FixJournal(File directory, int segmentRecords, int maxSegments) throws IOException {
+        if(segmentRecords<1 || maxSegments<1){
+            throw new IllegalArgumentException("segmentRecords and maxSegments must be at least 1");
+        }
+        this.directory=directory;
+        this.segmentRecords=segmentRecords;
+        this.maxSegments=maxSegments;
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Could not create journal directory " + directory);
+        }
+        int[] numbers=listSegments(directory);
+        if(numbers.length==0){
+            openSegment(0);
+        }else {
+            openSegment(numbers[numbers.length-1]);
+            position=recover(segment, segmentRecords);
+            if(position==segmentRecords){
+                rotate();
+            }
+        }
+    }
+
+    public FixJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_RECORDS, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Append a fix which has been accepted by the FixGate
+     */
+    public void appendFix(long time, double lat, double lon, float accuracy, float speed, int providerId, int fixResult) throws IOException {
+        append(time, lat, lon, accuracy, speed, TYPE_FIX, providerId, fixResult, 0);
+    }
+
+    /**
+     * Append a decision of the MotionController
+     */
+    public void appendDecision(long time, int decision, int reason, int motionState, float speed) throws IOException {
+        append(time, Double.NaN, Double.NaN, Float.NaN, speed, TYPE_DECISION, decision, reason, motionState);
+    }
+
+    private void append(long time, double lat, double lon, float accuracy, float speed,
+            int type, int detail1, int detail2, int detail3) throws IOException {
+        if(position==segmentRecords){
+            rotate();
+        }
+        int offset=position*RECORD_SIZE;
+        segment.putLong(offset, time);
+        segment.putDouble(offset+8, lat);
+        segment.putDouble(offset+16, lon);
+        segment.putFloat(offset+24, accuracy);
+        segment.putFloat(offset+28, speed);
+        segment.put(offset+32, (byte)type);
+        segment.put(offset+33, (byte)detail1);
+        segment.put(offset+34, (byte)detail2);
+        segment.put(offset+35, (byte)detail3);
+        //the checksum goes last, so a torn record is never valid
+        segment.putInt(offset+36, checksum(segment, offset));
+        position++;
+        appendCount++;
+    }
+
+    /**
+     * Write the mapped pages to the storage. Not needed to survive a
+     * process crash, only a power loss, so call it rarely.
+     */
+    public void flush(){
+        segment.force();
+    }
+
+    public void close() throws IOException {
+        flush();
+        file.close();
+        segment=null;
+    }
+
+    /**
+     * @return records appended since the journal was opened
+     */
+    public long getAppendCount(){
+        return appendCount;
+    }
+
+    public File getDirectory(){
+        return directory;
+    }
+
+    private void rotate() throws IOException {
+        file.close();
+        openSegment(segmentNumber+1);
+        int[] numbers=listSegments(directory);
+        for(int i=0;i<numbers.length-maxSegments;i++){
+            segmentFile(directory, numbers[i]).delete();
+        }
+    }
+
+    private void openSegment(int number) throws IOException {
+        segmentNumber=number;
+        position=0;
+        file=new RandomAccessFile(segmentFile(directory, number), "rw");
+        //a new file is extended with zeros, which are never valid records
+        segment=file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long)segmentRecords*RECORD_SIZE);
+    }
+
+    /**
+     * @return the number of valid records at the start of the segment
+     */
+    static int recover(MappedByteBuffer buffer, int records){
+        for(int i=0;i<records;i++){
+            if(!isValid(buffer, i*RECORD_SIZE)){
+                return i;
+            }
+        }
+        return records;
+    }
+
+    private static boolean isValid(MappedByteBuffer buffer, int offset){
+        int type=buffer.get(offset+32);
+        return (type==TYPE_FIX || type==TYPE_DECISION) && buffer.getInt(offset+36)==checksum(buffer, offset);
+    }
+
+    private static int checksum(MappedByteBuffer buffer, int offset){
+        int hash=0x2f6b1c3d;
+        for(int i=0;i<36;i+=4){
+            hash=(hash ^ buffer.getInt(offset+i))*0x01000193;
+        }
+        return hash;
+    }
+
+    static File segmentFile(File directory, int number){
+        return new File(directory, SEGMENT_PREFIX + String.format("%08d", number) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @return the numbers of the segments in directory, oldest first
+     */
+    static int[] listSegments(File directory){
+        String[] names=directory.list(new FilenameFilter(){
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if(names==null){
+            return new int[0];
+        }
+        int[] numbers=new int[names.length];
+        int count=0;
+        for(String name : names){
+            try {
+                numbers[count]=Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length()-SEGMENT_SUFFIX.length()));
+                count++;
+            }catch(NumberFormatException e){
+                //not one of ours
+            }
+        }
+        int[] sorted=new int[count];
+        System.arraycopy(numbers, 0, sorted, 0, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Reads the journal from the oldest record to the newest,
+     * directly from the mapped segments. The getters return the
+     * fields of the current record.
+     *
+     *   FixJournal.Reader reader = new FixJournal.Reader(directory);
+     *   while(reader.next()){ ... reader.getTime() ... }
+     *   reader.close();
+     */
+    public static class Reader {
+        private final File directory;
+        private final int[] numbers;
+        private int segmentIndex=-1;
+        private RandomAccessFile file;
+        private MappedByteBuffer segment;
+        private int records;
+        private int record;
+        private int offset;
+
+        public Reader(File directory){
+            this.directory=directory;
+            this.numbers=listSegments(directory);
+        }
+
+        /**
+         * Move to the next record
+         * @return false when there are no more valid records
+         */
+        public boolean next() throws IOException {
+            while(segment==null || record+1>=records){
+                if(!openNextSegment()){
+                    return false;
+                }
+            }
+            record++;
+            offset=record*RECORD_SIZE;
+            return true;
+        }
+
+        private boolean openNextSegment() throws IOException {
+            close();
+            segmentIndex++;
+            if(segmentIndex>=numbers.length){
+                return false;
+            }
+            File segmentFile=segmentFile(directory, numbers[segmentIndex]);
+            if(!segmentFile.exists()){
+                //deleted by the writer since we listed them
+                return true;
+            }
+            file=new RandomAccessFile(segmentFile, "r");
+            long length=file.length();
+            segment=file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            records=recover(segment, (int)(length/RECORD_SIZE));
+            record=-1;
+            return true;
+        }
+
+        public void close() throws IOException {
+            if(file!=null){
+                file.close();
+                file=null;
+            }
+            segment=null;
+        }
+
+        public int getType(){
+            return segment.get(offset+32);
+        }
+        public long getTime(){
+            return segment.getLong(offset);
+        }
+        public double getLatitude(){
+            return segment.getDouble(offset+8);
+        }
+        public double getLongitude(){
+            return segment.getDouble(offset+16);
+        }
+        public float getAccuracy(){
+            return segment.getFloat(offset+24);
+        }
+        public float getSpeed(){
+            return segment.getFloat(offset+28);
+        }
+        /**
+         * @return the provider id of a fix
+         */
+        public int getProvider(){
+            return segment.get(offset+33);
+        }
+        /**
+         * @return the FixGate result of a fix
+         */
+        public int getFixResult(){
+            return segment.get(offset+34);
+        }
+        /**
+         * @return MotionController.DECISION_* of a decision
+         */
+        public int getDecision(){
+            return segment.get(offset+33);
+        }
+        /**
+         * @return MotionController.REASON_* of a decision
+         */
+        public int getReason(){
+            return segment.get(offset+34);
+        }
+        /**
+         * @return the MotionStateMachine state after a decision
+         */
+        public int getMotionState(){
+            return segment.get(offset+35);
+        }
+    }
+}
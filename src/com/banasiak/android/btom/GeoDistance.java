@@ -0,0 +1,152 @@
+package com.banasiak.android.btom;
+
+/**
+ * Distance kernel used for speed estimation.
+ *
+ * Consecutive fixes are normally only a few hundred meters apart, so
+ * the full iterative Vincenty solution (which Location.distanceTo uses)
+ * is not needed. Short hops use an equirectangular approximation with
+ * cos(latitude) cached per fix by the caller, scaled by the radii of
+ * curvature of the WGS84 ellipsoid so it stays close to Vincenty. Longer distances fall back
+ * to haversine, or Vincenty if configured.
+ */
+public final class GeoDistance {
+    //mean earth radius in meters
+    public final static double EARTH_RADIUS_M=6371009.0;
+    public final static double DEFAULT_FAST_PATH_LIMIT_M=5000.0;
+
+    //WGS84 ellipsoid, used by vincenty
+    private final static double WGS84_A=6378137.0;
+    private final static double WGS84_F=1/298.257223563;
+    private final static double WGS84_B=(1-WGS84_F)*WGS84_A;
+    private final static double WGS84_E2=WGS84_F*(2-WGS84_F);
+    private final static int VINCENTY_MAX_ITERATIONS=100;
+
+    public final static GeoDistance DEFAULT=new GeoDistance(DEFAULT_FAST_PATH_LIMIT_M, false);
+
+    private final double fastPathLimit;
+    private final boolean vincentyFallback;
+
+    /**
+     * @param fastPathLimit distances (in meters) up to this use the equirectangular approximation
+     * @param vincentyFallback use vincenty instead of haversine above the limit
+     */
+    public GeoDistance(double fastPathLimit, boolean vincentyFallback){
+        this.fastPathLimit=fastPathLimit;
+        this.vincentyFallback=vincentyFallback;
+    }
+
+    public double getFastPathLimit(){
+        return fastPathLimit;
+    }
+
+    /**
+     * Distance in meters between two points
+     *
+     * @param cosLat1 Math.cos(Math.toRadians(lat1)), cached by the caller
+     * @param cosLat2 Math.cos(Math.toRadians(lat2)), cached by the caller
+     */
+    public double distance(double lat1, double lon1, double cosLat1, double lat2, double lon2, double cosLat2){
+        double approximation=equirectangular(lat1, lon1, cosLat1, lat2, lon2, cosLat2);
+        if(approximation<=fastPathLimit){
+            return approximation;
+        }
+        if(vincentyFallback){
+            double d=vincenty(lat1, lon1, lat2, lon2);
+            if(!Double.isNaN(d)){
+                return d;
+            }
+        }
+        return haversine(lat1, lon1, lat2, lon2);
+    }
+
+    public static double cosLatitude(double lat){
+        return Math.cos(Math.toRadians(lat));
+    }
+
+    /**
+     * Flat earth approximation using the mean of the two cached cos(latitude).
+     * No trigonometry apart from the caller's cached values, sin(latitude)
+     * for the radii of curvature is derived from cos(latitude).
+     */
+    public static double equirectangular(double lat1, double lon1, double cosLat1, double lat2, double lon2, double cosLat2){
+        double dLon=lon2-lon1;
+        //shortest way across the antimeridian
+        if(dLon>180){
+            dLon-=360;
+        }else if(dLon<-180){
+            dLon+=360;
+        }
+        double cosLat=(cosLat1 + cosLat2)*0.5;
+        double w=1-WGS84_E2*(1-cosLat*cosLat);
+        //prime vertical and meridional radius of curvature
+        double n=WGS84_A/Math.sqrt(w);
+        double m=n*(1-WGS84_E2)/w;
+        double x=Math.toRadians(dLon)*cosLat*n;
+        double y=Math.toRadians(lat2-lat1)*m;
+        return Math.sqrt(x*x + y*y);
+    }
+
+    /**
+     * Great circle distance in meters on a spherical earth
+     */
+    public static double haversine(double lat1, double lon1, double lat2, double lon2){
+        double sinDLat=Math.sin(Math.toRadians(lat2-lat1)/2);
+        double sinDLon=Math.sin(Math.toRadians(lon2-lon1)/2);
+        double a=sinDLat*sinDLat
+                + Math.cos(Math.toRadians(lat1))*Math.cos(Math.toRadians(lat2))*sinDLon*sinDLon;
+        return 2*EARTH_RADIUS_M*Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    /**
+     * Inverse Vincenty solution on the WGS84 ellipsoid, the same method
+     * as Location.distanceTo
+     *
+     * @return distance in meters, NaN if the iteration does not converge
+     * (nearly antipodal points)
+     */
+    public static double vincenty(double lat1, double lon1, double lat2, double lon2){
+        double l=Math.toRadians(lon2-lon1);
+        double u1=Math.atan((1-WGS84_F)*Math.tan(Math.toRadians(lat1)));
+        double u2=Math.atan((1-WGS84_F)*Math.tan(Math.toRadians(lat2)));
+        double sinU1=Math.sin(u1), cosU1=Math.cos(u1);
+        double sinU2=Math.sin(u2), cosU2=Math.cos(u2);
+
+        double lambda=l;
+        double sinSigma, cosSigma, sigma, cosSqAlpha, cos2SigmaM;
+        int iterations=0;
+        while(true){
+            double sinLambda=Math.sin(lambda), cosLambda=Math.cos(lambda);
+            double t1=cosU2*sinLambda;
+            double t2=cosU1*sinU2-sinU1*cosU2*cosLambda;
+            sinSigma=Math.sqrt(t1*t1 + t2*t2);
+            if(sinSigma==0){
+                //same point
+                return 0;
+            }
+            cosSigma=sinU1*sinU2 + cosU1*cosU2*cosLambda;
+            sigma=Math.atan2(sinSigma, cosSigma);
+            double sinAlpha=cosU1*cosU2*sinLambda/sinSigma;
+            cosSqAlpha=1-sinAlpha*sinAlpha;
+            //equatorial line: cosSqAlpha is 0
+            cos2SigmaM=cosSqAlpha!=0 ? cosSigma-2*sinU1*sinU2/cosSqAlpha : 0;
+            double c=WGS84_F/16*cosSqAlpha*(4 + WGS84_F*(4-3*cosSqAlpha));
+            double lambdaPrevious=lambda;
+            lambda=l + (1-c)*WGS84_F*sinAlpha
+                    * (sigma + c*sinSigma*(cos2SigmaM + c*cosSigma*(-1 + 2*cos2SigmaM*cos2SigmaM)));
+            if(Math.abs(lambda-lambdaPrevious)<1e-12){
+                break;
+            }
+            if(++iterations>=VINCENTY_MAX_ITERATIONS){
+                return Double.NaN;
+            }
+        }
+
+        double uSq=cosSqAlpha*(WGS84_A*WGS84_A-WGS84_B*WGS84_B)/(WGS84_B*WGS84_B);
+        double a=1 + uSq/16384*(4096 + uSq*(-768 + uSq*(320-175*uSq)));
+        double b=uSq/1024*(256 + uSq*(-128 + uSq*(74-47*uSq)));
+        double deltaSigma=b*sinSigma*(cos2SigmaM + b/4*(cosSigma*(-1 + 2*cos2SigmaM*cos2SigmaM)
+                - b/6*cos2SigmaM*(-3 + 4*sinSigma*sinSigma)*(-3 + 4*cos2SigmaM*cos2SigmaM)));
+        return WGS84_B*a*(sigma-deltaSigma);
+    }
+}
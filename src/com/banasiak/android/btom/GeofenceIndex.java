@@ -0,0 +1,253 @@
+package com.banasiak.android.btom;
+
+/**
+ * Places (circles) where bluetooth should be forced on or off
+ * regardless of the speed, e.g. on at home, off at the office.
+ *
+ * Zones are kept in parallel arrays and indexed in a grid of fixed size
+ * cells. A zone is registered in every cell its bounding box touches, so
+ * a lookup only has to check the zones of a single cell, independent of
+ * how many zones there are. The cell map is an open addressing hash map
+ * with primitive long keys, so a lookup does not allocate.
+ *
+ * Zones are stored in BluetoothOnMotionPreferences with encode/decode.
+ */
+public class GeofenceIndex {
+    public final static int RULE_NONE=0;
+    public final static int RULE_FORCE_ON=1;
+    public final static int RULE_FORCE_OFF=2;
+
+    public final static double DEFAULT_CELL_SIZE_M=1000.0;
+    //meters pr degree of latitude
+    private final static double METERS_PER_DEGREE=Math.toRadians(1)*GeoDistance.EARTH_RADIUS_M;
+
+    private final double cellSizeDegrees;
+
+    //zones
+    private int zoneCount=0;
+    private String[] name=new String[16];
+    private double[] latitude=new double[16];
+    private double[] longitude=new double[16];
+    private double[] cosLatitude=new double[16];
+    private float[] radius=new float[16];
+    private int[] rule=new int[16];
+
+    //cell key -> zone indexes, the first element of each array is the count
+    private long[] cellKeys=new long[64];
+    private int[][] cellZones=new int[64][];
+    private int cellCount=0;
+
+    public GeofenceIndex(){
+        this(DEFAULT_CELL_SIZE_M);
+    }
+
+    public GeofenceIndex(double cellSizeMeters){
+        this.cellSizeDegrees=cellSizeMeters/METERS_PER_DEGREE;
+    }
+
+    /**
+     * @param radiusMeters radius of the zone
+     * @param zoneRule RULE_FORCE_ON or RULE_FORCE_OFF
+     * @return index of the new zone
+     */
+    public int addZone(String zoneName, double lat, double lon, float radiusMeters, int zoneRule){
+        if(zoneCount==latitude.length){
+            int capacity=zoneCount*2;
+            name=java.util.Arrays.copyOf(name, capacity);
+            latitude=java.util.Arrays.copyOf(latitude, capacity);
+            longitude=java.util.Arrays.copyOf(longitude, capacity);
+            cosLatitude=java.util.Arrays.copyOf(cosLatitude, capacity);
+            radius=java.util.Arrays.copyOf(radius, capacity);
+            rule=java.util.Arrays.copyOf(rule, capacity);
+        }
+        int zone=zoneCount++;
+        name[zone]=zoneName;
+        latitude[zone]=lat;
+        longitude[zone]=lon;
+        cosLatitude[zone]=GeoDistance.cosLatitude(lat);
+        radius[zone]=radiusMeters;
+        rule[zone]=zoneRule;
+
+        //register the zone in every cell its bounding box touches
+        double dLat=radiusMeters/METERS_PER_DEGREE;
+        double dLon=radiusMeters/(METERS_PER_DEGREE*Math.max(0.01, cosLatitude[zone]));
+        long minRow=cell(lat-dLat), maxRow=cell(lat+dLat);
+        long minColumn=cell(lon-dLon), maxColumn=cell(lon+dLon);
+        for(long row=minRow;row<=maxRow;row++){
+            for(long column=minColumn;column<=maxColumn;column++){
+                addToCell(key(row, column), zone);
+            }
+        }
+        return zone;
+    }
+
+    /**
+     * Find the zone containing a position. If several zones overlap
+     * the smallest (most specific) one wins.
+     *
+     * @return index of the zone, -1 if the position is outside all zones
+     */
+    public int lookup(double lat, double lon){
+        int[] zones=getCell(key(cell(lat), cell(lon)));
+        if(zones==null){
+            return -1;
+        }
+        double cosLat=GeoDistance.cosLatitude(lat);
+        int best=-1;
+        for(int i=1;i<=zones[0];i++){
+            int zone=zones[i];
+            double distance=GeoDistance.equirectangular(lat, lon, cosLat, latitude[zone], longitude[zone], cosLatitude[zone]);
+            if(distance<=radius[zone] && (best<0 || radius[zone]<radius[best])){
+                best=zone;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the rule of the zone containing the position, RULE_NONE if none
+     */
+    public int lookupRule(double lat, double lon){
+        int zone=lookup(lat, lon);
+        return zone<0 ? RULE_NONE : rule[zone];
+    }
+
+    /**
+     * The same as lookup, but checks every zone. Only used to verify
+     * the index and for comparison in benchmarks.
+     */
+    public int lookupLinear(double lat, double lon){
+        double cosLat=GeoDistance.cosLatitude(lat);
+        int best=-1;
+        for(int zone=0;zone<zoneCount;zone++){
+            double distance=GeoDistance.equirectangular(lat, lon, cosLat, latitude[zone], longitude[zone], cosLatitude[zone]);
+            if(distance<=radius[zone] && (best<0 || radius[zone]<radius[best])){
+                best=zone;
+            }
+        }
+        return best;
+    }
+
+    public int size(){
+        return zoneCount;
+    }
+    public String getName(int zone){
+        return name[zone];
+    }
+    public int getRule(int zone){
+        return rule[zone];
+    }
+
+    private long cell(double degrees){
+        return (long)Math.floor(degrees/cellSizeDegrees);
+    }
+
+    private static long key(long row, long column){
+        return (row<<32) ^ (column & 0xffffffffL);
+    }
+
+    private static int hash(long key){
+        long h=key*0x9E3779B97F4A7C15L;
+        return (int)(h^(h>>>32));
+    }
+
+    private int[] getCell(long key){
+        int mask=cellKeys.length-1;
+        for(int i=hash(key)&mask;cellZones[i]!=null;i=(i+1)&mask){
+            if(cellKeys[i]==key){
+                return cellZones[i];
+            }
+        }
+        return null;
+    }
+
+    private void addToCell(long key, int zone){
+        int mask=cellKeys.length-1;
+        int i=hash(key)&mask;
+        while(cellZones[i]!=null && cellKeys[i]!=key){
+            i=(i+1)&mask;
+        }
+        int[] zones=cellZones[i];
+        if(zones==null){
+            zones=new int[4];
+            cellKeys[i]=key;
+            cellCount++;
+        }else if(zones[0]+1==zones.length){
+            zones=java.util.Arrays.copyOf(zones, zones.length*2);
+        }
+        zones[++zones[0]]=zone;
+        cellZones[i]=zones;
+
+        //keep the load factor below one half
+        if(cellCount*2>cellKeys.length){
+            rehash();
+        }
+    }
+
+    private void rehash(){
+        long[] oldKeys=cellKeys;
+        int[][] oldZones=cellZones;
+        cellKeys=new long[oldKeys.length*2];
+        cellZones=new int[oldKeys.length*2][];
+        int mask=cellKeys.length-1;
+        for(int j=0;j<oldKeys.length;j++){
+            if(oldZones[j]!=null){
+                int i=hash(oldKeys[j])&mask;
+                while(cellZones[i]!=null){
+                    i=(i+1)&mask;
+                }
+                cellKeys[i]=oldKeys[j];
+                cellZones[i]=oldZones[j];
+            }
+        }
+    }
+
+    /**
+     * Encode the zones as text, one zone per line:
+     * name,latitude,longitude,radius,rule
+     */
+    public String encode(){
+        StringBuilder sb=new StringBuilder();
+        for(int zone=0;zone<zoneCount;zone++){
+            sb.append(name[zone].replace(',', ' ').replace('\n', ' ')).append(',')
+            .append(latitude[zone]).append(',')
+            .append(longitude[zone]).append(',')
+            .append(radius[zone]).append(',')
+            .append(rule[zone]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Create an index from the output of encode.
+     * Lines which can not be parsed are skipped.
+     */
+    public static GeofenceIndex decode(String encoded){
+        GeofenceIndex index=new GeofenceIndex();
+        if(encoded==null){
+            return index;
+        }
+        String[] lines=encoded.split("\n");
+        for(String line:lines){
+            String[] fields=line.split(",");
+            if(fields.length!=5){
+                continue;
+            }
+            try {
+                index.addZone(fields[0], Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+                        Float.parseFloat(fields[3]), Integer.parseInt(fields[4]));
+            }catch (NumberFormatException e){
+                //skip the zone
+            }
+        }
+        return index;
+    }
+
+    public static String ruleName(int zoneRule){
+        switch(zoneRule){
+        case RULE_FORCE_ON: return "on";
+        case RULE_FORCE_OFF: return "off";
+        default: return "none";
+        }
+    }
+}
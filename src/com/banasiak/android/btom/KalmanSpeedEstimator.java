@@ -0,0 +1,177 @@
+package com.banasiak.android.btom;
+
+/**
+ * Incremental constant-velocity Kalman filter estimating speed
+ * from a stream of position fixes.
+ *
+ * Positions are projected onto a local east/north plane (in meters)
+ * around an origin which is moved along with the device. East and north
+ * are filtered independently, each with a [position, velocity] state and
+ * a 2x2 covariance, so every update is O(1) and allocation free.
+ *
+ * Each fix is weighted by its reported accuracy and time is kept
+ * in milliseconds, so fixes less than a second apart are still used.
+ *
+ * The process noise is white acceleration for short intervals, but the
+ * velocity noise of a step is capped at MAX_SPEED_CHANGE. Otherwise it
+ * grows with dt, and at the default one minute interval the filter
+ * takes every change twice over and oscillates.
+ */
+public class KalmanSpeedEstimator implements SpeedEstimator {
+    //used when a fix does not report its accuracy
+    private final static float DEFAULT_ACCURACY_M=50f;
+    //initial velocity uncertainty (meters/second) before we have seen two fixes
+    private final static double INITIAL_VELOCITY_SIGMA=30.0;
+    //move the origin when we are further away than this from it
+    private final static double REANCHOR_DISTANCE_M=10000.0;
+    //std. deviation of the speed change expected between two fixes, however far apart (meters/second)
+    private final static double MAX_SPEED_CHANGE=3.0;
+
+    //variance of the acceleration we expect, the square of the noise given in meters/second^2
+    private final double accelerationVariance;
+
+    private boolean initialized=false;
+    private long lastTime;
+    private double originLat;
+    private double originLon;
+    private double cosOriginLat;
+
+    //east axis: position, velocity and covariance (p00, p01, p11)
+    private double x, vx, px00, px01, px11;
+    //north axis
+    private double y, vy, py00, py01, py11;
+
+    public KalmanSpeedEstimator(float accelerationNoise){
+        this.accelerationVariance=(double) accelerationNoise*accelerationNoise;
+    }
+
+    public KalmanSpeedEstimator(){
+        this(2f);
+    }
+
+    @Override
+    public void reset(){
+        initialized=false;
+    }
+
+    @Override
+    public void onFixAdded(LocationHistory history){
+        update(history.getLatitude(0), history.getLongitude(0), history.getTime(0), history.getAccuracy(0));
+    }
+
+    /**
+     * Feed a new fix to the filter.
+     * Fixes older than the last accepted fix are ignored.
+     *
+     * @param accuracy reported accuracy in meters, NaN or <=0 if unknown
+     */
+    public void update(double lat, double lon, long timeMillis, float accuracy){
+        if(Float.isNaN(accuracy) || accuracy<=0f){
+            accuracy=DEFAULT_ACCURACY_M;
+        }
+        double r=(double) accuracy*accuracy;
+
+        if(!initialized){
+            setOrigin(lat, lon);
+            x=0; vx=0; px00=r; px01=0; px11=INITIAL_VELOCITY_SIGMA*INITIAL_VELOCITY_SIGMA;
+            y=0; vy=0; py00=r; py01=0; py11=INITIAL_VELOCITY_SIGMA*INITIAL_VELOCITY_SIGMA;
+            lastTime=timeMillis;
+            initialized=true;
+            return;
+        }
+
+        long dtMillis=timeMillis-lastTime;
+        if(dtMillis<0){
+            return;
+        }
+        if(dtMillis>0){
+            predict(dtMillis/1000.0);
+            lastTime=timeMillis;
+        }
+
+        double east=Math.toRadians(lon-originLon)*cosOriginLat*GeoDistance.EARTH_RADIUS_M;
+        double north=Math.toRadians(lat-originLat)*GeoDistance.EARTH_RADIUS_M;
+
+        //east axis
+        double s=px00 + r;
+        double k0=px00/s;
+        double k1=px01/s;
+        double innovation=east-x;
+        x+=k0*innovation;
+        vx+=k1*innovation;
+        px11-=k1*px01;
+        px01*=(1-k0);
+        px00*=(1-k0);
+
+        //north axis
+        s=py00 + r;
+        k0=py00/s;
+        k1=py01/s;
+        innovation=north-y;
+        y+=k0*innovation;
+        vy+=k1*innovation;
+        py11-=k1*py01;
+        py01*=(1-k0);
+        py00*=(1-k0);
+
+        if(Math.abs(x)>REANCHOR_DISTANCE_M || Math.abs(y)>REANCHOR_DISTANCE_M){
+            reanchor();
+        }
+    }
+
+    private void predict(double dt){
+        double dt2=dt*dt;
+        //the velocity changes somewhere in the interval, so the position takes part of it
+        double q11=Math.min(accelerationVariance*dt2, MAX_SPEED_CHANGE*MAX_SPEED_CHANGE);
+        double q00=q11*dt2/3;
+        double q01=q11*dt/2;
+
+        x+=vx*dt;
+        px00+=2*dt*px01 + dt2*px11 + q00;
+        px01+=dt*px11 + q01;
+        px11+=q11;
+
+        y+=vy*dt;
+        py00+=2*dt*py01 + dt2*py11 + q00;
+        py01+=dt*py11 + q01;
+        py11+=q11;
+    }
+
+    private void setOrigin(double lat, double lon){
+        originLat=lat;
+        originLon=lon;
+        cosOriginLat=Math.cos(Math.toRadians(lat));
+    }
+
+    /**
+     * Move the origin to the current estimated position so the
+     * flat projection stays accurate on long drives
+     */
+    private void reanchor(){
+        double lat=originLat + Math.toDegrees(y/GeoDistance.EARTH_RADIUS_M);
+        double lon=originLon + Math.toDegrees(x/(GeoDistance.EARTH_RADIUS_M*cosOriginLat));
+        setOrigin(lat, lon);
+        x=0;
+        y=0;
+    }
+
+    public boolean hasEstimate(){
+        return initialized;
+    }
+
+    @Override
+    public float getSpeed(){
+        if(!initialized){
+            return 0f;
+        }
+        return (float) Math.sqrt(vx*vx + vy*vy);
+    }
+
+    @Override
+    public float getSpeedVariance(){
+        if(!initialized){
+            return Float.MAX_VALUE;
+        }
+        return SpeedEstimators.speedVariance(vx, vy, px11, py11);
+    }
+}
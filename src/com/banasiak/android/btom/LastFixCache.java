@@ -0,0 +1,99 @@
+package com.banasiak.android.btom;
+
+/**
+ * Keeps the best recent fix, so the disconnect path can tell where we
+ * parked without asking the LocationManager.
+ *
+ * Fixes are ranked by accuracy, but the accuracy of the cached fix is
+ * worsened with its age (we may have moved since), so a newer fix
+ * replaces it as soon as it is about as good. Nothing is allocated
+ * when a fix is offered.
+ */
+public class LastFixCache {
+    public final static long DEFAULT_MAX_AGE_MS=5*60*1000L;
+    //how fast the cached fix is assumed to get worse, in meters pr second
+    public final static float DEFAULT_DEGRADE_SPEED_MS=2f;
+    //used when a fix does not report its accuracy
+    private final static float UNKNOWN_ACCURACY_M=500f;
+
+    private final long maxAge;
+    private final float degradeSpeed;
+
+    private boolean hasFix=false;
+    private double latitude;
+    private double longitude;
+    private long time;
+    private float accuracy;
+    private int provider;
+
+    public LastFixCache(){
+        this(DEFAULT_MAX_AGE_MS, DEFAULT_DEGRADE_SPEED_MS);
+    }
+
+    public LastFixCache(long maxAge, float degradeSpeed){
+        this.maxAge=maxAge;
+        this.degradeSpeed=degradeSpeed;
+    }
+
+    /**
+     * Offer a fix, it is kept if it is newer and about as good as the cached one
+     * @param accuracy reported accuracy in meters, NaN if unknown
+     * @return true if the fix was kept
+     */
+    public boolean offer(double lat, double lon, long timeMillis, float accuracy, int providerId){
+        if(Float.isNaN(accuracy) || accuracy<=0f){
+            accuracy=UNKNOWN_ACCURACY_M;
+        }
+        if(hasFix && (timeMillis<time || accuracy>getEffectiveAccuracy(timeMillis))){
+            return false;
+        }
+        hasFix=true;
+        latitude=lat;
+        longitude=lon;
+        time=timeMillis;
+        this.accuracy=accuracy;
+        provider=providerId;
+        return true;
+    }
+
+    /**
+     * @return the accuracy of the cached fix, worsened by its age at now
+     */
+    public float getEffectiveAccuracy(long now){
+        if(!hasFix){
+            return Float.MAX_VALUE;
+        }
+        return accuracy+Math.max(0, now-time)*degradeSpeed/1000f;
+    }
+
+    /**
+     * @return true if there is a fix which is not older than the maximum age
+     */
+    public boolean isUsable(long now){
+        return hasFix && now-time<=maxAge;
+    }
+
+    public boolean hasFix(){
+        return hasFix;
+    }
+
+    public void clear(){
+        hasFix=false;
+    }
+
+    public double getLatitude(){
+        return latitude;
+    }
+    public double getLongitude(){
+        return longitude;
+    }
+    public long getTime(){
+        return time;
+    }
+    public float getAccuracy(){
+        return accuracy;
+    }
+    public int getProvider(){
+        return provider;
+    }
+}
@@ -0,0 +1,88 @@
+package com.banasiak.android.btom;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * What the service has learned, kept in a SharedPreferences file of its own
+ *
+ * The config file of BluetoothOnMotionPreferences is written by the
+ * activity. The service runs in another process with its own cached copy
+ * of that file, and a commit from there would write the whole stale copy
+ * back over the user's newer settings. So the service writes only this
+ * file, and the activity never touches it.
+ *
+ * The stores commit at once, they are called from the worker thread of
+ * the service and only when the learned state has changed.
+ */
+public class LearnedPreferences {
+	public final static String PREFERENCES_ID="onmotion_learned";
+
+	private final static String KEY_COMMUTE_PATTERNS="commutePatterns";
+	private final static String KEY_CONNECT_LATENCIES="connectLatencies";
+	private final static String KEY_TUNED_SAMPLING="tunedSampling";
+
+	private SharedPreferences preferences;
+	//the config file, where older versions kept the learned state. Only read
+	private SharedPreferences legacyPreferences;
+
+	public LearnedPreferences(Context context){
+		preferences = context.getSharedPreferences(PREFERENCES_ID, 0);
+		legacyPreferences = context.getSharedPreferences(BluetoothOnMotionPreferences.PREFERENCES_ID, 0);
+	}
+
+	/**
+	 * @return the value in this file, or else the one an older version left in the config file
+	 */
+	private String getString(String key){
+		if(preferences.contains(key)){
+			return preferences.getString(key, "");
+		}
+		return legacyPreferences.getString(key, "");
+	}
+
+	private void putString(String key, String value){
+		SharedPreferences.Editor editor = preferences.edit();
+		editor.putString(key, value);
+		editor.commit();
+	}
+
+	/**
+	 * Store the learned commute patterns
+	 *
+	 * @param commutePatterns the patterns, as returned by CommutePredictor.encode
+	 */
+	public void storeCommutePatterns(String commutePatterns){
+		putString(KEY_COMMUTE_PATTERNS, commutePatterns);
+	}
+
+	public String getCommutePatterns() {
+		return getString(KEY_COMMUTE_PATTERNS);
+	}
+
+	/**
+	 * Store the learned times from enabling bluetooth to a connect
+	 *
+	 * @param connectLatencies the histogram, as returned by ConnectWatchdog.encode
+	 */
+	public void storeConnectLatencies(String connectLatencies){
+		putString(KEY_CONNECT_LATENCIES, connectLatencies);
+	}
+
+	public String getConnectLatencies() {
+		return getString(KEY_CONNECT_LATENCIES);
+	}
+
+	/**
+	 * Store the GPS sampling the service has tuned
+	 *
+	 * @param tunedSampling the sampling, as returned by SamplingTuner.encode
+	 */
+	public void storeTunedSampling(String tunedSampling){
+		putString(KEY_TUNED_SAMPLING, tunedSampling);
+	}
+
+	public String getTunedSampling() {
+		return getString(KEY_TUNED_SAMPLING);
+	}
+}
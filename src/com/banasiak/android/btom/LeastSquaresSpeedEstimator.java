@@ -0,0 +1,96 @@
+package com.banasiak.android.btom;
+
+/**
+ * Fits a straight line through the newest fixes in the history
+ * (east and north position against time) and uses the slope as
+ * the velocity.
+ *
+ * Each fix is weighted by 1/accuracy^2, which also gives the
+ * variance of the slope directly.
+ */
+public class LeastSquaresSpeedEstimator implements SpeedEstimator {
+    //used when a fix does not report its accuracy
+    private final static float DEFAULT_ACCURACY_M=50f;
+
+    private final int window;
+
+    private float speed=0f;
+    private float variance=Float.MAX_VALUE;
+
+    public LeastSquaresSpeedEstimator(int window){
+        if(window<2){
+            throw new IllegalArgumentException("window must be at least 2, was " + window);
+        }
+        this.window=window;
+    }
+
+    @Override
+    public void onFixAdded(LocationHistory history){
+        int n=Math.min(window, history.size());
+        if(n<2){
+            return;
+        }
+
+        //everything relative to the newest fix to keep the numbers small
+        double lat0=history.getLatitude(0);
+        double lon0=history.getLongitude(0);
+        long t0=history.getTime(0);
+        double metersPerDegLat=Math.toRadians(1)*GeoDistance.EARTH_RADIUS_M;
+        double metersPerDegLon=metersPerDegLat*history.getCosLatitude(0);
+
+        double sw=0, swt=0, swe=0, swn=0;
+        for(int i=0; i<n; i++){
+            double w=weight(history.getAccuracy(i));
+            double t=(history.getTime(i)-t0)/1000.0;
+            sw+=w;
+            swt+=w*t;
+            swe+=w*(history.getLongitude(i)-lon0)*metersPerDegLon;
+            swn+=w*(history.getLatitude(i)-lat0)*metersPerDegLat;
+        }
+        double tMean=swt/sw;
+        double eMean=swe/sw;
+        double nMean=swn/sw;
+
+        double stt=0, ste=0, stn=0;
+        for(int i=0; i<n; i++){
+            double w=weight(history.getAccuracy(i));
+            double dt=(history.getTime(i)-t0)/1000.0-tMean;
+            stt+=w*dt*dt;
+            ste+=w*dt*((history.getLongitude(i)-lon0)*metersPerDegLon-eMean);
+            stn+=w*dt*((history.getLatitude(i)-lat0)*metersPerDegLat-nMean);
+        }
+        if(stt<=0){
+            //all fixes have the same time
+            return;
+        }
+
+        double vEast=ste/stt;
+        double vNorth=stn/stt;
+        double slopeVariance=1.0/stt;
+        speed=(float) Math.sqrt(vEast*vEast + vNorth*vNorth);
+        variance=SpeedEstimators.speedVariance(vEast, vNorth, slopeVariance, slopeVariance);
+    }
+
+    private static double weight(float accuracy){
+        if(Float.isNaN(accuracy) || accuracy<=0f){
+            accuracy=DEFAULT_ACCURACY_M;
+        }
+        return 1.0/((double) accuracy*accuracy);
+    }
+
+    @Override
+    public float getSpeed(){
+        return speed;
+    }
+
+    @Override
+    public float getSpeedVariance(){
+        return variance;
+    }
+
+    @Override
+    public void reset(){
+        speed=0f;
+        variance=Float.MAX_VALUE;
+    }
+}
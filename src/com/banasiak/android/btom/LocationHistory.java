@@ -1,16 +1,17 @@
 package com.banasiak.android.btom;
 
-import java.util.LinkedList;
-
-import android.location.Location;
-import android.util.Log;
-
 /**
  * Stores previous locations discovered in 
  * a datastructure of fixed size.
  * 
  * Locations should be added sorted according to time
  * 
+ * The history is a ring buffer backed by parallel primitive arrays,
+ * so adding a location does not allocate and does not keep a reference
+ * to the Location object (or its extras Bundle). The service takes the
+ * values out of the Location, the history has no android dependency. Index 0 is always the
+ * newest entry, index size()-1 the oldest.
+ *
  * Also has responsibility of calculating the estimated speed
  * based on previous events
  * 
@@ -18,24 +19,143 @@ import android.util.Log;
  *
  */
 public class LocationHistory {
+	//provider ids stored instead of the provider string
+	public final static int PROVIDER_UNKNOWN=0;
+	public final static int PROVIDER_NETWORK=1;
+	public final static int PROVIDER_GPS=2;
+
+	//the names of LocationManager.NETWORK_PROVIDER and GPS_PROVIDER
+	private final static String PROVIDER_NAME_NETWORK="network";
+	private final static String PROVIDER_NAME_GPS="gps";
+
 	int maxSize;
-	LinkedList<Location> listLocation;
-	
-	
+	//number of valid entries
+	int size;
+	//position where the next entry will be written
+	int head;
+
+	double[] latitude;
+	double[] longitude;
+	//cached for the distance kernel
+	double[] cosLatitude;
+	long[] time;
+	//accuracy and speed are NaN if the fix did not report them
+	float[] accuracy;
+	float[] speed;
+	int[] provider;
+
+	private final GeoDistance geoDistance;
+
 	public LocationHistory (int maxSize){
+		this(maxSize, GeoDistance.DEFAULT);
+	}
+
+	public LocationHistory (int maxSize, GeoDistance geoDistance){
+		if(maxSize<1){
+			throw new IllegalArgumentException("maxSize must be at least 1, was " + maxSize);
+		}
 		this.maxSize=maxSize;
-		listLocation= new LinkedList<Location>();
+		this.geoDistance=geoDistance;
+		latitude = new double[maxSize];
+		longitude = new double[maxSize];
+		cosLatitude = new double[maxSize];
+		time = new long[maxSize];
+		accuracy = new float[maxSize];
+		speed = new float[maxSize];
+		provider = new int[maxSize];
 	}
 	
-	public void addLocation(Location newLocation){
-		listLocation.addFirst(newLocation);
-		
-		//delete the last element if we larger than max size
-		if(listLocation.size()> maxSize){
-			listLocation.removeLast();
+	/**
+	 * Add a fix, with the values of a Location object.
+	 * The oldest entry is overwritten when the history is full.
+	 */
+	public void addFix(double lat, double lon, long timeMillis, float acc, float spd, int providerId){
+		latitude[head]=lat;
+		longitude[head]=lon;
+		cosLatitude[head]=GeoDistance.cosLatitude(lat);
+		time[head]=timeMillis;
+		accuracy[head]=acc;
+		speed[head]=spd;
+		provider[head]=providerId;
+
+		head++;
+		if(head==maxSize){
+			head=0;
+		}
+		if(size<maxSize){
+			size++;
 		}
 	}
-	
+
+	public void clear(){
+		size=0;
+		head=0;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public int getMaxSize(){
+		return maxSize;
+	}
+
+	/**
+	 * Translate an index where 0 is the newest entry
+	 * into the position in the backing arrays
+	 */
+	private int slot(int index){
+		if(index<0 || index>=size){
+			throw new IndexOutOfBoundsException("Index " + index + " size " + size);
+		}
+		int pos=head-1-index;
+		if(pos<0){
+			pos+=maxSize;
+		}
+		return pos;
+	}
+
+	public double getLatitude(int index){
+		return latitude[slot(index)];
+	}
+	public double getLongitude(int index){
+		return longitude[slot(index)];
+	}
+	public double getCosLatitude(int index){
+		return cosLatitude[slot(index)];
+	}
+	public long getTime(int index){
+		return time[slot(index)];
+	}
+	public float getAccuracy(int index){
+		return accuracy[slot(index)];
+	}
+	public float getSpeed(int index){
+		return speed[slot(index)];
+	}
+	public int getProvider(int index){
+		return provider[slot(index)];
+	}
+
+	public static int toProviderId(String providerName){
+		if(PROVIDER_NAME_GPS.equals(providerName)){
+			return PROVIDER_GPS;
+		}else if(PROVIDER_NAME_NETWORK.equals(providerName)){
+			return PROVIDER_NETWORK;
+		}
+		return PROVIDER_UNKNOWN;
+	}
+
+	/**
+	 * Distance in meters between two entries in the history
+	 */
+	public double distanceBetween(int index1, int index2){
+		int pos1=slot(index1);
+		int pos2=slot(index2);
+		return geoDistance.distance(latitude[pos1], longitude[pos1], cosLatitude[pos1],
+				latitude[pos2], longitude[pos2], cosLatitude[pos2]);
+	}
+
 	/**
 	 * Gets estimated speed in meters pr second
 	 * 
@@ -44,28 +164,16 @@ public class LocationHistory {
 	 * @return
 	 */
 	public float getEstimatedSpeed(){
-		try{ 
-			Location currentLocation= listLocation.getFirst();
-			Location lastLocation=listLocation.get(1);
-			
-			if(currentLocation!= null && lastLocation!=null){
-				long timeMillis= currentLocation.getTime() - lastLocation.getTime();
-				if(timeMillis/1000==0){
-					return 0f;
-				}
-				
-				float distance = currentLocation.distanceTo(lastLocation);
-				return distance/(float)(timeMillis/1000); 
-			}else {
-				return 0f;
-			}
-		}catch (IndexOutOfBoundsException e) {
+		if(size<2){
 			return 0f;
-			// TODO: handle exception
-		}catch (Throwable t){
-	    	Log.w(this.getClass().getName(), "Got exception during getEstimated speed",t);
-	    	return 0f;
 		}
+		//keep the milliseconds, fixes less than a second apart are still valid
+		long timeMillis= getTime(0) - getTime(1);
+		if(timeMillis<=0){
+			return 0f;
+		}
+
+		return (float)(distanceBetween(0, 1)*1000.0/timeMillis);
 	}
 	
 }
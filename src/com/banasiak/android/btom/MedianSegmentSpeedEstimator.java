@@ -0,0 +1,101 @@
+package com.banasiak.android.btom;
+
+/**
+ * Uses the median of the speeds between consecutive fixes
+ * in the newest part of the history, so a single jumping fix
+ * does not change the estimate.
+ */
+public class MedianSegmentSpeedEstimator implements SpeedEstimator {
+    //used when a fix does not report its accuracy
+    private final static float DEFAULT_ACCURACY_M=50f;
+
+    private final int window;
+    //scratch buffers reused for every fix
+    private final float[] segmentSpeeds;
+    private final float[] deviations;
+
+    private float speed=0f;
+    private float variance=Float.MAX_VALUE;
+
+    public MedianSegmentSpeedEstimator(int window){
+        if(window<2){
+            throw new IllegalArgumentException("window must be at least 2, was " + window);
+        }
+        this.window=window;
+        segmentSpeeds=new float[window-1];
+        deviations=new float[window-1];
+    }
+
+    @Override
+    public void onFixAdded(LocationHistory history){
+        int n=Math.min(window, history.size());
+        int segments=0;
+        //variance of the segment speeds from the accuracy of their fixes, summed
+        double accuracyVariance=0;
+        for(int i=0; i<n-1; i++){
+            long timeMillis=history.getTime(i)-history.getTime(i + 1);
+            if(timeMillis<=0){
+                continue;
+            }
+            double distance=history.distanceBetween(i, i + 1);
+            segmentSpeeds[segments++]=(float) (distance*1000.0/timeMillis);
+            float acc0=accuracyOf(history.getAccuracy(i));
+            float acc1=accuracyOf(history.getAccuracy(i + 1));
+            double seconds=timeMillis/1000.0;
+            accuracyVariance+=(acc0*acc0 + acc1*acc1)/(seconds*seconds);
+        }
+        if(segments==0){
+            return;
+        }
+
+        speed=median(segmentSpeeds, segments);
+        //median absolute deviation scaled to a standard deviation
+        for(int i=0; i<segments; i++){
+            deviations[i]=Math.abs(segmentSpeeds[i]-speed);
+        }
+        float sigma=1.4826f*median(deviations, segments);
+        //one segment, or any number of identical ones, have no deviation at all,
+        //the accuracy of the fixes sets a floor
+        variance=Math.max(sigma*sigma/segments, (float) (accuracyVariance/segments/segments));
+    }
+
+    private static float accuracyOf(float accuracy){
+        return (Float.isNaN(accuracy) || accuracy<=0f) ? DEFAULT_ACCURACY_M : accuracy;
+    }
+
+    /**
+     * Median of the first count values. Sorts them in place,
+     * the windows are small so insertion sort is fine.
+     */
+    private static float median(float[] values, int count){
+        for(int i=1; i<count; i++){
+            float v=values[i];
+            int j=i-1;
+            while(j>=0 && values[j]>v){
+                values[j + 1]=values[j];
+                j--;
+            }
+            values[j + 1]=v;
+        }
+        if((count & 1)==1){
+            return values[count/2];
+        }
+        return (values[count/2-1] + values[count/2])/2f;
+    }
+
+    @Override
+    public float getSpeed(){
+        return speed;
+    }
+
+    @Override
+    public float getSpeedVariance(){
+        return variance;
+    }
+
+    @Override
+    public void reset(){
+        speed=0f;
+        variance=Float.MAX_VALUE;
+    }
+}
@@ -0,0 +1,507 @@
+package com.banasiak.android.btom;
+
+/**
+ * The decision logic of the application, without any android
+ * dependencies so it can also run outside of the service
+ * (trace replay, simulations, benchmarks).
+ *
+ * Every fix goes through
+ *   ProviderFusion -> FixGate -> LocationHistory -> SpeedEstimator
+ * and the decisions are made by
+ *   GeofenceIndex, MotionStateMachine and CommutePredictor
+ * The SamplingScheduler is kept up to date along the way. A fix the
+ * ProviderFusion holds is kept here until a better fix replaces it, or
+ * it is processed when the dedupe window has passed (in onLocation or
+ * onTick). A FixListener is told about every fix that is processed.
+ *
+ * Time is always passed in by the caller, so a virtual clock can be
+ * used. The controller does not touch bluetooth itself, it returns a
+ * decision and the caller carries it out. The caller must also tell the
+ * controller about the bluetooth state it does not decide itself
+ * (setBluetoothEnabled, setConnectedDevices).
+ */
+public class MotionController {
+    public final static int DECISION_NONE=0;
+    public final static int DECISION_ENABLE=1;
+    public final static int DECISION_DISABLE=2;
+
+    public final static int REASON_NONE=0;
+    public final static int REASON_SPEED=1;
+    public final static int REASON_STATIONARY_TIMEOUT=2;
+    public final static int REASON_ZONE=3;
+    public final static int REASON_COMMUTE=4;
+    public final static int REASON_COMMUTE_MISSED=5;
+    //not decided here, the service disables bluetooth when a device disconnects
+    public final static int REASON_DISCONNECTED=6;
+    //not decided here, the service disables bluetooth when no device connected in time
+    public final static int REASON_CONNECT_TIMEOUT=7;
+
+    //what happened to the last fix
+    //DRIVING is never left for lack of fixes sooner than this
+    private final static long MIN_NO_FIX_TIMEOUT_MS=60*1000L;
+
+    public final static int FIX_PROCESSED=0;
+    public final static int FIX_NOT_FUSED=1;
+    public final static int FIX_REJECTED=2;
+
+    /**
+     * Told about every fix which went into the history, also a held fix
+     * processed after the event which delivered it
+     */
+    public interface FixListener {
+        /**
+         * @param accuracy the reported accuracy in meters, NaN if unknown
+         * @param gateResult the FixGate result, one of its accepted values
+         */
+        void onFixProcessed(int providerId, double lat, double lon, long timeMillis, float accuracy, int gateResult);
+    }
+
+    private final LocationHistory locationHistory;
+    private final ProviderFusion providerFusion;
+    private final FixGate fixGate;
+    private final CommutePredictor commutePredictor;
+
+    private MotionSettings settings;
+    private SpeedEstimator speedEstimator;
+    private MotionStateMachine motionStateMachine;
+    private SamplingScheduler samplingScheduler;
+    private GeofenceIndex geofenceIndex;
+
+    private int currentZone=-1;
+    private int currentZoneRule=GeofenceIndex.RULE_NONE;
+
+    //bluetooth state, as far as we know
+    private boolean bluetoothEnabled=false;
+    private int connectedDevices=0;
+    //bluetooth was enabled by a prediction, and not by the speed
+    private boolean enabledByPrediction=false;
+
+    //results of the last event
+    private int lastFixResult=FIX_PROCESSED;
+    private int lastFixDetail;
+    private int decisionReason=REASON_NONE;
+    private float speed=0f;
+    private float speedForChange=0f;
+    private boolean reRegistrationNeeded=false;
+
+    //the fix the ProviderFusion holds, processed at heldUntil unless a better one comes
+    private int heldProvider;
+    private double heldLatitude;
+    private double heldLongitude;
+    private long heldTime;
+    private float heldAccuracy;
+    private float heldSpeed;
+    private long heldUntil=-1;
+
+    private FixListener fixListener;
+
+    public MotionController(MotionSettings settings){
+        this(settings, new CommutePredictor());
+    }
+
+    public MotionController(MotionSettings settings, CommutePredictor commutePredictor){
+        locationHistory=new LocationHistory(SpeedEstimators.REQUIRED_HISTORY_SIZE);
+        providerFusion=new ProviderFusion();
+        fixGate=new FixGate();
+        this.commutePredictor=commutePredictor;
+        applySettings(settings);
+    }
+
+    /**
+     * Use new settings. The history, the gate, the fusion and the learned
+     * commutes are kept, and so is the speed estimator if it is the same.
+     * The state machine and the sampling scheduler take the new values
+     * but keep their state and statistics, and the zones are only read
+     * again if they changed.
+     */
+    public void applySettings(MotionSettings newSettings){
+        if(speedEstimator==null || !newSettings.speedEstimator.equals(settings.speedEstimator)){
+            speedEstimator=SpeedEstimators.create(newSettings.speedEstimator);
+        }
+        if(geofenceIndex==null || !newSettings.geofences.equals(settings.geofences)){
+            geofenceIndex=GeofenceIndex.decode(newSettings.geofences);
+            currentZone=-1;
+            currentZoneRule=GeofenceIndex.RULE_NONE;
+        }
+        settings=newSettings;
+        if(motionStateMachine==null){
+            motionStateMachine=new MotionStateMachine(settings.minSpeedForChange, settings.maxSpeedForDisable,
+                    settings.enableDwell, settings.drivingDwell, settings.stationaryTimeout, getNoFixTimeout(settings));
+            samplingScheduler=new SamplingScheduler(settings.minTimeNetwork, settings.minDistanceNetwork,
+                    settings.minTimeGPS, settings.minDistanceGPS, settings.minSpeedForChange);
+        }else {
+            motionStateMachine.configure(settings.minSpeedForChange, settings.maxSpeedForDisable,
+                    settings.enableDwell, settings.drivingDwell, settings.stationaryTimeout, getNoFixTimeout(settings));
+            samplingScheduler.configure(settings.minTimeNetwork, settings.minDistanceNetwork,
+                    settings.minTimeGPS, settings.minDistanceGPS, settings.minSpeedForChange);
+        }
+    }
+
+    /**
+     * @return milliseconds without fixes after which we can not be driving: twice
+     * the longest time a provider needs for a fix at the disable speed
+     */
+    static long getNoFixTimeout(MotionSettings settings){
+        float disableSpeed=Math.max(settings.maxSpeedForDisable, MotionStateMachine.MOVING_SPEED_MS);
+        long network=Math.max(settings.minTimeNetwork, (long)(settings.minDistanceNetwork*1000/disableSpeed));
+        long gps=Math.max(settings.minTimeGPS, (long)(settings.minDistanceGPS*1000/disableSpeed));
+        return Math.max(MIN_NO_FIX_TIMEOUT_MS, 2*Math.max(network, gps));
+    }
+
+    /**
+     * Process a fix from a location provider
+     *
+     * @param providerId one of LocationHistory.PROVIDER_*
+     * @param accuracy reported accuracy in meters, NaN if unknown
+     * @param reportedSpeed speed reported by the provider, NaN if unknown
+     * @param now current time, the same time base as the fix times
+     * @return DECISION_ENABLE, DECISION_DISABLE or DECISION_NONE, see getDecisionReason
+     */
+    public int onLocation(int providerId, double lat, double lon, long timeMillis, float accuracy, float reportedSpeed, long now){
+        decisionReason=REASON_NONE;
+        samplingScheduler.onFix(providerId);
+
+        int decision=DECISION_NONE;
+        if(providerFusion.mustRelease(providerId, timeMillis)){
+            decision=releaseHeld(now);
+        }
+        int fusionResult=providerFusion.offer(providerId, timeMillis, accuracy);
+        if(!providerFusion.isHolding()){
+            heldUntil=-1;
+        }
+        if(fusionResult==ProviderFusion.HELD){
+            heldProvider=providerId;
+            heldLatitude=lat;
+            heldLongitude=lon;
+            heldTime=timeMillis;
+            heldAccuracy=accuracy;
+            heldSpeed=reportedSpeed;
+            heldUntil=now+providerFusion.getDedupeWindow();
+        }
+        if(fusionResult!=ProviderFusion.FUSED){
+            lastFixResult=FIX_NOT_FUSED;
+            lastFixDetail=fusionResult;
+            return decision;
+        }
+        return combine(decision, processFix(providerId, lat, lon, timeMillis, accuracy, reportedSpeed, now));
+    }
+
+    /**
+     * The held fix had no better fix in its window, process it now
+     */
+    private int releaseHeld(long now){
+        providerFusion.release();
+        heldUntil=-1;
+        return processFix(heldProvider, heldLatitude, heldLongitude, heldTime, heldAccuracy, heldSpeed, now);
+    }
+
+    /**
+     * Run a fused fix through the gate, the history and the decisions
+     */
+    private int processFix(int providerId, double lat, double lon, long timeMillis, float accuracy, float reportedSpeed, long now){
+        int gateResult=fixGate.check(lat, lon, timeMillis, accuracy, now);
+        if(!FixGate.isAccepted(gateResult)){
+            lastFixResult=FIX_REJECTED;
+            lastFixDetail=gateResult;
+            return DECISION_NONE;
+        }
+        lastFixResult=FIX_PROCESSED;
+        lastFixDetail=gateResult;
+
+        locationHistory.addFix(lat, lon, timeMillis, fixGate.getAdjustedAccuracy(), reportedSpeed, providerId);
+        speedEstimator.onFixAdded(locationHistory);
+        if(!Float.isNaN(reportedSpeed)){
+            speed=reportedSpeed;
+            speedForChange=speed;
+        }else {
+            //use the lower end of the estimate, so a single noisy
+            //fix does not push us over the threshold
+            speed=speedEstimator.getSpeed();
+            speedForChange=speed-(float)Math.sqrt(speedEstimator.getSpeedVariance());
+        }
+
+        int decision=updateZone(lat, lon);
+
+        int action=motionStateMachine.onSpeed(speedForChange, now);
+        decision=combine(decision, motionDecision(action));
+
+        int prediction=commutePredictor.onMotionState(motionStateMachine.getState(), lat, lon, now);
+        decision=combine(decision, predictionDecision(prediction));
+
+        if(samplingScheduler.update(motionStateMachine.getState(), speedForChange, connectedDevices>0, now)){
+            reRegistrationNeeded=true;
+        }
+        if(fixListener!=null){
+            fixListener.onFixProcessed(providerId, lat, lon, timeMillis, accuracy, gateResult);
+        }
+        return decision;
+    }
+
+    /**
+     * Run the timeouts, must be called at getNextDeadline even if no fixes arrive
+     */
+    public int onTick(long now){
+        decisionReason=REASON_NONE;
+        int decision=DECISION_NONE;
+        if(heldUntil>=0 && now>=heldUntil){
+            decision=releaseHeld(now);
+        }
+        decision=combine(decision, motionDecision(motionStateMachine.onTick(now)));
+        //the state may have changed without a fix, or a held back registration is due
+        updateSamplingSchedule(now);
+        return decision;
+    }
+
+    /**
+     * @return when onTick should be called next, -1 if there is nothing to wait for
+     */
+    public long getNextDeadline(){
+        return earliest(earliest(motionStateMachine.getNextDeadline(), heldUntil), samplingScheduler.getRetryTime());
+    }
+
+    /**
+     * @return the earlier of two deadlines, where -1 is none
+     */
+    private static long earliest(long first, long second){
+        if(first<0){
+            return second;
+        }
+        if(second<0){
+            return first;
+        }
+        return Math.min(first, second);
+    }
+
+    public void setFixListener(FixListener fixListener){
+        this.fixListener=fixListener;
+    }
+
+    /**
+     * A device has connected to the bluetooth
+     * @param connectedDevices all devices connected now, trigger devices or not
+     */
+    public void onConnected(int connectedDevices, long now){
+        this.connectedDevices=connectedDevices;
+        bluetoothEnabled=true;
+        updateSamplingSchedule(now);
+    }
+
+    /**
+     * A device has disconnected, but bluetooth is kept on
+     * @param connectedDevices all devices still connected
+     */
+    public void onDeviceDisconnected(int connectedDevices, long now){
+        this.connectedDevices=connectedDevices;
+        updateSamplingSchedule(now);
+    }
+
+    /**
+     * Bluetooth has been turned off after a disconnect,
+     * start over so the next drive enables it again
+     */
+    public void onDisconnected(long now){
+        connectedDevices=0;
+        bluetoothEnabled=false;
+        enabledByPrediction=false;
+        motionStateMachine.reset(now);
+        updateSamplingSchedule(now);
+    }
+
+    /**
+     * Let the sampling scheduler look at its profile again, for example after new settings
+     */
+    public void updateSamplingSchedule(long now){
+        if(samplingScheduler.update(motionStateMachine.getState(), speed, connectedDevices>0, now)){
+            reRegistrationNeeded=true;
+        }
+    }
+
+    /**
+     * Keep the first decision unless a later one changes it
+     */
+    private static int combine(int first, int second){
+        return second==DECISION_NONE ? first : second;
+    }
+
+    /**
+     * Check if we have entered or left one of the geofence zones,
+     * and apply the rule of the zone when entering it
+     */
+    private int updateZone(double lat, double lon){
+        int zone=geofenceIndex.lookup(lat, lon);
+        if(zone==currentZone){
+            return DECISION_NONE;
+        }
+        currentZone=zone;
+        currentZoneRule = zone<0 ? GeofenceIndex.RULE_NONE : geofenceIndex.getRule(zone);
+        if(currentZoneRule==GeofenceIndex.RULE_FORCE_ON && !bluetoothEnabled){
+            return decide(DECISION_ENABLE, REASON_ZONE);
+        }else if(currentZoneRule==GeofenceIndex.RULE_FORCE_OFF && connectedDevices==0 && bluetoothEnabled){
+            return decide(DECISION_DISABLE, REASON_ZONE);
+        }
+        return DECISION_NONE;
+    }
+
+    /**
+     * What the motion state machine decided, unless the zone we are in says otherwise
+     */
+    private int motionDecision(int action){
+        if(action==MotionStateMachine.ACTION_ENABLE){
+            if(currentZoneRule!=GeofenceIndex.RULE_FORCE_OFF && !bluetoothEnabled){
+                return decide(DECISION_ENABLE, REASON_SPEED);
+            }
+        }else if(action==MotionStateMachine.ACTION_DISABLE){
+            //never cut an active connection, the disconnect will turn it off
+            if(currentZoneRule!=GeofenceIndex.RULE_FORCE_ON && connectedDevices==0 && bluetoothEnabled){
+                return decide(DECISION_DISABLE, REASON_STATIONARY_TIMEOUT);
+            }
+        }
+        return DECISION_NONE;
+    }
+
+    /**
+     * Enable bluetooth early when a known commute starts,
+     * and turn it off again if the drive did not happen
+     */
+    private int predictionDecision(int prediction){
+        int decision=DECISION_NONE;
+        if(prediction==CommutePredictor.PREDICT_ENABLE){
+            if(currentZoneRule!=GeofenceIndex.RULE_FORCE_OFF && !bluetoothEnabled){
+                decision=decide(DECISION_ENABLE, REASON_COMMUTE);
+                enabledByPrediction=true;
+            }
+        }else if(prediction==CommutePredictor.PREDICT_MISS){
+            if(enabledByPrediction && connectedDevices==0 && currentZoneRule!=GeofenceIndex.RULE_FORCE_ON
+                    && bluetoothEnabled){
+                decision=decide(DECISION_DISABLE, REASON_COMMUTE_MISSED);
+            }
+            enabledByPrediction=false;
+        }
+        if(motionStateMachine.getState()==MotionStateMachine.DRIVING){
+            enabledByPrediction=false;
+        }
+        return decision;
+    }
+
+    private int decide(int decision, int reason){
+        decisionReason=reason;
+        bluetoothEnabled = decision==DECISION_ENABLE;
+        return decision;
+    }
+
+    /**
+     * Tell the controller the actual state of the bluetooth adapter
+     */
+    public void setBluetoothEnabled(boolean enabled){
+        bluetoothEnabled=enabled;
+    }
+
+    public boolean isBluetoothEnabled(){
+        return bluetoothEnabled;
+    }
+
+    public int getConnectedDevices(){
+        return connectedDevices;
+    }
+
+    /**
+     * @return one of the REASON_* constants for the last decision
+     */
+    public int getDecisionReason(){
+        return decisionReason;
+    }
+
+    /**
+     * @return FIX_PROCESSED, FIX_NOT_FUSED or FIX_REJECTED for the last fix
+     */
+    public int getLastFixResult(){
+        return lastFixResult;
+    }
+
+    /**
+     * @return the ProviderFusion or FixGate result of the last fix
+     */
+    public int getLastFixDetail(){
+        return lastFixDetail;
+    }
+
+    /**
+     * @return true once after the sampling scheduler wants the location
+     * updates registered again
+     */
+    public boolean takeReRegistrationNeeded(){
+        boolean needed=reRegistrationNeeded;
+        reRegistrationNeeded=false;
+        return needed;
+    }
+
+    public float getSpeed(){
+        return speed;
+    }
+
+    public float getSpeedForChange(){
+        return speedForChange;
+    }
+
+    public int getMotionState(){
+        return motionStateMachine.getState();
+    }
+
+    public int getCurrentZone(){
+        return currentZone;
+    }
+
+    /**
+     * @return the GeofenceIndex.RULE_* of the zone we are in, RULE_NONE outside the zones
+     */
+    public int getCurrentZoneRule(){
+        return currentZoneRule;
+    }
+
+    public MotionSettings getSettings(){
+        return settings;
+    }
+
+    public LocationHistory getLocationHistory(){
+        return locationHistory;
+    }
+    public ProviderFusion getProviderFusion(){
+        return providerFusion;
+    }
+    public FixGate getFixGate(){
+        return fixGate;
+    }
+    public SpeedEstimator getSpeedEstimator(){
+        return speedEstimator;
+    }
+    public SamplingScheduler getSamplingScheduler(){
+        return samplingScheduler;
+    }
+    public GeofenceIndex getGeofenceIndex(){
+        return geofenceIndex;
+    }
+    public CommutePredictor getCommutePredictor(){
+        return commutePredictor;
+    }
+
+    public static String reasonName(int reason){
+        switch(reason){
+        case REASON_SPEED: return "speed";
+        case REASON_STATIONARY_TIMEOUT: return "stationary-timeout";
+        case REASON_ZONE: return "zone";
+        case REASON_COMMUTE: return "commute";
+        case REASON_COMMUTE_MISSED: return "commute-missed";
+        case REASON_DISCONNECTED: return "disconnected";
+        case REASON_CONNECT_TIMEOUT: return "connect-timeout";
+        default: return "none";
+        }
+    }
+
+    public static String decisionName(int decision){
+        switch(decision){
+        case DECISION_ENABLE: return "ENABLE";
+        case DECISION_DISABLE: return "DISABLE";
+        default: return "NONE";
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.banasiak.android.btom;
+
+/**
+ * Queue of location and bluetooth events (connections and adapter
+ * state changes) between the threads which
+ * receive them (the main thread) and the worker thread which runs the
+ * MotionController.
+ *
+ * Events come out in the order they went in. When the worker falls
+ * behind, a run of fixes without a bluetooth event between them is
+ * coalesced to its newest keepNewest fixes, so the worker does not
+ * evaluate positions which are already out of date. Fixes are never
+ * moved past a bluetooth event.
+ *
+ * The queue holds at most capacity events. When it is full the oldest
+ * fix is dropped to make room. Bluetooth events are rare and must not be
+ * lost, so if the queue is full of them it grows instead.
+ *
+ * The events are stored in parallel arrays and copied out by poll, so
+ * no objects are created pr event. Times are passed in by the caller
+ * (System.nanoTime on the device) and used for the lag metrics.
+ */
+public class MotionEventQueue {
+    public final static int EVENT_NONE=0;
+    public final static int EVENT_LOCATION=1;
+    public final static int EVENT_ACL_CONNECTED=2;
+    public final static int EVENT_ACL_DISCONNECTED=3;
+    public final static int EVENT_ADAPTER_STATE=4;
+
+    public final static int DEFAULT_CAPACITY=32;
+    public final static int DEFAULT_KEEP_NEWEST=3;
+
+    private final int capacity;
+    private final int keepNewest;
+
+    //ring buffer, head is the oldest event
+    private int head=0;
+    private int size=0;
+    private int[] type;
+    private long[] enqueueTime;
+    private double[] latitude;
+    private double[] longitude;
+    private long[] time;
+    private float[] accuracy;
+    private float[] speed;
+    private int[] provider;
+    //the device of a bluetooth event, as DeviceRegistry.toKey
+    private long[] device;
+    //the new state of an adapter state event
+    private int[] adapterState;
+
+    //the event returned by the last poll
+    private double currentLatitude;
+    private double currentLongitude;
+    private long currentTime;
+    private float currentAccuracy;
+    private float currentSpeed;
+    private int currentProvider;
+    private long currentDevice;
+    private int currentAdapterState;
+
+    //metrics
+    private long offeredCount=0;
+    private long processedCount=0;
+    private long coalescedCount=0;
+    private long droppedCount=0;
+    private int maxDepth=0;
+    private long lastLag=0;
+    private long maxLag=0;
+    private long totalLag=0;
+
+    public MotionEventQueue(){
+        this(DEFAULT_CAPACITY, DEFAULT_KEEP_NEWEST);
+    }
+
+    public MotionEventQueue(int capacity, int keepNewest){
+        if(keepNewest<1 || capacity<keepNewest){
+            throw new IllegalArgumentException("need 1 <= keepNewest <= capacity");
+        }
+        this.capacity=capacity;
+        this.keepNewest=keepNewest;
+        allocate(capacity);
+    }
+
+    /**
+     * Add a fix
+     * @param now the time used for the lag metrics
+     * @return true if the queue was empty, the worker must be woken up
+     */
+    public synchronized boolean offerLocation(double lat, double lon, long timeMillis, float acc, float spd, int providerId, long now){
+        offeredCount++;
+        boolean wasEmpty=size==0;
+
+        //fixes at the tail, after the last bluetooth event
+        int run=0;
+        while(run<size && type[slot(size-1-run)]==EVENT_LOCATION){
+            run++;
+        }
+        if(run>=keepNewest){
+            removeAt(size-run);
+            coalescedCount++;
+        }else if(size==capacity && !removeOldestLocation()){
+            //only bluetooth events, it is the new fix which has to go
+            droppedCount++;
+            return wasEmpty;
+        }
+        int pos=append(EVENT_LOCATION, now);
+        latitude[pos]=lat;
+        longitude[pos]=lon;
+        time[pos]=timeMillis;
+        accuracy[pos]=acc;
+        speed[pos]=spd;
+        provider[pos]=providerId;
+        return wasEmpty;
+    }
+
+    /**
+     * Add a bluetooth event, EVENT_ACL_CONNECTED or EVENT_ACL_DISCONNECTED
+     * @param deviceKey the device, as DeviceRegistry.toKey
+     * @return true if the queue was empty, the worker must be woken up
+     */
+    public synchronized boolean offerBluetooth(int eventType, long deviceKey, long now){
+        offeredCount++;
+        boolean wasEmpty=size==0;
+        if(size==capacity && !removeOldestLocation()){
+            grow();
+        }
+        int pos=append(eventType, now);
+        device[pos]=deviceKey;
+        return wasEmpty;
+    }
+
+    /**
+     * Add a change of the adapter state, EVENT_ADAPTER_STATE. It is kept
+     * in order with the other events, like a connection.
+     * @param state the new state of the adapter
+     * @return true if the queue was empty, the worker must be woken up
+     */
+    public synchronized boolean offerAdapterState(int state, long now){
+        offeredCount++;
+        boolean wasEmpty=size==0;
+        if(size==capacity && !removeOldestLocation()){
+            grow();
+        }
+        int pos=append(EVENT_ADAPTER_STATE, now);
+        adapterState[pos]=state;
+        return wasEmpty;
+    }
+
+    /**
+     * Take the oldest event. The fields of a fix, the device of a
+     * connection or the state of the adapter are available from the getters until the next poll.
+     * @return the type of the event, EVENT_NONE if the queue is empty
+     */
+    public synchronized int poll(long now){
+        if(size==0){
+            return EVENT_NONE;
+        }
+        int pos=head;
+        int eventType=type[pos];
+        if(eventType==EVENT_LOCATION){
+            currentLatitude=latitude[pos];
+            currentLongitude=longitude[pos];
+            currentTime=time[pos];
+            currentAccuracy=accuracy[pos];
+            currentSpeed=speed[pos];
+            currentProvider=provider[pos];
+        }else if(eventType==EVENT_ADAPTER_STATE){
+            currentAdapterState=adapterState[pos];
+        }else {
+            currentDevice=device[pos];
+        }
+        lastLag=now-enqueueTime[pos];
+        maxLag=Math.max(maxLag, lastLag);
+        totalLag+=lastLag;
+        processedCount++;
+
+        head=(head+1)%type.length;
+        size--;
+        return eventType;
+    }
+
+    public synchronized void clear(){
+        head=0;
+        size=0;
+    }
+
+    private int append(int eventType, long now){
+        int pos=slot(size);
+        type[pos]=eventType;
+        enqueueTime[pos]=now;
+        size++;
+        maxDepth=Math.max(maxDepth, size);
+        return pos;
+    }
+
+    private int slot(int index){
+        return (head+index)%type.length;
+    }
+
+    private boolean removeOldestLocation(){
+        for(int i=0;i<size;i++){
+            if(type[slot(i)]==EVENT_LOCATION){
+                removeAt(i);
+                droppedCount++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the event at index, moving the newer events one step back
+     */
+    private void removeAt(int index){
+        for(int i=index;i<size-1;i++){
+            copy(slot(i+1), slot(i));
+        }
+        size--;
+    }
+
+    private void copy(int from, int to){
+        type[to]=type[from];
+        enqueueTime[to]=enqueueTime[from];
+        latitude[to]=latitude[from];
+        longitude[to]=longitude[from];
+        time[to]=time[from];
+        accuracy[to]=accuracy[from];
+        speed[to]=speed[from];
+        provider[to]=provider[from];
+        device[to]=device[from];
+        adapterState[to]=adapterState[from];
+    }
+
+    private void grow(){
+        int[] oldType=type;
+        long[] oldEnqueueTime=enqueueTime;
+        double[] oldLatitude=latitude;
+        double[] oldLongitude=longitude;
+        long[] oldTime=time;
+        float[] oldAccuracy=accuracy;
+        float[] oldSpeed=speed;
+        int[] oldProvider=provider;
+        long[] oldDevice=device;
+        int[] oldAdapterState=adapterState;
+        int oldLength=type.length;
+        allocate(oldLength*2);
+        for(int i=0;i<size;i++){
+            int from=(head+i)%oldLength;
+            type[i]=oldType[from];
+            enqueueTime[i]=oldEnqueueTime[from];
+            latitude[i]=oldLatitude[from];
+            longitude[i]=oldLongitude[from];
+            time[i]=oldTime[from];
+            accuracy[i]=oldAccuracy[from];
+            speed[i]=oldSpeed[from];
+            provider[i]=oldProvider[from];
+            device[i]=oldDevice[from];
+            adapterState[i]=oldAdapterState[from];
+        }
+        head=0;
+    }
+
+    private void allocate(int length){
+        type=new int[length];
+        enqueueTime=new long[length];
+        latitude=new double[length];
+        longitude=new double[length];
+        time=new long[length];
+        accuracy=new float[length];
+        speed=new float[length];
+        provider=new int[length];
+        device=new long[length];
+        adapterState=new int[length];
+    }
+
+    public double getLatitude(){
+        return currentLatitude;
+    }
+    public double getLongitude(){
+        return currentLongitude;
+    }
+    public long getTime(){
+        return currentTime;
+    }
+    public float getAccuracy(){
+        return currentAccuracy;
+    }
+    public float getSpeed(){
+        return currentSpeed;
+    }
+    public int getProvider(){
+        return currentProvider;
+    }
+    /**
+     * @return the device of the last polled bluetooth event
+     */
+    public long getDevice(){
+        return currentDevice;
+    }
+    /**
+     * @return the state of the last polled adapter state event
+     */
+    public int getAdapterState(){
+        return currentAdapterState;
+    }
+
+    public synchronized int getDepth(){
+        return size;
+    }
+    public synchronized int getMaxDepth(){
+        return maxDepth;
+    }
+    public synchronized long getOfferedCount(){
+        return offeredCount;
+    }
+    public synchronized long getProcessedCount(){
+        return processedCount;
+    }
+    /**
+     * @return fixes replaced by a newer fix because the worker fell behind
+     */
+    public synchronized long getCoalescedCount(){
+        return coalescedCount;
+    }
+    /**
+     * @return fixes dropped because the queue was full
+     */
+    public synchronized long getDroppedCount(){
+        return droppedCount;
+    }
+    /**
+     * @return time the last polled event spent in the queue
+     */
+    public synchronized long getLastLag(){
+        return lastLag;
+    }
+    public synchronized long getMaxLag(){
+        return maxLag;
+    }
+    public synchronized long getAverageLag(){
+        return processedCount==0 ? 0 : totalLag/processedCount;
+    }
+
+    public static String eventName(int eventType){
+        switch(eventType){
+        case EVENT_LOCATION: return "location";
+        case EVENT_ACL_CONNECTED: return "acl-connected";
+        case EVENT_ACL_DISCONNECTED: return "acl-disconnected";
+        case EVENT_ADAPTER_STATE: return "adapter-state";
+        default: return "none";
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.banasiak.android.btom;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Posts the notifications of the service.
+ *
+ * The enable and disable notifications are built once when the
+ * configuration changes and reused for every toggle. Every post goes
+ * through a NotificationThrottle, so a burst of toggles becomes a single
+ * update showing the newest state. Deferred posts run on the handler
+ * given to the constructor, which must be the thread calling the notifier.
+ */
+public class MotionNotifier {
+    //identifiers for notifications
+    private final static int NOTIFICATION_TOGGLE_ID=1;
+    private final static int NOTIFICATION_LOCATION_ID=2;
+
+    private final static int TOGGLE_DISABLED=0;
+    private final static int TOGGLE_ENABLED=1;
+
+    private final Context context;
+    private final Handler handler;
+    private final NotificationManager notificationManager;
+
+    //configuration the templates were built for
+    private boolean onToggle;
+    private boolean withLocation;
+    private String withLocationType;
+    private boolean configured=false;
+
+    private Notification enableNotification;
+    private Notification disableNotification;
+    private Notification locationNotification;
+    private CharSequence locationTitle;
+    private CharSequence locationMessage;
+
+    private NotificationThrottle toggleThrottle=new NotificationThrottle();
+    private NotificationThrottle locationThrottle=new NotificationThrottle();
+    //the location waiting to be posted, and a sequence number so every location is a new state
+    private double pendingLatitude;
+    private double pendingLongitude;
+    private int locationSequence=0;
+
+    private final Runnable postDue = new Runnable(){
+        @Override
+        public void run() {
+            postDue();
+        }
+    };
+
+    public MotionNotifier(Context context, Handler handler){
+        this.context=context;
+        this.handler=handler;
+        notificationManager=(NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    /**
+     * Rebuild the templates and throttles if the configuration has changed
+     *
+     * @param window milliseconds in which toggles are coalesced
+     * @param maxPerMinute most notifications posted in a minute, for each kind
+     */
+    public void configure(boolean bOnToggle, boolean bWithLocation, String locationType, long window, int maxPerMinute){
+        if(configured && onToggle==bOnToggle && withLocation==bWithLocation && withLocationType.equals(locationType)){
+            setThrottle(window, maxPerMinute);
+            return;
+        }
+        configured=true;
+        onToggle=bOnToggle;
+        withLocation=bWithLocation;
+        withLocationType=locationType;
+        setThrottle(window, maxPerMinute);
+
+        Resources res=context.getResources();
+        if(onToggle){
+            Intent notificationIntent = new Intent(context, BluetoothOnMotion.class);
+            PendingIntent contentIntent = PendingIntent.getActivity(context, 0, notificationIntent, 0);
+            //we have reuse the sys warning icon
+            int icon = android.R.drawable.stat_sys_warning;
+            enableNotification = new Notification(icon, res.getString(R.string.notificationEnableTicker), 0);
+            enableNotification.setLatestEventInfo(context, res.getText(R.string.notificationEnableTitle), res.getText(R.string.notificationEnableMessage), contentIntent);
+            disableNotification = new Notification(icon, res.getString(R.string.notificationDisableTicker), 0);
+            disableNotification.setLatestEventInfo(context, res.getText(R.string.notificationDisableTitle), res.getText(R.string.notificationDisableMessage), contentIntent);
+        }else {
+            enableNotification=null;
+            disableNotification=null;
+        }
+        if(withLocation){
+            locationNotification = new Notification(android.R.drawable.star_off, res.getString(R.string.notificationLocationTicker), 0);
+            locationTitle=res.getText(R.string.notificationLocationTitle);
+            locationMessage=res.getText(R.string.notificationLocationMessage);
+        }else {
+            locationNotification=null;
+        }
+    }
+
+    private void setThrottle(long window, int maxPerMinute){
+        if(toggleThrottle.getWindow()!=window || toggleThrottle.getMaxPerMinute()!=maxPerMinute){
+            toggleThrottle=new NotificationThrottle(window, maxPerMinute);
+            locationThrottle=new NotificationThrottle(window, maxPerMinute);
+        }
+    }
+
+    /**
+     * Bluetooth has been enabled or disabled
+     */
+    public void notifyToggle(boolean enabled){
+        if(!onToggle){
+            return;
+        }
+        toggleThrottle.offer(enabled ? TOGGLE_ENABLED : TOGGLE_DISABLED, System.currentTimeMillis());
+        postDue();
+    }
+
+    /**
+     * Show where we parked
+     */
+    public void notifyLocation(double latitude, double longitude){
+        if(!withLocation){
+            return;
+        }
+        pendingLatitude=latitude;
+        pendingLongitude=longitude;
+        locationThrottle.offer(++locationSequence, System.currentTimeMillis());
+        postDue();
+    }
+
+    /**
+     * Post what is due, and come back when the rest is
+     */
+    private void postDue(){
+        handler.removeCallbacks(postDue);
+        long now=System.currentTimeMillis();
+
+        int toggle=toggleThrottle.take(now);
+        if(toggle!=NotificationThrottle.NONE && enableNotification!=null){
+            Notification notification = toggle==TOGGLE_ENABLED ? enableNotification : disableNotification;
+            notification.when=now;
+            notificationManager.notify(NOTIFICATION_TOGGLE_ID, notification);
+        }
+        if(locationThrottle.take(now)!=NotificationThrottle.NONE && locationNotification!=null){
+            postLocation(now);
+        }
+
+        long next=earliest(toggleThrottle.getNextPostTime(), locationThrottle.getNextPostTime());
+        if(next>=0){
+            handler.postDelayed(postDue, Math.max(0, next-now));
+        }
+    }
+
+    private void postLocation(long now){
+        //the location is part of the intent, so this one is built for every post
+        Intent notificationIntent;
+        if(withLocationType.equals(BluetoothOnMotionPreferences.NOTIFICATION_WITH_LOCATION_RADAR)){
+            notificationIntent = new Intent ("com.google.android.radar.SHOW_RADAR");
+            notificationIntent.putExtra("latitude",pendingLatitude);
+            notificationIntent.putExtra("longitude",pendingLongitude);
+        }else if (withLocationType.equals(BluetoothOnMotionPreferences.NOTIFICATION_WITH_LOCATION_STREETVIEW)){
+            //google streetview integration
+            notificationIntent = new Intent(Intent.ACTION_VIEW);
+            notificationIntent.setData(Uri.parse("google.streetview:cbll=" + pendingLatitude+ ","+ pendingLongitude));
+        }else {
+            //Google maps integrations is default
+            notificationIntent = new Intent(Intent.ACTION_VIEW);
+            notificationIntent.setData(Uri.parse("geo:" + pendingLatitude+ ","+ pendingLongitude));
+        }
+        PendingIntent contentIntent = PendingIntent.getActivity(context, 0, notificationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        locationNotification.when=now;
+        locationNotification.setLatestEventInfo(context, locationTitle, locationMessage, contentIntent);
+        notificationManager.notify(NOTIFICATION_LOCATION_ID, locationNotification);
+    }
+
+    private static long earliest(long a, long b){
+        if(a<0){
+            return b;
+        }
+        if(b<0){
+            return a;
+        }
+        return Math.min(a, b);
+    }
+
+    /**
+     * Drop what is waiting, when the service stops
+     */
+    public void cancelPending(){
+        handler.removeCallbacks(postDue);
+        Log.i(this.getClass().getName(), "Toggle notifications " + toggleThrottle.getPostedCount() + " posted of "
+                + toggleThrottle.getOfferedCount() + ", " + toggleThrottle.getCoalescedCount() + " coalesced, "
+                + toggleThrottle.getRateLimitedCount() + " rate limited");
+    }
+}
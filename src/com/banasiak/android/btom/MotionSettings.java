@@ -0,0 +1,28 @@
+package com.banasiak.android.btom;
+
+/**
+ * The settings used by the MotionController, in the units the
+ * controller works with (meters, meters pr second and milliseconds).
+ *
+ * The service fills them from BluetoothOnMotionPreferences, tools
+ * running outside of android can use the defaults or set them directly.
+ */
+public class MotionSettings {
+    //mph to meters pr second
+    public final static float MPH=0.44704f;
+
+    public String speedEstimator=SpeedEstimators.KALMAN;
+    public float minSpeedForChange=30*MPH;
+    public float maxSpeedForDisable=10*MPH;
+    public long enableDwell=0;
+    public long drivingDwell=120*1000L;
+    public long stationaryTimeout=300*1000L;
+
+    public long minTimeNetwork=60*1000L;
+    public int minDistanceNetwork=500;
+    public long minTimeGPS=60*1000L;
+    public int minDistanceGPS=500;
+
+    //zones as encoded by GeofenceIndex.encode
+    public String geofences="";
+}
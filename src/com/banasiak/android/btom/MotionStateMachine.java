@@ -0,0 +1,188 @@
+package com.banasiak.android.btom;
+
+/**
+ * Decides when bluetooth should be enabled or disabled based on the
+ * estimated speed, with hysteresis so stop-and-go traffic around the
+ * threshold does not toggle the radio again and again.
+ *
+ * STATIONARY -> MOVING      speed above the moving speed
+ * MOVING     -> DRIVING     speed above the enable speed for the enable dwell time (ENABLE)
+ * DRIVING    -> COOLDOWN    speed below the disable speed, after the driving dwell time
+ * DRIVING    -> COOLDOWN    no fix for the no fix timeout, after the driving dwell time
+ * COOLDOWN   -> DRIVING     speed above the disable speed again (no toggle)
+ * COOLDOWN   -> STATIONARY  below the disable speed for the stationary timeout (DISABLE)
+ * MOVING     -> STATIONARY  speed below the moving speed
+ *
+ * The stationary timeout must also fire when no fixes arrive (a parked
+ * phone does not move the minimum distance), so the caller schedules
+ * onTick at getNextDeadline. For the same reason DRIVING cools down when
+ * the fixes stop: moving at the disable speed or faster would have
+ * given one within the no fix timeout. All methods are O(1).
+ */
+public class MotionStateMachine {
+    public final static int STATIONARY=0;
+    public final static int MOVING=1;
+    public final static int DRIVING=2;
+    public final static int COOLDOWN=3;
+
+    public final static int ACTION_NONE=0;
+    public final static int ACTION_ENABLE=1;
+    public final static int ACTION_DISABLE=2;
+
+    //walking pace, anything below is considered standing still
+    public final static float MOVING_SPEED_MS=1.5f;
+
+    private float enableSpeed;
+    private float disableSpeed;
+    private long enableDwell;
+    private long drivingDwell;
+    private long stationaryTimeout;
+    private long noFixTimeout;
+
+    private int state=STATIONARY;
+    //when the current state was entered
+    private long stateSince;
+    //when the last speed estimate arrived
+    private long lastSpeedAt;
+    //when the speed first went above the enable speed, -1 if it is below
+    private long aboveEnableSince=-1;
+
+    /**
+     * @param enableSpeed meters pr second required to enter DRIVING
+     * @param disableSpeed meters pr second below which DRIVING cools down
+     * @param enableDwell milliseconds the speed must stay above the enable speed
+     * @param drivingDwell minimum milliseconds in DRIVING before cooling down
+     * @param stationaryTimeout milliseconds in COOLDOWN before bluetooth is disabled
+     * @param noFixTimeout milliseconds without a speed estimate before DRIVING cools down
+     */
+    public MotionStateMachine(float enableSpeed, float disableSpeed, long enableDwell, long drivingDwell, long stationaryTimeout,
+            long noFixTimeout){
+        configure(enableSpeed, disableSpeed, enableDwell, drivingDwell, stationaryTimeout, noFixTimeout);
+    }
+
+    /**
+     * Use new thresholds and timeouts. The state, and the time it was entered, are kept
+     */
+    public void configure(float enableSpeed, float disableSpeed, long enableDwell, long drivingDwell, long stationaryTimeout,
+            long noFixTimeout){
+        if(disableSpeed>enableSpeed){
+            disableSpeed=enableSpeed;
+        }
+        this.enableSpeed=enableSpeed;
+        this.disableSpeed=disableSpeed;
+        this.enableDwell=enableDwell;
+        this.drivingDwell=drivingDwell;
+        this.stationaryTimeout=stationaryTimeout;
+        this.noFixTimeout=noFixTimeout;
+    }
+
+    /**
+     * Feed a new speed estimate
+     *
+     * @return ACTION_ENABLE, ACTION_DISABLE or ACTION_NONE
+     */
+    public int onSpeed(float speed, long now){
+        lastSpeedAt=now;
+        if(speed>enableSpeed){
+            if(aboveEnableSince<0){
+                aboveEnableSince=now;
+            }
+        }else {
+            aboveEnableSince=-1;
+        }
+
+        switch(state){
+        case STATIONARY:
+        case MOVING:
+            if(aboveEnableSince>=0 && now-aboveEnableSince>=enableDwell){
+                setState(DRIVING, now);
+                return ACTION_ENABLE;
+            }
+            if(speed>=MOVING_SPEED_MS){
+                if(state!=MOVING){
+                    setState(MOVING, now);
+                }
+            }else if(state!=STATIONARY){
+                setState(STATIONARY, now);
+            }
+            return ACTION_NONE;
+        case DRIVING:
+            if(speed<disableSpeed && now-stateSince>=drivingDwell){
+                setState(COOLDOWN, now);
+            }
+            return ACTION_NONE;
+        case COOLDOWN:
+            if(speed>=disableSpeed){
+                setState(DRIVING, now);
+                return ACTION_NONE;
+            }
+            return onTick(now);
+        default:
+            return ACTION_NONE;
+        }
+    }
+
+    /**
+     * Check the timeouts without a new speed estimate
+     *
+     * @return ACTION_DISABLE if the stationary timeout has passed, otherwise ACTION_NONE.
+     * DRIVING may go to COOLDOWN without an action
+     */
+    public int onTick(long now){
+        if(state==DRIVING && now-lastSpeedAt>=noFixTimeout && now-stateSince>=drivingDwell){
+            //parked where the fixes do not come any more
+            setState(COOLDOWN, now);
+            return ACTION_NONE;
+        }
+        if(state==COOLDOWN && now-stateSince>=stationaryTimeout){
+            setState(STATIONARY, now);
+            return ACTION_DISABLE;
+        }
+        return ACTION_NONE;
+    }
+
+    /**
+     * @return when onTick should be called next, -1 if no timeout is pending
+     */
+    public long getNextDeadline(){
+        if(state==DRIVING){
+            return Math.max(lastSpeedAt+noFixTimeout, stateSince+drivingDwell);
+        }
+        if(state==COOLDOWN){
+            return stateSince+stationaryTimeout;
+        }
+        return -1;
+    }
+
+    /**
+     * Go back to STATIONARY without any action,
+     * e.g. when bluetooth has been disabled by someone else
+     */
+    public void reset(long now){
+        setState(STATIONARY, now);
+        aboveEnableSince=-1;
+    }
+
+    private void setState(int newState, long now){
+        state=newState;
+        stateSince=now;
+    }
+
+    public int getState(){
+        return state;
+    }
+
+    public long getStateSince(){
+        return stateSince;
+    }
+
+    public static String stateName(int state){
+        switch(state){
+        case STATIONARY: return "STATIONARY";
+        case MOVING: return "MOVING";
+        case DRIVING: return "DRIVING";
+        case COOLDOWN: return "COOLDOWN";
+        default: return "UNKNOWN";
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.banasiak.android.btom;
+
+/**
+ * Decides when a notification may be posted, so bursts of toggles do
+ * not thrash the status bar.
+ *
+ * The first update after a quiet period is posted at once. Updates
+ * arriving within the window after a post are coalesced into one post
+ * at the end of the window, showing only the newest state. If the newest
+ * state is what is already shown, nothing is posted. On top of that no
+ * more than maxPerMinute posts are made in any minute.
+ *
+ * Time is passed in by the caller. The caller offers updates, schedules
+ * itself for getNextPostTime and calls take when it is due.
+ */
+public class NotificationThrottle {
+    public final static int NONE=-1;
+
+    public final static long DEFAULT_WINDOW_MS=10*1000L;
+    public final static int DEFAULT_MAX_PER_MINUTE=4;
+    private final static long MINUTE_MS=60*1000L;
+
+    private final long window;
+    //times of the last posts, a ring of maxPerMinute entries
+    private final long[] postTimes;
+    private int postIndex=0;
+    private int postCount=0;
+
+    private int pending=NONE;
+    private long pendingSince;
+    private int shown=NONE;
+    private long lastPostTime;
+
+    private long offeredCount=0;
+    private long postedCount=0;
+    private long coalescedCount=0;
+    private long rateLimitedCount=0;
+
+    public NotificationThrottle(){
+        this(DEFAULT_WINDOW_MS, DEFAULT_MAX_PER_MINUTE);
+    }
+
+    public NotificationThrottle(long window, int maxPerMinute){
+        if(maxPerMinute<1){
+            throw new IllegalArgumentException("maxPerMinute must be at least 1, was " + maxPerMinute);
+        }
+        this.window=window;
+        this.postTimes=new long[maxPerMinute];
+    }
+
+    /**
+     * A new state should be shown, it replaces any state still waiting
+     */
+    public void offer(int state, long now){
+        offeredCount++;
+        if(pending!=NONE){
+            coalescedCount++;
+        }else {
+            pendingSince=now;
+        }
+        pending=state;
+    }
+
+    /**
+     * @return when take should be called, -1 if nothing is waiting
+     */
+    public long getNextPostTime(){
+        if(pending==NONE){
+            return -1;
+        }
+        return Math.max(getWindowTime(), getRateLimitTime());
+    }
+
+    private long getWindowTime(){
+        return postCount>0 ? Math.max(pendingSince, lastPostTime+window) : pendingSince;
+    }
+
+    /**
+     * The oldest of the last maxPerMinute posts must be a minute ago
+     */
+    private long getRateLimitTime(){
+        return postCount==postTimes.length ? postTimes[postIndex]+MINUTE_MS : 0;
+    }
+
+    /**
+     * @return the state to post now, NONE if nothing should be posted yet
+     */
+    public int take(long now){
+        long next=getNextPostTime();
+        if(next<0 || next>now){
+            return NONE;
+        }
+        int state=pending;
+        pending=NONE;
+        if(state==shown){
+            //changed back before it was shown
+            coalescedCount++;
+            return NONE;
+        }
+        if(getRateLimitTime()>getWindowTime()){
+            rateLimitedCount++;
+        }
+        shown=state;
+        lastPostTime=now;
+        postTimes[postIndex]=now;
+        postIndex=(postIndex+1)%postTimes.length;
+        postCount=Math.min(postCount+1, postTimes.length);
+        postedCount++;
+        return state;
+    }
+
+    /**
+     * Forget what is shown, e.g. when the notification was cancelled
+     */
+    public void clearShown(){
+        shown=NONE;
+    }
+
+    public long getWindow(){
+        return window;
+    }
+    public int getMaxPerMinute(){
+        return postTimes.length;
+    }
+
+    public long getOfferedCount(){
+        return offeredCount;
+    }
+    public long getPostedCount(){
+        return postedCount;
+    }
+    public long getCoalescedCount(){
+        return coalescedCount;
+    }
+    /**
+     * @return posts which were delayed by the limit pr minute
+     */
+    public long getRateLimitedCount(){
+        return rateLimitedCount;
+    }
+}
@@ -0,0 +1,190 @@
+package com.banasiak.android.btom;
+
+/**
+ * Merges the fixes from the network and GPS providers into one stream.
+ *
+ * Both providers deliver to the same LocationListener. Without fusion a
+ * coarse network fix would end up between two GPS fixes in the history,
+ * and the speed would be calculated between fixes of very different
+ * quality. Each provider keeps its own state here, and a fix is only
+ * passed on if no other provider has delivered a more accurate fix
+ * recently:
+ * - within the dedupe window (near-simultaneous fixes) the most accurate wins,
+ *   whichever comes first. A fix from a provider which is less accurate
+ *   than another one we have heard from is HELD for the window, and the
+ *   caller only passes it on with release() if no better fix came
+ * - within the preference window a fresh and more accurate provider
+ *   (normally GPS) suppresses the others; once it goes quiet, e.g. in a
+ *   tunnel or indoors, the other providers take over again
+ *
+ * The provider of each passed fix is available through getLastProvider.
+ */
+public class ProviderFusion {
+    public final static int FUSED=0;
+    public final static int DUPLICATE=1;
+    public final static int SUPERSEDED=2;
+    public final static int HELD=3;
+
+    public final static long DEFAULT_DEDUPE_WINDOW_MS=2000L;
+    public final static long DEFAULT_PREFERENCE_WINDOW_MS=90*1000L;
+    //used when a fix does not report its accuracy
+    private final static float DEFAULT_ACCURACY_M=500f;
+    private final static int PROVIDER_COUNT=3;
+
+    private final long dedupeWindow;
+    private final long preferenceWindow;
+
+    //last fix received from each provider, indexed by LocationHistory.PROVIDER_*
+    private final boolean[] hasFix=new boolean[PROVIDER_COUNT];
+    private final long[] lastTime=new long[PROVIDER_COUNT];
+    private final float[] lastAccuracy=new float[PROVIDER_COUNT];
+
+    private final long[] received=new long[PROVIDER_COUNT];
+    private final long[] fused=new long[PROVIDER_COUNT];
+
+    private int lastProvider=LocationHistory.PROVIDER_UNKNOWN;
+
+    //the fix waiting for a better one in the dedupe window
+    private boolean holding=false;
+    private int heldProvider;
+    private long heldTime;
+    private float heldAccuracy;
+
+    public ProviderFusion(){
+        this(DEFAULT_DEDUPE_WINDOW_MS, DEFAULT_PREFERENCE_WINDOW_MS);
+    }
+
+    public ProviderFusion(long dedupeWindow, long preferenceWindow){
+        this.dedupeWindow=dedupeWindow;
+        this.preferenceWindow=preferenceWindow;
+    }
+
+    /**
+     * Offer a fix from a provider
+     *
+     * @param providerId one of LocationHistory.PROVIDER_*
+     * A held fix which mustRelease returns true for has to be released first.
+     *
+     * @param accuracy reported accuracy in meters, NaN if unknown
+     * @return FUSED if the fix should be processed, HELD if the caller should
+     * keep it until release, otherwise why it was dropped
+     */
+    public int offer(int providerId, long timeMillis, float accuracy){
+        if(providerId<0 || providerId>=PROVIDER_COUNT){
+            providerId=LocationHistory.PROVIDER_UNKNOWN;
+        }
+        if(Float.isNaN(accuracy) || accuracy<=0f){
+            accuracy=DEFAULT_ACCURACY_M;
+        }
+        received[providerId]++;
+        if(holding){
+            //another provider in the window of the held fix, the better of the two is kept
+            if(accuracy>=heldAccuracy){
+                return DUPLICATE;
+            }
+            holding=false;
+        }
+        hasFix[providerId]=true;
+        lastTime[providerId]=timeMillis;
+        lastAccuracy[providerId]=accuracy;
+
+        for(int other=0;other<PROVIDER_COUNT;other++){
+            if(other==providerId || !hasFix[other] || lastAccuracy[other]>=accuracy){
+                continue;
+            }
+            long age=timeMillis-lastTime[other];
+            if(Math.abs(age)<=dedupeWindow){
+                return DUPLICATE;
+            }
+            if(age>0 && age<=preferenceWindow){
+                return SUPERSEDED;
+            }
+        }
+
+        if(hasBetterProvider(providerId, accuracy)){
+            //the better provider may deliver in a moment
+            holding=true;
+            heldProvider=providerId;
+            heldTime=timeMillis;
+            heldAccuracy=accuracy;
+            return HELD;
+        }
+        fused[providerId]++;
+        lastProvider=providerId;
+        return FUSED;
+    }
+
+    private boolean hasBetterProvider(int providerId, float accuracy){
+        for(int other=0;other<PROVIDER_COUNT;other++){
+            if(other!=providerId && hasFix[other] && lastAccuracy[other]<accuracy){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the held fix has to be released before the fix is
+     * offered: it is from the same provider, or outside the dedupe window
+     */
+    public boolean mustRelease(int providerId, long timeMillis){
+        return holding && (providerId==heldProvider || Math.abs(timeMillis-heldTime)>dedupeWindow);
+    }
+
+    /**
+     * No better fix came in the window, the held fix is passed on
+     */
+    public void release(){
+        if(!holding){
+            return;
+        }
+        holding=false;
+        fused[heldProvider]++;
+        lastProvider=heldProvider;
+    }
+
+    /**
+     * @return true if a fix is held, it was dropped if a later offer returned
+     * FUSED or HELD and this is false
+     */
+    public boolean isHolding(){
+        return holding;
+    }
+
+    public long getDedupeWindow(){
+        return dedupeWindow;
+    }
+
+    /**
+     * @return the provider of the last fix which was passed on
+     */
+    public int getLastProvider(){
+        return lastProvider;
+    }
+
+    public long getReceivedCount(int providerId){
+        return received[providerId];
+    }
+
+    public long getFusedCount(int providerId){
+        return fused[providerId];
+    }
+
+    public static String resultName(int result){
+        switch(result){
+        case FUSED: return "fused";
+        case DUPLICATE: return "duplicate";
+        case SUPERSEDED: return "superseded";
+        case HELD: return "held";
+        default: return "unknown";
+        }
+    }
+
+    public void reset(){
+        for(int i=0;i<PROVIDER_COUNT;i++){
+            hasFix[i]=false;
+        }
+        holding=false;
+        lastProvider=LocationHistory.PROVIDER_UNKNOWN;
+    }
+}
@@ -0,0 +1,277 @@
+package com.banasiak.android.btom;
+
+/**
+ * Chooses how often the location providers should deliver fixes,
+ * based on what the motion state machine is doing:
+ * - STATIONARY: parked, poll less often, but at most a minute later
+ *   than the preferences say so the start of a drive is not missed
+ * - NORMAL: the intervals from the preferences
+ * - APPROACHING: the speed is getting close to the enable speed, poll
+ *   more often so bluetooth is enabled as early as possible
+ * - CONNECTED: bluetooth is on and a device is connected, the
+ *   disconnect will tell us when the drive is over
+ *
+ * Re-registering location updates wakes up the providers, so it is rate
+ * limited both by a minimum interval and by a token bucket per hour. A
+ * change held back by the limit is retried at getRetryTime, so it is not
+ * left waiting for a fix which may never come when parked.
+ *
+ * Also keeps the numbers needed to judge the schedule: GPS fixes per
+ * hour and the time from starting to move until bluetooth is enabled.
+ */
+public class SamplingScheduler {
+    public final static int PROFILE_STATIONARY=0;
+    public final static int PROFILE_NORMAL=1;
+    public final static int PROFILE_APPROACHING=2;
+    public final static int PROFILE_CONNECTED=3;
+
+    private final static int STATIONARY_FACTOR=2;
+    //the most a stationary fix comes later than a NORMAL one, this delays seeing a drive start
+    private final static long STATIONARY_MAX_DELAY_MS=60*1000L;
+    private final static long CONNECTED_MIN_TIME_MS=15*60*1000L;
+    private final static int CONNECTED_FACTOR=15;
+    private final static int APPROACHING_DIVISOR=4;
+    //fraction of the enable speed where we start approaching
+    private final static float APPROACHING_SPEED_FRACTION=0.5f;
+
+    private final static long MIN_REREGISTER_INTERVAL_MS=30*1000L;
+    private final static int MAX_REREGISTER_PER_HOUR=20;
+    private final static int MAX_REREGISTER_BURST=5;
+    private final static long TOKEN_INTERVAL_MS=60*60*1000L/MAX_REREGISTER_PER_HOUR;
+
+    private long baseTimeNetwork;
+    private int baseDistanceNetwork;
+    private long baseTimeGPS;
+    private int baseDistanceGPS;
+    private float enableSpeed;
+
+    private int profile=PROFILE_NORMAL;
+    private int wantedProfile=PROFILE_NORMAL;
+    private long lastRegistration=Long.MIN_VALUE/2;
+    //token bucket limiting registrations pr hour
+    private int tokens=MAX_REREGISTER_BURST;
+    private long lastTokenRefill=-1;
+    private long registrations=0;
+    //the base intervals changed since the last registration
+    private boolean settingsChanged=false;
+    //when the rate limit allows the registration it held back, -1 if none is waiting
+    private long retryAt=-1;
+
+    //statistics
+    private long startedAt=-1;
+    private long gpsFixes=0;
+    private long networkFixes=0;
+    private int lastMotionState=MotionStateMachine.STATIONARY;
+    private long movingSince=-1;
+    private long timeToEnableCount=0;
+    private long timeToEnableTotal=0;
+    private long lastTimeToEnable=-1;
+
+    /**
+     * @param baseTimeNetwork milliseconds between network fixes in the NORMAL profile
+     * @param baseTimeGPS milliseconds between GPS fixes in the NORMAL profile
+     * @param enableSpeed meters pr second where bluetooth is enabled
+     */
+    public SamplingScheduler(long baseTimeNetwork, int baseDistanceNetwork, long baseTimeGPS, int baseDistanceGPS, float enableSpeed){
+        configure(baseTimeNetwork, baseDistanceNetwork, baseTimeGPS, baseDistanceGPS, enableSpeed);
+        settingsChanged=false;
+    }
+
+    /**
+     * Use new base intervals. The profile, the rate limit and the statistics
+     * are kept. If the intervals changed, the next update asks for a
+     * registration, within the same rate limit as a profile change.
+     */
+    public void configure(long baseTimeNetwork, int baseDistanceNetwork, long baseTimeGPS, int baseDistanceGPS, float enableSpeed){
+        if(baseTimeNetwork!=this.baseTimeNetwork || baseDistanceNetwork!=this.baseDistanceNetwork
+                || baseTimeGPS!=this.baseTimeGPS || baseDistanceGPS!=this.baseDistanceGPS){
+            settingsChanged=true;
+        }
+        this.baseTimeNetwork=baseTimeNetwork;
+        this.baseDistanceNetwork=baseDistanceNetwork;
+        this.baseTimeGPS=baseTimeGPS;
+        this.baseDistanceGPS=baseDistanceGPS;
+        this.enableSpeed=enableSpeed;
+    }
+
+    /**
+     * Re-evaluate the profile after a new decision
+     *
+     * @param motionState state of the MotionStateMachine
+     * @param speed current speed estimate in meters pr second
+     * @param connected if a bluetooth device is connected
+     * @return true if location updates should be registered again,
+     * call onRegistered when done
+     */
+    public boolean update(int motionState, float speed, boolean connected, long now){
+        trackTimeToEnable(motionState, now);
+
+        if(connected && (motionState==MotionStateMachine.DRIVING || motionState==MotionStateMachine.COOLDOWN)){
+            wantedProfile=PROFILE_CONNECTED;
+        }else if(motionState==MotionStateMachine.STATIONARY){
+            wantedProfile=PROFILE_STATIONARY;
+        }else if(motionState==MotionStateMachine.MOVING && speed>=enableSpeed*APPROACHING_SPEED_FRACTION){
+            wantedProfile=PROFILE_APPROACHING;
+        }else {
+            wantedProfile=PROFILE_NORMAL;
+        }
+
+        if(wantedProfile==profile && !settingsChanged){
+            retryAt=-1;
+            return false;
+        }
+        refillTokens(now);
+        if(now-lastRegistration<MIN_REREGISTER_INTERVAL_MS || tokens==0){
+            //try again with the next fix, or when the limit allows it
+            retryAt=lastRegistration+MIN_REREGISTER_INTERVAL_MS;
+            if(tokens==0){
+                retryAt=Math.max(retryAt, lastTokenRefill+TOKEN_INTERVAL_MS);
+            }
+            return false;
+        }
+        retryAt=-1;
+        return true;
+    }
+
+    /**
+     * @return when update should be called again for a registration the
+     * rate limit held back, -1 if none is waiting
+     */
+    public long getRetryTime(){
+        return retryAt;
+    }
+
+    /**
+     * The caller has registered the location updates with the
+     * times and distances of the wanted profile
+     */
+    public void onRegistered(long now){
+        if(startedAt<0){
+            startedAt=now;
+        }else {
+            refillTokens(now);
+            if(tokens>0){
+                tokens--;
+            }
+        }
+        profile=wantedProfile;
+        settingsChanged=false;
+        retryAt=-1;
+        lastRegistration=now;
+        registrations++;
+    }
+
+    /**
+     * @return true once onRegistered has been called
+     */
+    public boolean isRegistered(){
+        return startedAt>=0;
+    }
+
+    private void refillTokens(long now){
+        if(lastTokenRefill<0){
+            lastTokenRefill=now;
+            return;
+        }
+        long newTokens=(now-lastTokenRefill)/TOKEN_INTERVAL_MS;
+        if(newTokens>0){
+            tokens=(int)Math.min(MAX_REREGISTER_BURST, tokens+newTokens);
+            lastTokenRefill+=newTokens*TOKEN_INTERVAL_MS;
+        }
+    }
+
+    private void trackTimeToEnable(int motionState, long now){
+        if(lastMotionState==MotionStateMachine.STATIONARY && motionState!=MotionStateMachine.STATIONARY){
+            movingSince=now;
+        }
+        if(motionState==MotionStateMachine.DRIVING && lastMotionState!=MotionStateMachine.DRIVING
+                && lastMotionState!=MotionStateMachine.COOLDOWN && movingSince>=0){
+            lastTimeToEnable=now-movingSince;
+            timeToEnableTotal+=lastTimeToEnable;
+            timeToEnableCount++;
+            movingSince=-1;
+        }
+        lastMotionState=motionState;
+    }
+
+    /**
+     * Count a fix delivered by a provider (before any filtering),
+     * every fix is a wakeup of the provider
+     */
+    public void onFix(int providerId){
+        if(providerId==LocationHistory.PROVIDER_GPS){
+            gpsFixes++;
+        }else if(providerId==LocationHistory.PROVIDER_NETWORK){
+            networkFixes++;
+        }
+    }
+
+    public long getMinTime(int providerId){
+        long base = providerId==LocationHistory.PROVIDER_GPS ? baseTimeGPS : baseTimeNetwork;
+        switch(wantedProfile){
+        case PROFILE_STATIONARY:
+            return Math.min(base*STATIONARY_FACTOR, base+STATIONARY_MAX_DELAY_MS);
+        case PROFILE_CONNECTED:
+            return Math.max(base*CONNECTED_FACTOR, CONNECTED_MIN_TIME_MS);
+        case PROFILE_APPROACHING:
+            return base/APPROACHING_DIVISOR;
+        default:
+            return base;
+        }
+    }
+
+    public int getMinDistance(int providerId){
+        int base = providerId==LocationHistory.PROVIDER_GPS ? baseDistanceGPS : baseDistanceNetwork;
+        if(wantedProfile==PROFILE_APPROACHING){
+            return base/APPROACHING_DIVISOR;
+        }
+        return base;
+    }
+
+    public int getProfile(){
+        return profile;
+    }
+
+    public long getRegistrationCount(){
+        return registrations;
+    }
+
+    public double getGpsFixesPerHour(long now){
+        return perHour(gpsFixes, now);
+    }
+
+    public double getNetworkFixesPerHour(long now){
+        return perHour(networkFixes, now);
+    }
+
+    private double perHour(long count, long now){
+        if(startedAt<0 || now<=startedAt){
+            return 0;
+        }
+        return count*3600000.0/(now-startedAt);
+    }
+
+    /**
+     * @return milliseconds from leaving STATIONARY until DRIVING for the last drive, -1 if none
+     */
+    public long getLastTimeToEnable(){
+        return lastTimeToEnable;
+    }
+
+    /**
+     * @return average milliseconds from leaving STATIONARY until DRIVING, -1 if no drives yet
+     */
+    public long getAverageTimeToEnable(){
+        return timeToEnableCount==0 ? -1 : timeToEnableTotal/timeToEnableCount;
+    }
+
+    public static String profileName(int profile){
+        switch(profile){
+        case PROFILE_STATIONARY: return "STATIONARY";
+        case PROFILE_NORMAL: return "NORMAL";
+        case PROFILE_APPROACHING: return "APPROACHING";
+        case PROFILE_CONNECTED: return "CONNECTED";
+        default: return "UNKNOWN";
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.banasiak.android.btom;
+
+/**
+ * Picks the GPS minTime and minDistance which cost the least battery
+ * while bluetooth is still enabled within the target time after the car
+ * passes the enable speed.
+ *
+ * The candidates are evaluated against the recent history of this
+ * device: the speeds of its last fixes, and of its last fixes while
+ * driving. A fix arrives every max(minTime, minDistance/speed), and the
+ * speed estimate needs about one and a half fix intervals to see that
+ * the threshold was passed, after which the enable dwell applies. A
+ * candidate meets the target if 90% of the driving speeds give a time
+ * to enable within it. The cost comes from the EnergyModel.
+ *
+ * It runs incrementally: onFix is O(1), and each step evaluates one
+ * candidate, so the caller can step on every fix. A full pass over
+ * the candidates gives a result.
+ *
+ * The sampling the caller applies is learned state, kept with
+ * encode/decode and not in the user's config.
+ */
+public class SamplingTuner {
+    public final static long[] TIMES_MS={5000, 10000, 15000, 30000, 45000, 60000, 90000, 120000, 180000, 300000};
+    public final static int[] DISTANCES_M={0, 25, 50, 100, 200, 500};
+
+    public final static long DEFAULT_TARGET_MS=90*1000L;
+    private final static double TARGET_FRACTION=0.9;
+    private final static double INTERVALS_TO_DETECT=1.5;
+    private final static int SAMPLES=256;
+    //driving speeds needed before a result is given
+    private final static int MIN_DRIVING_SAMPLES=20;
+
+    private final EnergyModel energyModel=new EnergyModel();
+
+    //speeds of the last fixes, and of the last fixes while driving, in meters pr second
+    private final float[] speeds=new float[SAMPLES];
+    private int speedCount=0;
+    private int speedNext=0;
+    private final float[] drivingSpeeds=new float[SAMPLES];
+    private int drivingCount=0;
+    private int drivingNext=0;
+
+    private float enableSpeed=30*MotionSettings.MPH;
+    private long enableDwell=0;
+    private long target=DEFAULT_TARGET_MS;
+    private double networkFixesPerHour=0;
+    private double bluetoothOnFraction=0;
+
+    //the pass in progress
+    private int next=0;
+    private int bestCandidate=-1;
+    private float bestCost;
+
+    //the last finished pass
+    private boolean hasResult=false;
+    private long resultTime;
+    private int resultDistance;
+    private float resultCost;
+    private long passCount=0;
+
+    //the sampling the service has applied, -1 if it uses the configured one
+    private long appliedTime=-1;
+    private int appliedDistance=-1;
+    private boolean changed=false;
+
+    /**
+     * @param enableSpeed meters pr second where bluetooth is enabled
+     * @param enableDwell milliseconds the speed must stay above it
+     * @param target milliseconds we accept from passing the speed to enabling bluetooth
+     */
+    public void configure(float enableSpeed, long enableDwell, long target){
+        this.enableSpeed=enableSpeed;
+        this.enableDwell=enableDwell;
+        this.target=target;
+    }
+
+    /**
+     * The parts of the cost the GPS settings do not change, as measured by the service
+     */
+    public void setContext(double networkFixesPerHour, double bluetoothOnFraction){
+        this.networkFixesPerHour=networkFixesPerHour;
+        this.bluetoothOnFraction=bluetoothOnFraction;
+    }
+
+    /**
+     * A fix has been processed
+     * @param speed the estimated speed in meters pr second
+     * @param motionState state of the MotionStateMachine
+     */
+    public void onFix(float speed, int motionState){
+        if(Float.isNaN(speed)){
+            return;
+        }
+        speeds[speedNext]=speed;
+        speedNext=(speedNext+1)%SAMPLES;
+        speedCount=Math.min(speedCount+1, SAMPLES);
+        if(speed>=enableSpeed && (motionState==MotionStateMachine.DRIVING || motionState==MotionStateMachine.COOLDOWN)){
+            drivingSpeeds[drivingNext]=speed;
+            drivingNext=(drivingNext+1)%SAMPLES;
+            drivingCount=Math.min(drivingCount+1, SAMPLES);
+        }
+    }
+
+    /**
+     * Evaluate the next candidate
+     * @return true if a pass finished and a new result is available
+     */
+    public boolean step(){
+        if(drivingCount<MIN_DRIVING_SAMPLES){
+            return false;
+        }
+        long time=TIMES_MS[next/DISTANCES_M.length];
+        int distance=DISTANCES_M[next%DISTANCES_M.length];
+        if(meetsTarget(time, distance)){
+            float cost=getCost(time, distance);
+            if(bestCandidate<0 || cost<bestCost){
+                bestCandidate=next;
+                bestCost=cost;
+            }
+        }
+        next++;
+        if(next<TIMES_MS.length*DISTANCES_M.length){
+            return false;
+        }
+        next=0;
+        passCount++;
+        if(bestCandidate<0){
+            //nothing meets the target, the fastest sampling comes closest
+            bestCandidate=0;
+            bestCost=getCost(TIMES_MS[0], DISTANCES_M[0]);
+        }
+        hasResult=true;
+        resultTime=TIMES_MS[bestCandidate/DISTANCES_M.length];
+        resultDistance=DISTANCES_M[bestCandidate%DISTANCES_M.length];
+        resultCost=bestCost;
+        bestCandidate=-1;
+        return true;
+    }
+
+    /**
+     * @return true if the settings enable bluetooth within the target for most of the driving speeds
+     */
+    public boolean meetsTarget(long time, int distance){
+        if(drivingCount==0){
+            return false;
+        }
+        int within=0;
+        for(int i=0;i<drivingCount;i++){
+            if(getTimeToEnable(time, distance, drivingSpeeds[i])<=target){
+                within++;
+            }
+        }
+        return within>=drivingCount*TARGET_FRACTION;
+    }
+
+    private double getTimeToEnable(long time, int distance, float speed){
+        return enableDwell+INTERVALS_TO_DETECT*getInterval(time, distance, speed);
+    }
+
+    /**
+     * @return milliseconds between fixes at the speed, MAX_VALUE if no fixes come
+     */
+    private static double getInterval(long time, int distance, float speed){
+        if(distance==0){
+            return time;
+        }
+        if(speed<=0f){
+            return Double.MAX_VALUE;
+        }
+        return Math.max(time, distance*1000.0/speed);
+    }
+
+    /**
+     * @return the average current in mA with the settings, for the recent speeds
+     */
+    public float getCost(long time, int distance){
+        double fixesPerHour=0;
+        for(int i=0;i<speedCount;i++){
+            fixesPerHour+=3600000.0/getInterval(time, distance, speeds[i]);
+        }
+        if(speedCount>0){
+            fixesPerHour/=speedCount;
+        }
+        return energyModel.estimate(time, fixesPerHour, networkFixesPerHour, bluetoothOnFraction);
+    }
+
+    public boolean hasResult(){
+        return hasResult;
+    }
+    /**
+     * @return the recommended GPS minTime in milliseconds
+     */
+    public long getResultTime(){
+        return resultTime;
+    }
+    /**
+     * @return the recommended GPS minDistance in meters
+     */
+    public int getResultDistance(){
+        return resultDistance;
+    }
+    /**
+     * @return the estimated average current in mA with the recommended settings
+     */
+    public float getResultCost(){
+        return resultCost;
+    }
+    public long getPassCount(){
+        return passCount;
+    }
+    public int getDrivingSampleCount(){
+        return drivingCount;
+    }
+
+    /**
+     * The caller now uses the given sampling instead of the configured one
+     */
+    public void setApplied(long time, int distance){
+        if(time!=appliedTime || distance!=appliedDistance){
+            appliedTime=time;
+            appliedDistance=distance;
+            changed=true;
+        }
+    }
+    public boolean hasApplied(){
+        return appliedTime>=0;
+    }
+    /**
+     * @return the applied GPS minTime in milliseconds, -1 if none
+     */
+    public long getAppliedTime(){
+        return appliedTime;
+    }
+    /**
+     * @return the applied GPS minDistance in meters, -1 if none
+     */
+    public int getAppliedDistance(){
+        return appliedDistance;
+    }
+
+    /**
+     * @return true if the applied sampling has changed and should be stored again
+     */
+    public boolean isChanged(){
+        return changed;
+    }
+
+    public void clearChanged(){
+        changed=false;
+    }
+
+    /**
+     * Encode the applied sampling as minTime,minDistance, empty if none
+     */
+    public String encode(){
+        if(appliedTime<0){
+            return "";
+        }
+        return appliedTime + "," + appliedDistance;
+    }
+
+    /**
+     * Restore the applied sampling from the output of encode.
+     * It is ignored if it can not be parsed.
+     */
+    public void decode(String encoded){
+        if(encoded==null){
+            return;
+        }
+        String[] fields=encoded.split(",");
+        if(fields.length!=2){
+            return;
+        }
+        try {
+            long time=Long.parseLong(fields[0]);
+            int distance=Integer.parseInt(fields[1]);
+            if(time<0 || distance<0){
+                return;
+            }
+            appliedTime=time;
+            appliedDistance=distance;
+        }catch (NumberFormatException e){
+            return;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.banasiak.android.btom;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * An immutable snapshot of the preferences the service runs with.
+ *
+ * The activity builds it from BluetoothOnMotionPreferences and pushes it
+ * over IOnMotionService, so the service does not read the preferences
+ * from disk again. Every store of the preferences gives a higher
+ * version (see ConfigVersion), and the service ignores a snapshot which
+ * is not newer than the one it has.
+ */
+public final class ServiceConfig implements Parcelable {
+    private final long version;
+
+    private final boolean doServiceStartOnBoot;
+    private final boolean notificationOnToggle;
+    private final boolean notificationWithLocation;
+    private final String notificationWithLocationType;
+    //milliseconds
+    private final long notificationWindow;
+    private final int notificationsPerMinute;
+    //as DeviceRegistry.encodeAddresses, empty if every device is a trigger device
+    private final String triggerDevices;
+    //let the SamplingTuner choose the GPS sampling, to enable bluetooth within targetTimeToEnable (ms)
+    private final boolean autoTune;
+    private final long targetTimeToEnable;
+
+    //the MotionSettings, in meters, meters pr second and milliseconds
+    private final String speedEstimator;
+    private final float minSpeedForChange;
+    private final float maxSpeedForDisable;
+    private final long enableDwell;
+    private final long drivingDwell;
+    private final long stationaryTimeout;
+    private final long minTimeNetwork;
+    private final int minDistanceNetwork;
+    private final long minTimeGPS;
+    private final int minDistanceGPS;
+    private final String geofences;
+
+    /**
+     * @param notificationWindow milliseconds in which toggles are coalesced
+     * @param triggerDevices the devices whose disconnect turns off bluetooth, empty for all
+     * @param targetTimeToEnable milliseconds the tuner allows from passing the speed to enabling bluetooth
+     */
+    public ServiceConfig(long version, MotionSettings settings, boolean doServiceStartOnBoot, boolean notificationOnToggle,
+            boolean notificationWithLocation, String notificationWithLocationType, long notificationWindow, int notificationsPerMinute,
+            String triggerDevices, boolean autoTune, long targetTimeToEnable){
+        this.version=version;
+        this.doServiceStartOnBoot=doServiceStartOnBoot;
+        this.notificationOnToggle=notificationOnToggle;
+        this.notificationWithLocation=notificationWithLocation;
+        this.notificationWithLocationType=notificationWithLocationType;
+        this.notificationWindow=notificationWindow;
+        this.notificationsPerMinute=notificationsPerMinute;
+        this.triggerDevices=triggerDevices;
+        this.autoTune=autoTune;
+        this.targetTimeToEnable=targetTimeToEnable;
+        speedEstimator=settings.speedEstimator;
+        minSpeedForChange=settings.minSpeedForChange;
+        maxSpeedForDisable=settings.maxSpeedForDisable;
+        enableDwell=settings.enableDwell;
+        drivingDwell=settings.drivingDwell;
+        stationaryTimeout=settings.stationaryTimeout;
+        minTimeNetwork=settings.minTimeNetwork;
+        minDistanceNetwork=settings.minDistanceNetwork;
+        minTimeGPS=settings.minTimeGPS;
+        minDistanceGPS=settings.minDistanceGPS;
+        geofences=settings.geofences;
+    }
+
+    private ServiceConfig(Parcel in){
+        version=in.readLong();
+        doServiceStartOnBoot=in.readInt()!=0;
+        notificationOnToggle=in.readInt()!=0;
+        notificationWithLocation=in.readInt()!=0;
+        notificationWithLocationType=in.readString();
+        notificationWindow=in.readLong();
+        notificationsPerMinute=in.readInt();
+        triggerDevices=in.readString();
+        autoTune=in.readInt()!=0;
+        targetTimeToEnable=in.readLong();
+        speedEstimator=in.readString();
+        minSpeedForChange=in.readFloat();
+        maxSpeedForDisable=in.readFloat();
+        enableDwell=in.readLong();
+        drivingDwell=in.readLong();
+        stationaryTimeout=in.readLong();
+        minTimeNetwork=in.readLong();
+        minDistanceNetwork=in.readInt();
+        minTimeGPS=in.readLong();
+        minDistanceGPS=in.readInt();
+        geofences=in.readString();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags){
+        dest.writeLong(version);
+        dest.writeInt(doServiceStartOnBoot ? 1 : 0);
+        dest.writeInt(notificationOnToggle ? 1 : 0);
+        dest.writeInt(notificationWithLocation ? 1 : 0);
+        dest.writeString(notificationWithLocationType);
+        dest.writeLong(notificationWindow);
+        dest.writeInt(notificationsPerMinute);
+        dest.writeString(triggerDevices);
+        dest.writeInt(autoTune ? 1 : 0);
+        dest.writeLong(targetTimeToEnable);
+        dest.writeString(speedEstimator);
+        dest.writeFloat(minSpeedForChange);
+        dest.writeFloat(maxSpeedForDisable);
+        dest.writeLong(enableDwell);
+        dest.writeLong(drivingDwell);
+        dest.writeLong(stationaryTimeout);
+        dest.writeLong(minTimeNetwork);
+        dest.writeInt(minDistanceNetwork);
+        dest.writeLong(minTimeGPS);
+        dest.writeInt(minDistanceGPS);
+        dest.writeString(geofences);
+    }
+
+    @Override
+    public int describeContents(){
+        return 0;
+    }
+
+    public final static Parcelable.Creator<ServiceConfig> CREATOR = new Parcelable.Creator<ServiceConfig>(){
+        @Override
+        public ServiceConfig createFromParcel(Parcel in){
+            return new ServiceConfig(in);
+        }
+        @Override
+        public ServiceConfig[] newArray(int size){
+            return new ServiceConfig[size];
+        }
+    };
+
+    /**
+     * @return a new copy of the settings for the MotionController
+     */
+    public MotionSettings getMotionSettings(){
+        MotionSettings settings = new MotionSettings();
+        settings.speedEstimator=speedEstimator;
+        settings.minSpeedForChange=minSpeedForChange;
+        settings.maxSpeedForDisable=maxSpeedForDisable;
+        settings.enableDwell=enableDwell;
+        settings.drivingDwell=drivingDwell;
+        settings.stationaryTimeout=stationaryTimeout;
+        settings.minTimeNetwork=minTimeNetwork;
+        settings.minDistanceNetwork=minDistanceNetwork;
+        settings.minTimeGPS=minTimeGPS;
+        settings.minDistanceGPS=minDistanceGPS;
+        settings.geofences=geofences;
+        return settings;
+    }
+
+    /**
+     * @return true if the MotionController would get the same settings from other,
+     * so it can keep its state
+     */
+    public boolean hasSameMotionSettings(ServiceConfig other){
+        return other!=null
+                && speedEstimator.equals(other.speedEstimator)
+                && minSpeedForChange==other.minSpeedForChange
+                && maxSpeedForDisable==other.maxSpeedForDisable
+                && enableDwell==other.enableDwell
+                && drivingDwell==other.drivingDwell
+                && stationaryTimeout==other.stationaryTimeout
+                && minTimeNetwork==other.minTimeNetwork
+                && minDistanceNetwork==other.minDistanceNetwork
+                && minTimeGPS==other.minTimeGPS
+                && minDistanceGPS==other.minDistanceGPS
+                && geofences.equals(other.geofences);
+    }
+
+    public long getVersion(){
+        return version;
+    }
+    public boolean getDoServiceStartOnBoot(){
+        return doServiceStartOnBoot;
+    }
+    public boolean getDoNotificationOnToggle(){
+        return notificationOnToggle;
+    }
+    public boolean getDoNotificationWithLocation(){
+        return notificationWithLocation;
+    }
+    public String getNotificationWithLocationType(){
+        return notificationWithLocationType;
+    }
+    public long getNotificationWindow(){
+        return notificationWindow;
+    }
+    public int getNotificationsPerMinute(){
+        return notificationsPerMinute;
+    }
+    public String getTriggerDevices(){
+        return triggerDevices;
+    }
+    public boolean getAutoTune(){
+        return autoTune;
+    }
+    public long getTargetTimeToEnable(){
+        return targetTimeToEnable;
+    }
+}
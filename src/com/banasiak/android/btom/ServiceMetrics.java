@@ -0,0 +1,536 @@
+package com.banasiak.android.btom;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Counters of what the service does, cheap enough to update for every fix.
+ *
+ * There is a single writer, the worker thread of the service. The
+ * records and snapshot hold the lock of the metrics, so a snapshot taken
+ * from another thread has all of a record or none of it, and the long
+ * fields are never torn. The lock is only contended while a snapshot is
+ * taken. The snapshot is a copy which can be sent over IOnMotionService,
+ * the getters are meant for it, or for the worker thread.
+ */
+public final class ServiceMetrics implements Parcelable {
+    //upper bounds of the buckets of the processing time histogram, in microseconds.
+    //The last bucket has the rest
+    public final static int[] PROCESSING_BUCKETS_US={50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    //number of records
+    private int sequence=0;
+
+    private final int[] fixesByProvider=new int[3];
+    private int notFusedFixes=0;
+    private int rejectedFixes=0;
+    private final int[] processingHistogram=new int[PROCESSING_BUCKETS_US.length+1];
+    private long totalProcessingTime=0;
+
+    //now minus the time of the fix, in milliseconds
+    private long lastFixAge=0;
+    private long maxFixAge=0;
+    private long totalFixAge=0;
+
+    private int enableCount=0;
+    private int disableCount=0;
+
+    //from enabling bluetooth to ACTION_ACL_CONNECTED, in milliseconds
+    private long enabledAt=-1;
+    private int connectCount=0;
+    private long lastConnectTime=0;
+    private long maxConnectTime=0;
+    private long totalConnectTime=0;
+
+    //the connect watchdog: its timeouts, current timeout and histogram of ConnectWatchdog.BUCKETS_MS
+    private int connectTimeouts=0;
+    private long connectTimeout=ConnectWatchdog.DEFAULT_TIMEOUT_MS;
+    private final int[] connectHistogram=new int[ConnectWatchdog.BUCKETS_MS.length+1];
+
+    //milliseconds the bluetooth radio has been on, not counting since bluetoothOnSince
+    private long bluetoothOnTime=0;
+    private long bluetoothOnSince=-1;
+
+    //the last EnergyModel estimate, in mA
+    private float currentTotal=0f;
+    private float currentGps=0f;
+    private float currentNetwork=0f;
+    private float currentFixes=0f;
+    private float currentBluetooth=0f;
+
+    //the last result of the SamplingTuner, minTime in milliseconds and minDistance in meters
+    private long tunerPasses=0;
+    private long tunedMinTime=-1;
+    private int tunedMinDistance=-1;
+    private float tunedCurrent=0f;
+    private int tuningsApplied=0;
+
+    private long createdAt;
+    private long takenAt;
+
+    public ServiceMetrics(long now){
+        createdAt=now;
+    }
+
+    /**
+     * A fix has been handed to the MotionController
+     *
+     * @param providerId one of LocationHistory.PROVIDER_*
+     * @param fixResult MotionController.FIX_*
+     * @param processingTime nanoseconds spent on the fix
+     * @param fixAge now minus the time of the fix, in milliseconds
+     */
+    public synchronized void recordFix(int providerId, int fixResult, long processingTime, long fixAge){
+        if(providerId>=0 && providerId<fixesByProvider.length){
+            fixesByProvider[providerId]++;
+        }
+        if(fixResult==MotionController.FIX_NOT_FUSED){
+            notFusedFixes++;
+        }else if(fixResult==MotionController.FIX_REJECTED){
+            rejectedFixes++;
+        }
+        long us=processingTime/1000;
+        int bucket=0;
+        while(bucket<PROCESSING_BUCKETS_US.length && us>=PROCESSING_BUCKETS_US[bucket]){
+            bucket++;
+        }
+        processingHistogram[bucket]++;
+        totalProcessingTime+=processingTime;
+
+        lastFixAge=fixAge;
+        maxFixAge=Math.max(maxFixAge, fixAge);
+        totalFixAge+=fixAge;
+        sequence++;
+    }
+
+    public synchronized void recordEnable(long now){
+        enableCount++;
+        enabledAt=now;
+        sequence++;
+    }
+
+    public synchronized void recordDisable(){
+        disableCount++;
+        enabledAt=-1;
+        sequence++;
+    }
+
+    /**
+     * A device has connected, if we enabled bluetooth this is how long it took
+     */
+    public synchronized void recordConnected(long now){
+        if(enabledAt>=0){
+            lastConnectTime=now-enabledAt;
+            maxConnectTime=Math.max(maxConnectTime, lastConnectTime);
+            totalConnectTime+=lastConnectTime;
+            connectCount++;
+            enabledAt=-1;
+        }
+        sequence++;
+    }
+
+    /**
+     * Copy the state of the watchdog, after it has changed
+     */
+    public synchronized void recordConnectWatchdog(ConnectWatchdog watchdog){
+        connectTimeouts=(int)watchdog.getTimeoutCount();
+        connectTimeout=watchdog.getTimeout();
+        for(int i=0;i<connectHistogram.length;i++){
+            connectHistogram[i]=watchdog.getBucketCount(i);
+        }
+        sequence++;
+    }
+
+    /**
+     * The bluetooth radio has been turned on or off (TURNING_ON counts as on)
+     */
+    public synchronized void recordBluetoothState(boolean on, long now){
+        if(on && bluetoothOnSince<0){
+            bluetoothOnSince=now;
+        }else if(!on && bluetoothOnSince>=0){
+            bluetoothOnTime+=Math.max(0, now-bluetoothOnSince);
+            bluetoothOnSince=-1;
+        }
+        sequence++;
+    }
+
+    /**
+     * @return part of the uptime the bluetooth radio has been on, 0 to 1
+     */
+    public double getBluetoothOnFraction(long now){
+        long uptime=now-createdAt;
+        if(uptime<=0){
+            return 0;
+        }
+        long onTime=bluetoothOnTime;
+        if(bluetoothOnSince>=0){
+            onTime+=Math.max(0, now-bluetoothOnSince);
+        }
+        return Math.min(1.0, (double)onTime/uptime);
+    }
+
+    /**
+     * Copy the parts of the last estimate of the model
+     */
+    public synchronized void recordEnergy(EnergyModel model){
+        currentTotal=model.getTotal();
+        currentGps=model.getGps();
+        currentNetwork=model.getNetwork();
+        currentFixes=model.getFixes();
+        currentBluetooth=model.getBluetooth();
+        sequence++;
+    }
+
+    /**
+     * A pass of the tuner has finished
+     * @param applied true if its result has been applied to the preferences
+     */
+    public synchronized void recordTuning(SamplingTuner tuner, boolean applied){
+        tunerPasses=tuner.getPassCount();
+        tunedMinTime=tuner.getResultTime();
+        tunedMinDistance=tuner.getResultDistance();
+        tunedCurrent=tuner.getResultCost();
+        if(applied){
+            tuningsApplied++;
+        }
+        sequence++;
+    }
+
+    /**
+     * @return a copy of the counters, may be called from any thread
+     */
+    public synchronized ServiceMetrics snapshot(long now){
+        ServiceMetrics copy=new ServiceMetrics(createdAt);
+        copy.sequence=sequence;
+        System.arraycopy(fixesByProvider, 0, copy.fixesByProvider, 0, fixesByProvider.length);
+        copy.notFusedFixes=notFusedFixes;
+        copy.rejectedFixes=rejectedFixes;
+        System.arraycopy(processingHistogram, 0, copy.processingHistogram, 0, processingHistogram.length);
+        copy.totalProcessingTime=totalProcessingTime;
+        copy.lastFixAge=lastFixAge;
+        copy.maxFixAge=maxFixAge;
+        copy.totalFixAge=totalFixAge;
+        copy.enableCount=enableCount;
+        copy.disableCount=disableCount;
+        copy.connectCount=connectCount;
+        copy.lastConnectTime=lastConnectTime;
+        copy.maxConnectTime=maxConnectTime;
+        copy.totalConnectTime=totalConnectTime;
+        copy.connectTimeouts=connectTimeouts;
+        copy.connectTimeout=connectTimeout;
+        System.arraycopy(connectHistogram, 0, copy.connectHistogram, 0, connectHistogram.length);
+        copy.bluetoothOnTime=bluetoothOnTime;
+        copy.bluetoothOnSince=bluetoothOnSince;
+        copy.currentTotal=currentTotal;
+        copy.currentGps=currentGps;
+        copy.currentNetwork=currentNetwork;
+        copy.currentFixes=currentFixes;
+        copy.currentBluetooth=currentBluetooth;
+        copy.tunerPasses=tunerPasses;
+        copy.tunedMinTime=tunedMinTime;
+        copy.tunedMinDistance=tunedMinDistance;
+        copy.tunedCurrent=tunedCurrent;
+        copy.tuningsApplied=tuningsApplied;
+        copy.takenAt=now;
+        return copy;
+    }
+
+    private ServiceMetrics(Parcel in){
+        sequence=in.readInt();
+        for(int i=0;i<fixesByProvider.length;i++){
+            fixesByProvider[i]=in.readInt();
+        }
+        notFusedFixes=in.readInt();
+        rejectedFixes=in.readInt();
+        for(int i=0;i<processingHistogram.length;i++){
+            processingHistogram[i]=in.readInt();
+        }
+        totalProcessingTime=in.readLong();
+        lastFixAge=in.readLong();
+        maxFixAge=in.readLong();
+        totalFixAge=in.readLong();
+        enableCount=in.readInt();
+        disableCount=in.readInt();
+        connectCount=in.readInt();
+        lastConnectTime=in.readLong();
+        maxConnectTime=in.readLong();
+        totalConnectTime=in.readLong();
+        connectTimeouts=in.readInt();
+        connectTimeout=in.readLong();
+        for(int i=0;i<connectHistogram.length;i++){
+            connectHistogram[i]=in.readInt();
+        }
+        bluetoothOnTime=in.readLong();
+        bluetoothOnSince=in.readLong();
+        currentTotal=in.readFloat();
+        currentGps=in.readFloat();
+        currentNetwork=in.readFloat();
+        currentFixes=in.readFloat();
+        currentBluetooth=in.readFloat();
+        tunerPasses=in.readLong();
+        tunedMinTime=in.readLong();
+        tunedMinDistance=in.readInt();
+        tunedCurrent=in.readFloat();
+        tuningsApplied=in.readInt();
+        createdAt=in.readLong();
+        takenAt=in.readLong();
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags){
+        dest.writeInt(sequence);
+        for(int i=0;i<fixesByProvider.length;i++){
+            dest.writeInt(fixesByProvider[i]);
+        }
+        dest.writeInt(notFusedFixes);
+        dest.writeInt(rejectedFixes);
+        for(int i=0;i<processingHistogram.length;i++){
+            dest.writeInt(processingHistogram[i]);
+        }
+        dest.writeLong(totalProcessingTime);
+        dest.writeLong(lastFixAge);
+        dest.writeLong(maxFixAge);
+        dest.writeLong(totalFixAge);
+        dest.writeInt(enableCount);
+        dest.writeInt(disableCount);
+        dest.writeInt(connectCount);
+        dest.writeLong(lastConnectTime);
+        dest.writeLong(maxConnectTime);
+        dest.writeLong(totalConnectTime);
+        dest.writeInt(connectTimeouts);
+        dest.writeLong(connectTimeout);
+        for(int i=0;i<connectHistogram.length;i++){
+            dest.writeInt(connectHistogram[i]);
+        }
+        dest.writeLong(bluetoothOnTime);
+        dest.writeLong(bluetoothOnSince);
+        dest.writeFloat(currentTotal);
+        dest.writeFloat(currentGps);
+        dest.writeFloat(currentNetwork);
+        dest.writeFloat(currentFixes);
+        dest.writeFloat(currentBluetooth);
+        dest.writeLong(tunerPasses);
+        dest.writeLong(tunedMinTime);
+        dest.writeInt(tunedMinDistance);
+        dest.writeFloat(tunedCurrent);
+        dest.writeInt(tuningsApplied);
+        dest.writeLong(createdAt);
+        dest.writeLong(takenAt);
+    }
+
+    @Override
+    public int describeContents(){
+        return 0;
+    }
+
+    public final static Parcelable.Creator<ServiceMetrics> CREATOR = new Parcelable.Creator<ServiceMetrics>(){
+        @Override
+        public ServiceMetrics createFromParcel(Parcel in){
+            return new ServiceMetrics(in);
+        }
+        @Override
+        public ServiceMetrics[] newArray(int size){
+            return new ServiceMetrics[size];
+        }
+    };
+
+    public int getFixCount(){
+        int count=0;
+        for(int i=0;i<fixesByProvider.length;i++){
+            count+=fixesByProvider[i];
+        }
+        return count;
+    }
+    /**
+     * @param providerId one of LocationHistory.PROVIDER_*
+     */
+    public int getFixCount(int providerId){
+        return fixesByProvider[providerId];
+    }
+    public int getNotFusedCount(){
+        return notFusedFixes;
+    }
+    public int getRejectedCount(){
+        return rejectedFixes;
+    }
+    /**
+     * @return fixes in each bucket of PROCESSING_BUCKETS_US, and above the last one
+     */
+    public int getProcessingCount(int bucket){
+        return processingHistogram[bucket];
+    }
+    /**
+     * @return the processing time below which the given fraction of the fixes were processed,
+     * as the upper bound of its bucket in microseconds. -1 if it is in the last bucket
+     */
+    public int getProcessingPercentile(double fraction){
+        int total=getFixCount();
+        int needed=(int)Math.ceil(total*fraction);
+        int count=0;
+        for(int i=0;i<PROCESSING_BUCKETS_US.length;i++){
+            count+=processingHistogram[i];
+            if(count>=needed){
+                return PROCESSING_BUCKETS_US[i];
+            }
+        }
+        return -1;
+    }
+    /**
+     * @return microseconds
+     */
+    public long getAverageProcessingTime(){
+        int total=getFixCount();
+        return total==0 ? 0 : totalProcessingTime/total/1000;
+    }
+    public long getLastFixAge(){
+        return lastFixAge;
+    }
+    public long getMaxFixAge(){
+        return maxFixAge;
+    }
+    public long getAverageFixAge(){
+        int total=getFixCount();
+        return total==0 ? 0 : totalFixAge/total;
+    }
+    public int getEnableCount(){
+        return enableCount;
+    }
+    public int getDisableCount(){
+        return disableCount;
+    }
+    public int getConnectCount(){
+        return connectCount;
+    }
+    public long getLastConnectTime(){
+        return lastConnectTime;
+    }
+    public long getMaxConnectTime(){
+        return maxConnectTime;
+    }
+    public long getAverageConnectTime(){
+        return connectCount==0 ? 0 : totalConnectTime/connectCount;
+    }
+    /**
+     * @return times bluetooth was disabled because no device connected in time
+     */
+    public int getConnectTimeoutCount(){
+        return connectTimeouts;
+    }
+    /**
+     * @return milliseconds the watchdog waits for a connect
+     */
+    public long getConnectTimeout(){
+        return connectTimeout;
+    }
+    /**
+     * @return connects in each bucket of ConnectWatchdog.BUCKETS_MS, and above the last one
+     */
+    public int getConnectLatencyCount(int bucket){
+        return connectHistogram[bucket];
+    }
+
+    /**
+     * @return the estimated average current of the service in mA
+     */
+    public float getEstimatedCurrent(){
+        return currentTotal;
+    }
+    public float getEstimatedGpsCurrent(){
+        return currentGps;
+    }
+    public float getEstimatedNetworkCurrent(){
+        return currentNetwork;
+    }
+    public float getEstimatedFixCurrent(){
+        return currentFixes;
+    }
+    public float getEstimatedBluetoothCurrent(){
+        return currentBluetooth;
+    }
+    public long getTunerPassCount(){
+        return tunerPasses;
+    }
+    /**
+     * @return the GPS minTime recommended by the tuner in milliseconds, -1 if it has no result yet
+     */
+    public long getTunedMinTime(){
+        return tunedMinTime;
+    }
+    /**
+     * @return the GPS minDistance recommended by the tuner in meters, -1 if it has no result yet
+     */
+    public int getTunedMinDistance(){
+        return tunedMinDistance;
+    }
+    /**
+     * @return the estimated average current with the recommended settings, in mA
+     */
+    public float getTunedCurrent(){
+        return tunedCurrent;
+    }
+    public int getTuningsAppliedCount(){
+        return tuningsApplied;
+    }
+
+    /**
+     * @return milliseconds the metrics covered when the snapshot was taken
+     */
+    public long getUptime(){
+        return takenAt-createdAt;
+    }
+
+    /**
+     * @return the metrics as lines of text, for display and logging
+     */
+    public String describe(){
+        StringBuilder sb=new StringBuilder();
+        sb.append("Uptime ").append(getUptime()/1000).append(" s\n");
+        sb.append("Fixes ").append(getFixCount()).append(" (GPS ").append(getFixCount(LocationHistory.PROVIDER_GPS))
+            .append(", network ").append(getFixCount(LocationHistory.PROVIDER_NETWORK)).append(")\n");
+        sb.append("Not fused ").append(notFusedFixes).append(", rejected ").append(rejectedFixes).append("\n");
+        sb.append("Processing avg ").append(getAverageProcessingTime()).append(" us, p50 ");
+        appendBucket(sb, getProcessingPercentile(0.5));
+        sb.append(", p99 ");
+        appendBucket(sb, getProcessingPercentile(0.99));
+        sb.append("\n");
+        sb.append("Fix age avg ").append(getAverageFixAge()).append(" ms, max ").append(maxFixAge).append(" ms\n");
+        sb.append("Enabled ").append(enableCount).append(", disabled ").append(disableCount).append("\n");
+        sb.append("Enable to connect avg ").append(getAverageConnectTime()).append(" ms, max ").append(maxConnectTime)
+            .append(" ms (").append(connectCount).append(")\n");
+        sb.append("Connect timeout ").append(connectTimeout/1000).append(" s, ").append(connectTimeouts).append(" timed out\n");
+        sb.append("Connect latency");
+        for(int i=0;i<connectHistogram.length;i++){
+            if(i<ConnectWatchdog.BUCKETS_MS.length){
+                sb.append(" <=").append(ConnectWatchdog.BUCKETS_MS[i]/1000).append("s:");
+            }else {
+                sb.append(" more:");
+            }
+            sb.append(connectHistogram[i]);
+        }
+        sb.append("\n");
+        sb.append("Bluetooth on ").append(Math.round(getBluetoothOnFraction(takenAt)*100)).append("% of the time\n");
+        sb.append("Estimated current ").append(formatCurrent(currentTotal)).append(" (GPS ").append(formatCurrent(currentGps))
+            .append(", network ").append(formatCurrent(currentNetwork)).append(", fixes ").append(formatCurrent(currentFixes))
+            .append(", bluetooth ").append(formatCurrent(currentBluetooth)).append(")\n");
+        if(tunedMinTime<0){
+            sb.append("Tuner has no result yet");
+        }else {
+            sb.append("Tuner: GPS every ").append(tunedMinTime/1000).append(" s / ").append(tunedMinDistance)
+                .append(" m, ").append(formatCurrent(tunedCurrent)).append(" (").append(tunerPasses).append(" passes, ")
+                .append(tuningsApplied).append(" applied)");
+        }
+        return sb.toString();
+    }
+
+    private static String formatCurrent(float mA){
+        return Math.round(mA*10)/10f + " mA";
+    }
+
+    private static void appendBucket(StringBuilder sb, int bound){
+        if(bound<0){
+            sb.append(">").append(PROCESSING_BUCKETS_US[PROCESSING_BUCKETS_US.length-1]).append(" us");
+        }else {
+            sb.append("<").append(bound).append(" us");
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.banasiak.android.btom;
+
+/**
+ * Estimates the current speed from the locations stored in a
+ * LocationHistory.
+ *
+ * The service calls onFixAdded every time a location has been added to
+ * the history, so stateful estimators can update incrementally.
+ * Implementations are created through SpeedEstimators and selected
+ * with BluetoothOnMotionPreferences.
+ */
+public interface SpeedEstimator {
+
+    /**
+     * Called after a new fix has been added as entry 0 of the history
+     */
+    void onFixAdded(LocationHistory history);
+
+    /**
+     * @return estimated speed in meters pr second
+     */
+    float getSpeed();
+
+    /**
+     * @return variance of the estimated speed in (meters pr second)^2,
+     * Float.MAX_VALUE if there is no estimate yet
+     */
+    float getSpeedVariance();
+
+    /**
+     * Forget all previous fixes
+     */
+    void reset();
+}
@@ -0,0 +1,51 @@
+package com.banasiak.android.btom;
+
+/**
+ * Names and factory for the available SpeedEstimator implementations.
+ * The names are the values stored in BluetoothOnMotionPreferences.
+ */
+public final class SpeedEstimators {
+    public final static String TWO_POINT="TwoPoint";
+    public final static String LEAST_SQUARES="LeastSquares";
+    public final static String MEDIAN_OF_SEGMENTS="MedianOfSegments";
+    public final static String KALMAN="Kalman";
+
+    public final static String[] NAMES={TWO_POINT, LEAST_SQUARES, MEDIAN_OF_SEGMENTS, KALMAN};
+
+    //fixes used by the windowed estimators
+    private final static int LEAST_SQUARES_WINDOW=10;
+    private final static int MEDIAN_WINDOW=5;
+
+    //number of fixes the history must keep for all estimators to work
+    public final static int REQUIRED_HISTORY_SIZE=LEAST_SQUARES_WINDOW;
+
+    private SpeedEstimators(){
+    }
+
+    /**
+     * Create the estimator with the given name.
+     * Unknown names give the Kalman estimator.
+     */
+    public static SpeedEstimator create(String name){
+        if(TWO_POINT.equals(name)){
+            return new TwoPointSpeedEstimator();
+        }else if(LEAST_SQUARES.equals(name)){
+            return new LeastSquaresSpeedEstimator(LEAST_SQUARES_WINDOW);
+        }else if(MEDIAN_OF_SEGMENTS.equals(name)){
+            return new MedianSegmentSpeedEstimator(MEDIAN_WINDOW);
+        }
+        return new KalmanSpeedEstimator();
+    }
+
+    /**
+     * Variance propagated from the variance of the east and north
+     * velocity to the variance of the speed
+     */
+    static float speedVariance(double vEast, double vNorth, double varEast, double varNorth){
+        double speed2=vEast*vEast + vNorth*vNorth;
+        if(speed2<1e-6){
+            return (float) ((varEast + varNorth)/2);
+        }
+        return (float) ((vEast*vEast*varEast + vNorth*vNorth*varNorth)/speed2);
+    }
+}
@@ -0,0 +1,188 @@
+package com.banasiak.android.btom;
+
+import android.os.Handler;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Pushes the status of the service to the clients registered through
+ * IOnMotionService.
+ *
+ * Updates are coalesced: the newest status replaces one still waiting,
+ * and a status which only differs by a small change in speed is not sent
+ * at all. At most one broadcast is made pr minInterval, so a fast stream
+ * of fixes does not become a binder transaction pr fix and client. A new
+ * client gets the current status at once.
+ *
+ * Must be called from the thread of the handler given to the constructor,
+ * except register and unregister which may be called from any thread.
+ */
+public class StatusPublisher {
+    public final static long DEFAULT_MIN_INTERVAL_MS=1000;
+    //speed changes below this, in meters pr second, are not worth a broadcast
+    private final static float SPEED_CHANGE=0.5f;
+
+    private final Handler handler;
+    private final long minInterval;
+    private final RemoteCallbackList<IOnMotionCallback> callbacks = new RemoteCallbackList<IOnMotionCallback>();
+
+    //the newest status
+    private boolean serviceStarted=false;
+    private int motionState=MotionStateMachine.STATIONARY;
+    private float speed=0f;
+    private boolean bluetoothEnabled=false;
+    private int lastDecision=MotionController.DECISION_NONE;
+    private int lastReason=MotionController.REASON_NONE;
+
+    //what was sent last
+    private boolean sentServiceStarted;
+    private int sentMotionState;
+    private float sentSpeed;
+    private boolean sentBluetoothEnabled;
+    private int sentLastDecision;
+    private int sentLastReason;
+    private boolean sent=false;
+
+    private long lastBroadcast=-1;
+    private boolean scheduled=false;
+    private long broadcastCount=0;
+    private long coalescedCount=0;
+
+    private final Runnable broadcast = new Runnable(){
+        @Override
+        public void run() {
+            scheduled=false;
+            broadcast();
+        }
+    };
+
+    public StatusPublisher(Handler handler){
+        this(handler, DEFAULT_MIN_INTERVAL_MS);
+    }
+
+    public StatusPublisher(Handler handler, long minInterval){
+        this.handler=handler;
+        this.minInterval=minInterval;
+    }
+
+    public void setServiceStarted(boolean started){
+        serviceStarted=started;
+        changed();
+    }
+
+    public void setMotion(int motionState, float speed){
+        this.motionState=motionState;
+        this.speed=speed;
+        changed();
+    }
+
+    public void setBluetoothEnabled(boolean enabled){
+        bluetoothEnabled=enabled;
+        changed();
+    }
+
+    /**
+     * @param decision MotionController.DECISION_ENABLE or DECISION_DISABLE
+     * @param reason one of MotionController.REASON_*
+     */
+    public void setLastToggle(int decision, int reason){
+        lastDecision=decision;
+        lastReason=reason;
+        bluetoothEnabled=decision==MotionController.DECISION_ENABLE;
+        changed();
+    }
+
+    private void changed(){
+        if(!isWorthSending()){
+            return;
+        }
+        if(scheduled){
+            coalescedCount++;
+            return;
+        }
+        long now=SystemClock.uptimeMillis();
+        long due=lastBroadcast<0 ? now : lastBroadcast+minInterval;
+        scheduled=true;
+        if(due<=now){
+            handler.post(broadcast);
+        }else {
+            handler.postAtTime(broadcast, due);
+        }
+    }
+
+    private boolean isWorthSending(){
+        return !sent
+                || serviceStarted!=sentServiceStarted
+                || motionState!=sentMotionState
+                || bluetoothEnabled!=sentBluetoothEnabled
+                || lastDecision!=sentLastDecision
+                || lastReason!=sentLastReason
+                || Math.abs(speed-sentSpeed)>=SPEED_CHANGE;
+    }
+
+    private void broadcast(){
+        if(!isWorthSending()){
+            //changed back before it was sent
+            return;
+        }
+        lastBroadcast=SystemClock.uptimeMillis();
+        sent=true;
+        sentServiceStarted=serviceStarted;
+        sentMotionState=motionState;
+        sentSpeed=speed;
+        sentBluetoothEnabled=bluetoothEnabled;
+        sentLastDecision=lastDecision;
+        sentLastReason=lastReason;
+        broadcastCount++;
+
+        int count=callbacks.beginBroadcast();
+        try {
+            for(int i=0;i<count;i++){
+                send(callbacks.getBroadcastItem(i));
+            }
+        }finally {
+            callbacks.finishBroadcast();
+        }
+    }
+
+    private void send(IOnMotionCallback callback){
+        try {
+            callback.onStatusChanged(serviceStarted, motionState, speed, bluetoothEnabled, lastDecision, lastReason);
+        }catch (RemoteException e){
+            //the client is gone, the callback list drops it
+        }
+    }
+
+    /**
+     * Add a client, it gets the current status at once
+     */
+    public void register(final IOnMotionCallback callback){
+        if(callbacks.register(callback)){
+            handler.post(new Runnable(){
+                @Override
+                public void run() {
+                    send(callback);
+                }
+            });
+        }
+    }
+
+    public void unregister(IOnMotionCallback callback){
+        callbacks.unregister(callback);
+    }
+
+    /**
+     * Send what is waiting and drop all clients, when the service stops
+     */
+    public void kill(){
+        handler.removeCallbacks(broadcast);
+        if(scheduled){
+            scheduled=false;
+            broadcast();
+        }
+        callbacks.kill();
+        Log.i(this.getClass().getName(), "Status broadcasts " + broadcastCount + ", " + coalescedCount + " updates coalesced");
+    }
+}
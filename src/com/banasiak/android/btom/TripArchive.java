@@ -0,0 +1,524 @@
+package com.banasiak.android.btom;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact archive format for long term storage and export of drive
+ * history, with the fields LocationHistory records: time, latitude,
+ * longitude, accuracy, speed and provider.
+ *
+ * The archive is a header followed by blocks of up to BLOCK_FIXES fixes.
+ * Every block starts with a header holding the number of fixes, the size
+ * of the payload, the time of the last fix and the first fix in full,
+ * so a reader can skip whole blocks to seek by time. The rest of the
+ * fixes are stored as the change of the delta from the fix before
+ * (delta of delta), as zigzag varints:
+ *
+ *   flags   bit 0: time delta is unchanged, else a time varint follows
+ *           bit 1: accuracy is unchanged, else an accuracy varint follows
+ *           bit 2: provider is unchanged, else a provider byte follows
+ *           bit 3: speed varint follows, else bits 4-7 hold the speed change
+ *   [time] [accuracy] [provider] [speed] latitude longitude
+ *
+ * At one fix pr second on a steady drive this is three bytes pr fix.
+ * The values are stored as fixed point, which is below what the
+ * providers can measure: latitude and longitude in 1e-5 degrees (1.1m),
+ * time in milliseconds, accuracy in meters and speed in 0.25 meters pr
+ * second. Unknown accuracy and speed (NaN) are kept.
+ */
+public class TripArchive {
+    public final static int BLOCK_FIXES=256;
+
+    private final static int MAGIC=0x42544f41; //BTOA
+    private final static int VERSION=1;
+
+    private final static double DEGREE_SCALE=1e5;
+    private final static float SPEED_SCALE=4f;
+    //quantized value of an unknown accuracy or speed
+    private final static int UNKNOWN=-1;
+
+    private final static int FLAG_SAME_TIME_DELTA=1;
+    private final static int FLAG_SAME_ACCURACY=2;
+    private final static int FLAG_SAME_PROVIDER=4;
+    private final static int FLAG_SPEED_VARINT=8;
+
+    /**
+     * Writes fixes to a stream, a block at a time.
+     * close() (or finish()) must be called to write the last block.
+     */
+    public static class Writer {
+        private final OutputStream out;
+        private final ByteSink blockHeader=new ByteSink(16);
+        //the first fix of the block
+        private final ByteSink header=new ByteSink(64);
+        private final ByteSink payload=new ByteSink(BLOCK_FIXES*4);
+
+        private int count=0;
+        private long fixCount=0;
+        private long time;
+        private long timeDelta;
+        private int lat, lon;
+        private int latDelta, lonDelta;
+        private int accuracy;
+        private int speed;
+        private int provider;
+
+        public Writer(OutputStream out) throws IOException {
+            this.out=out;
+            header.writeInt(MAGIC);
+            header.write(VERSION);
+            header.writeTo(out);
+        }
+
+        public void add(long timeMillis, double latitude, double longitude, float acc, float spd, int providerId) throws IOException {
+            int qLat=quantizeDegrees(latitude);
+            int qLon=quantizeDegrees(longitude);
+            int qAccuracy=quantizeAccuracy(acc);
+            int qSpeed=quantizeSpeed(spd);
+
+            if(count==0){
+                header.writeVarLong(zigzag(timeMillis));
+                header.writeVarInt(zigzag(qLat));
+                header.writeVarInt(zigzag(qLon));
+                header.writeVarInt(zigzag(qAccuracy));
+                header.writeVarInt(zigzag(qSpeed));
+                header.write(providerId);
+                timeDelta=0;
+                latDelta=0;
+                lonDelta=0;
+            }else {
+                long newTimeDelta=timeMillis-time;
+                int newLatDelta=qLat-lat;
+                int newLonDelta=qLon-lon;
+                int speedChange=qSpeed-speed;
+
+                int flags=0;
+                if(newTimeDelta==timeDelta){
+                    flags|=FLAG_SAME_TIME_DELTA;
+                }
+                if(qAccuracy==accuracy){
+                    flags|=FLAG_SAME_ACCURACY;
+                }
+                if(providerId==provider){
+                    flags|=FLAG_SAME_PROVIDER;
+                }
+                if(speedChange>=-8 && speedChange<=7){
+                    flags|=zigzag(speedChange)<<4;
+                }else {
+                    flags|=FLAG_SPEED_VARINT;
+                }
+                payload.write(flags);
+                if((flags & FLAG_SAME_TIME_DELTA)==0){
+                    payload.writeVarLong(zigzag(newTimeDelta-timeDelta));
+                }
+                if((flags & FLAG_SAME_ACCURACY)==0){
+                    payload.writeVarInt(zigzag(qAccuracy));
+                }
+                if((flags & FLAG_SAME_PROVIDER)==0){
+                    payload.write(providerId);
+                }
+                if((flags & FLAG_SPEED_VARINT)!=0){
+                    payload.writeVarInt(zigzag(speedChange));
+                }
+                payload.writeVarInt(zigzag(newLatDelta-latDelta));
+                payload.writeVarInt(zigzag(newLonDelta-lonDelta));
+                timeDelta=newTimeDelta;
+                latDelta=newLatDelta;
+                lonDelta=newLonDelta;
+            }
+            time=timeMillis;
+            lat=qLat;
+            lon=qLon;
+            accuracy=qAccuracy;
+            speed=qSpeed;
+            provider=providerId;
+            count++;
+            fixCount++;
+            if(count==BLOCK_FIXES){
+                writeBlock();
+            }
+        }
+
+        /**
+         * Add the entry at index of the history
+         */
+        public void add(LocationHistory history, int index) throws IOException {
+            add(history.getTime(index), history.getLatitude(index), history.getLongitude(index),
+                    history.getAccuracy(index), history.getSpeed(index), history.getProvider(index));
+        }
+
+        private void writeBlock() throws IOException {
+            if(count==0){
+                return;
+            }
+            blockHeader.writeVarInt(count);
+            blockHeader.writeVarInt(payload.size());
+            blockHeader.writeVarLong(time);
+            blockHeader.writeTo(out);
+            header.writeTo(out);
+            payload.writeTo(out);
+            count=0;
+        }
+
+        /**
+         * Write the last block, the stream is left open
+         */
+        public void finish() throws IOException {
+            writeBlock();
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            finish();
+            out.close();
+        }
+
+        /**
+         * @return number of fixes added
+         */
+        public long getFixCount(){
+            return fixCount;
+        }
+    }
+
+    /**
+     * Decodes an archive block by block. The getters return the
+     * fields of the current fix, no objects are created pr fix.
+     */
+    public static class Reader {
+        private final InputStream in;
+        private byte[] block=new byte[BLOCK_FIXES*8];
+        private int blockSize;
+        private int pos;
+        //fixes left in the current block, after the current one
+        private int remaining=0;
+        private int blockCount;
+        private long blockLastTime;
+        //a fix found by seek is returned by the next call to next()
+        private boolean pending=false;
+
+        private long time;
+        private long timeDelta;
+        private int lat, lon;
+        private int latDelta, lonDelta;
+        private int accuracy;
+        private int speed;
+        private int provider;
+
+        public Reader(InputStream in) throws IOException {
+            this.in=in;
+            if(readInt()!=MAGIC){
+                throw new IOException("Not a trip archive");
+            }
+            int version=in.read();
+            if(version!=VERSION){
+                throw new IOException("Unsupported trip archive version " + version);
+            }
+        }
+
+        /**
+         * Move to the next fix
+         * @return false at the end of the archive
+         */
+        public boolean next() throws IOException {
+            if(pending){
+                pending=false;
+                return true;
+            }
+            if(remaining>0){
+                remaining--;
+                decodeDelta();
+                return true;
+            }
+            if(!readBlockHeader()){
+                return false;
+            }
+            readPayload();
+            return true;
+        }
+
+        /**
+         * Skip whole blocks which end before timeMillis, and the fixes
+         * before it in the block where it is. The next call to next()
+         * returns the first fix at or after timeMillis.
+         * @return false if there is no such fix
+         */
+        public boolean seek(long timeMillis) throws IOException {
+            while(true){
+                if(remaining==0){
+                    if(!readBlockHeader()){
+                        return false;
+                    }
+                    if(blockLastTime<timeMillis){
+                        skipFully(blockSize);
+                        continue;
+                    }
+                    readPayload();
+                    if(time>=timeMillis){
+                        pending=true;
+                        return true;
+                    }
+                }
+                while(remaining>0){
+                    remaining--;
+                    decodeDelta();
+                    if(time>=timeMillis){
+                        pending=true;
+                        return true;
+                    }
+                }
+            }
+        }
+
+        private boolean readBlockHeader() throws IOException {
+            int first=in.read();
+            if(first<0){
+                return false;
+            }
+            blockCount=readVarInt(first);
+            blockSize=readVarInt(in.read());
+            blockLastTime=readVarLong();
+            time=unzigzag(readVarLong());
+            lat=unzigzag(readVarInt(in.read()));
+            lon=unzigzag(readVarInt(in.read()));
+            accuracy=unzigzag(readVarInt(in.read()));
+            speed=unzigzag(readVarInt(in.read()));
+            provider=in.read();
+            if(provider<0){
+                throw new EOFException();
+            }
+            timeDelta=0;
+            latDelta=0;
+            lonDelta=0;
+            return true;
+        }
+
+        private void readPayload() throws IOException {
+            if(block.length<blockSize){
+                block=new byte[blockSize];
+            }
+            int read=0;
+            while(read<blockSize){
+                int n=in.read(block, read, blockSize-read);
+                if(n<0){
+                    throw new EOFException();
+                }
+                read+=n;
+            }
+            pos=0;
+            remaining=blockCount-1;
+        }
+
+        private void decodeDelta(){
+            int flags=block[pos++] & 0xff;
+            if((flags & FLAG_SAME_TIME_DELTA)==0){
+                timeDelta+=unzigzag(blockVarLong());
+            }
+            if((flags & FLAG_SAME_ACCURACY)==0){
+                accuracy=unzigzag((int)blockVarLong());
+            }
+            if((flags & FLAG_SAME_PROVIDER)==0){
+                provider=block[pos++] & 0xff;
+            }
+            if((flags & FLAG_SPEED_VARINT)!=0){
+                speed+=unzigzag((int)blockVarLong());
+            }else {
+                speed+=unzigzag(flags>>>4);
+            }
+            latDelta+=unzigzag((int)blockVarLong());
+            lonDelta+=unzigzag((int)blockVarLong());
+            time+=timeDelta;
+            lat+=latDelta;
+            lon+=lonDelta;
+        }
+
+        private long blockVarLong(){
+            long value=0;
+            int shift=0;
+            int b;
+            do {
+                b=block[pos++];
+                value|=(long)(b & 0x7f)<<shift;
+                shift+=7;
+            }while((b & 0x80)!=0);
+            return value;
+        }
+
+        private int readVarInt(int first) throws IOException {
+            int value=0;
+            int shift=0;
+            int b=first;
+            while(true){
+                if(b<0){
+                    throw new EOFException();
+                }
+                value|=(b & 0x7f)<<shift;
+                if((b & 0x80)==0){
+                    return value;
+                }
+                shift+=7;
+                b=in.read();
+            }
+        }
+
+        private long readVarLong() throws IOException {
+            long value=0;
+            int shift=0;
+            while(true){
+                int b=in.read();
+                if(b<0){
+                    throw new EOFException();
+                }
+                value|=(long)(b & 0x7f)<<shift;
+                if((b & 0x80)==0){
+                    return value;
+                }
+                shift+=7;
+            }
+        }
+
+        private int readInt() throws IOException {
+            int value=0;
+            for(int i=0;i<4;i++){
+                int b=in.read();
+                if(b<0){
+                    throw new EOFException();
+                }
+                value=(value<<8) | b;
+            }
+            return value;
+        }
+
+        private void skipFully(long bytes) throws IOException {
+            while(bytes>0){
+                long skipped=in.skip(bytes);
+                if(skipped<=0){
+                    if(in.read()<0){
+                        throw new EOFException();
+                    }
+                    skipped=1;
+                }
+                bytes-=skipped;
+            }
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        public long getTime(){
+            return time;
+        }
+        public double getLatitude(){
+            return lat/DEGREE_SCALE;
+        }
+        public double getLongitude(){
+            return lon/DEGREE_SCALE;
+        }
+        /**
+         * @return accuracy in meters, NaN if unknown
+         */
+        public float getAccuracy(){
+            return accuracy==UNKNOWN ? Float.NaN : accuracy;
+        }
+        /**
+         * @return speed in meters pr second, NaN if unknown
+         */
+        public float getSpeed(){
+            return speed==UNKNOWN ? Float.NaN : speed/SPEED_SCALE;
+        }
+        public int getProvider(){
+            return provider;
+        }
+    }
+
+    static int quantizeDegrees(double degrees){
+        return (int)Math.round(degrees*DEGREE_SCALE);
+    }
+
+    static int quantizeAccuracy(float accuracy){
+        if(Float.isNaN(accuracy) || accuracy<0){
+            return UNKNOWN;
+        }
+        return Math.round(Math.min(accuracy, 1000000f));
+    }
+
+    static int quantizeSpeed(float speed){
+        if(Float.isNaN(speed) || speed<0){
+            return UNKNOWN;
+        }
+        return Math.round(Math.min(speed, 10000f)*SPEED_SCALE);
+    }
+
+    static int zigzag(int value){
+        return (value<<1) ^ (value>>31);
+    }
+    static long zigzag(long value){
+        return (value<<1) ^ (value>>63);
+    }
+    static int unzigzag(int value){
+        return (value>>>1) ^ -(value & 1);
+    }
+    static long unzigzag(long value){
+        return (value>>>1) ^ -(value & 1);
+    }
+
+    /**
+     * Growable byte buffer, reused for every block
+     */
+    private static class ByteSink {
+        private byte[] bytes;
+        private int size=0;
+
+        ByteSink(int capacity){
+            bytes=new byte[capacity];
+        }
+
+        void write(int b){
+            if(size==bytes.length){
+                byte[] grown=new byte[bytes.length*2];
+                System.arraycopy(bytes, 0, grown, 0, size);
+                bytes=grown;
+            }
+            bytes[size++]=(byte)b;
+        }
+
+        void writeInt(int value){
+            write(value>>>24);
+            write(value>>>16);
+            write(value>>>8);
+            write(value);
+        }
+
+        void writeVarInt(int value){
+            while((value & ~0x7f)!=0){
+                write((value & 0x7f) | 0x80);
+                value>>>=7;
+            }
+            write(value);
+        }
+
+        void writeVarLong(long value){
+            while((value & ~0x7fL)!=0){
+                write((int)(value & 0x7f) | 0x80);
+                value>>>=7;
+            }
+            write((int)value);
+        }
+
+        int size(){
+            return size;
+        }
+
+        /**
+         * Write the bytes to out and empty the buffer
+         */
+        void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+            size=0;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.banasiak.android.btom;
+
+/**
+ * The original estimate: distance between the two newest fixes
+ * divided by the time between them.
+ */
+public class TwoPointSpeedEstimator implements SpeedEstimator {
+    //used when a fix does not report its accuracy
+    private final static float DEFAULT_ACCURACY_M=50f;
+
+    private float speed=0f;
+    private float variance=Float.MAX_VALUE;
+
+    @Override
+    public void onFixAdded(LocationHistory history){
+        if(history.size()<2){
+            return;
+        }
+        long timeMillis=history.getTime(0)-history.getTime(1);
+        if(timeMillis<=0){
+            return;
+        }
+        speed=history.getEstimatedSpeed();
+
+        float acc0=accuracyOf(history.getAccuracy(0));
+        float acc1=accuracyOf(history.getAccuracy(1));
+        double seconds=timeMillis/1000.0;
+        variance=(float) ((acc0*acc0 + acc1*acc1)/(seconds*seconds));
+    }
+
+    private static float accuracyOf(float accuracy){
+        return (Float.isNaN(accuracy) || accuracy<=0f) ? DEFAULT_ACCURACY_M : accuracy;
+    }
+
+    @Override
+    public float getSpeed(){
+        return speed;
+    }
+
+    @Override
+    public float getSpeedVariance(){
+        return variance;
+    }
+
+    @Override
+    public void reset(){
+        speed=0f;
+        variance=Float.MAX_VALUE;
+    }
+}
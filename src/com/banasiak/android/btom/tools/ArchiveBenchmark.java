@@ -0,0 +1,187 @@
+package com.banasiak.android.btom.tools;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+import com.banasiak.android.btom.GeoDistance;
+import com.banasiak.android.btom.LocationHistory;
+import com.banasiak.android.btom.TripArchive;
+
+/**
+ * Compares the TripArchive format with plain CSV on the same fixes:
+ * bytes pr fix, encode and decode throughput, and the worst error the
+ * fixed point values introduce.
+ *
+ * Runs on a plain JVM:
+ *   java com.banasiak.android.btom.tools.ArchiveBenchmark [trace.csv|trace.gpx ...]
+ * Without arguments a day of 1 Hz GPS driving is generated.
+ */
+public class ArchiveBenchmark {
+    private final static int SYNTHETIC_FIXES=24*3600;
+    //minimum time spent measuring one codec
+    private final static long MIN_TIMING_NANOS=300L*1000*1000;
+
+    public static void main(String[] args) throws IOException {
+        if(args.length==0){
+            run("synthetic 1 Hz drive", synthetic());
+        }
+        for(String arg : args){
+            run(arg, new FleetSimulator.Trace(arg));
+        }
+    }
+
+    /**
+     * Driving at 10-30 m/s with gentle turns and a few meters of GPS noise
+     */
+    private static FleetSimulator.Trace synthetic(){
+        Random random=new Random(42);
+        FleetSimulator.Trace trace=new FleetSimulator.Trace(SYNTHETIC_FIXES);
+        double lat=59.9, lon=10.7;
+        double speed=20, bearing=0;
+        long time=1300000000000L;
+        for(int i=0; i<SYNTHETIC_FIXES; i++){
+            time+=1000;
+            speed=Math.max(0, Math.min(35, speed + random.nextGaussian()*0.5));
+            bearing+=random.nextGaussian()*0.05;
+            lat+=Math.toDegrees(speed*Math.cos(bearing)/GeoDistance.EARTH_RADIUS_M);
+            lon+=Math.toDegrees(speed*Math.sin(bearing)/(GeoDistance.EARTH_RADIUS_M*GeoDistance.cosLatitude(lat)));
+            double noise=2.0;
+            trace.time[i]=time;
+            trace.lat[i]=lat + Math.toDegrees(random.nextGaussian()*noise/GeoDistance.EARTH_RADIUS_M);
+            trace.lon[i]=lon + Math.toDegrees(random.nextGaussian()*noise/(GeoDistance.EARTH_RADIUS_M*GeoDistance.cosLatitude(lat)));
+            trace.accuracy[i]=4 + random.nextInt(3);
+            trace.speed[i]=(float) speed;
+            trace.provider[i]=LocationHistory.PROVIDER_GPS;
+        }
+        return trace;
+    }
+
+    private static void run(String name, FleetSimulator.Trace trace) throws IOException {
+        int n=trace.time.length;
+        byte[] archive=encodeArchive(trace);
+        byte[] csv=encodeCsv(trace);
+
+        //round trip, and the worst error of the fixed point values
+        TripArchive.Reader reader=new TripArchive.Reader(new ByteArrayInputStream(archive));
+        double worstMeters=0;
+        float worstSpeed=0;
+        for(int i=0; i<n; i++){
+            if(!reader.next() || reader.getTime()!=trace.time[i]){
+                throw new IllegalStateException("fix " + i + " did not survive the round trip");
+            }
+            worstMeters=Math.max(worstMeters, GeoDistance.haversine(trace.lat[i], trace.lon[i], reader.getLatitude(), reader.getLongitude()));
+            if(!Float.isNaN(trace.speed[i])){
+                worstSpeed=Math.max(worstSpeed, Math.abs(trace.speed[i]-reader.getSpeed()));
+            }
+        }
+
+        System.out.println(String.format("%s: %d fixes", name, n));
+        System.out.println(String.format("  %-8s %10s %10s %14s %14s", "format", "bytes", "bytes/fix", "encode fix/s", "decode fix/s"));
+        //twice, the first round warms up the JIT
+        for(int warmup=0; warmup<2; warmup++){
+            double archiveEncode=timeEncode(trace, true);
+            double archiveDecode=timeDecodeArchive(archive, n);
+            double csvEncode=timeEncode(trace, false);
+            double csvDecode=timeDecodeCsv(csv, n);
+            if(warmup==1){
+                System.out.println(String.format("  %-8s %10d %10.2f %14.0f %14.0f", "archive", archive.length, archive.length/(double) n, archiveEncode, archiveDecode));
+                System.out.println(String.format("  %-8s %10d %10.2f %14.0f %14.0f", "csv", csv.length, csv.length/(double) n, csvEncode, csvDecode));
+            }
+        }
+        System.out.println(String.format("  archive is %.1f%% of csv, worst position error %.3f m, worst speed error %.3f m/s",
+                100.0*archive.length/csv.length, worstMeters, worstSpeed));
+    }
+
+    private static byte[] encodeArchive(FleetSimulator.Trace trace) throws IOException {
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        TripArchive.Writer writer=new TripArchive.Writer(out);
+        for(int i=0; i<trace.time.length; i++){
+            writer.add(trace.time[i], trace.lat[i], trace.lon[i], trace.accuracy[i], trace.speed[i], trace.provider[i]);
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeCsv(FleetSimulator.Trace trace) throws IOException {
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        Writer writer=new OutputStreamWriter(out, "US-ASCII");
+        StringBuilder line=new StringBuilder();
+        writer.write("time_ms,lat,lon,accuracy,speed,provider\n");
+        for(int i=0; i<trace.time.length; i++){
+            line.setLength(0);
+            line.append(trace.time[i]).append(',').append(trace.lat[i]).append(',').append(trace.lon[i]).append(',')
+                .append(trace.accuracy[i]).append(',').append(trace.speed[i]).append(',')
+                .append(trace.provider[i]==LocationHistory.PROVIDER_GPS ? "gps" : "network").append('\n');
+            writer.append(line);
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * @return fixes encoded pr second
+     */
+    private static double timeEncode(FleetSimulator.Trace trace, boolean archive) throws IOException {
+        long fixes=0;
+        long start=System.nanoTime();
+        long elapsed;
+        do {
+            if(archive){
+                encodeArchive(trace);
+            }else{
+                encodeCsv(trace);
+            }
+            fixes+=trace.time.length;
+            elapsed=System.nanoTime()-start;
+        } while(elapsed<MIN_TIMING_NANOS);
+        return fixes*1e9/elapsed;
+    }
+
+    private static double timeDecodeArchive(byte[] archive, int n) throws IOException {
+        long fixes=0;
+        double sink=0;
+        long start=System.nanoTime();
+        long elapsed;
+        do {
+            TripArchive.Reader reader=new TripArchive.Reader(new ByteArrayInputStream(archive));
+            while(reader.next()){
+                sink+=reader.getLatitude() + reader.getLongitude() + reader.getSpeed() + reader.getTime();
+            }
+            fixes+=n;
+            elapsed=System.nanoTime()-start;
+        } while(elapsed<MIN_TIMING_NANOS);
+        if(sink==42){
+            System.out.println();
+        }
+        return fixes*1e9/elapsed;
+    }
+
+    private static double timeDecodeCsv(byte[] csv, int n) throws IOException {
+        long fixes=0;
+        double sink=0;
+        long start=System.nanoTime();
+        long elapsed;
+        do {
+            BufferedReader reader=new BufferedReader(new InputStreamReader(new ByteArrayInputStream(csv), "US-ASCII"));
+            reader.readLine();
+            String line;
+            while((line=reader.readLine())!=null){
+                String[] columns=line.split(",");
+                sink+=Double.parseDouble(columns[1]) + Double.parseDouble(columns[2])
+                        + Float.parseFloat(columns[4]) + Long.parseLong(columns[0]);
+            }
+            fixes+=n;
+            elapsed=System.nanoTime()-start;
+        } while(elapsed<MIN_TIMING_NANOS);
+        if(sink==42){
+            System.out.println();
+        }
+        return fixes*1e9/elapsed;
+    }
+}
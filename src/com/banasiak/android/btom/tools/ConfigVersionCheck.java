@@ -0,0 +1,93 @@
+package com.banasiak.android.btom.tools;
+
+import com.banasiak.android.btom.ConfigVersion;
+
+/**
+ * Checks that a config saved by a writer with a stale cache of the
+ * preferences is still taken by the service as the newest one.
+ *
+ * Each writer stands for a process with its own cached copy of the
+ * config file, the service keeps the highest version it has accepted,
+ * as BluetoothOnMotionService.swapConfig does. The scenarios:
+ * - two writers start from the same cache and save one after the other
+ * - the file on disk goes back to an old version, and a restarted
+ *   writer starts from it
+ * - the clock is set back between two saves of the same writer
+ *
+ * Runs on a plain JVM:
+ *   java com.banasiak.android.btom.tools.ConfigVersionCheck
+ * Exits with status 1 if the service would drop a save.
+ */
+public class ConfigVersionCheck {
+    //the version counted by older versions of the application, before it was a time
+    private final static long OLD_VERSION=7;
+    private final static long START=1300000000000L;
+
+    private static int failures=0;
+
+    /**
+     * A process which stores the preferences, with its cached version
+     */
+    static class Writer {
+        private long cachedVersion;
+
+        Writer(long cachedVersion) {
+            this.cachedVersion=cachedVersion;
+        }
+
+        long save(long now) {
+            cachedVersion=ConfigVersion.next(cachedVersion, now);
+            return cachedVersion;
+        }
+    }
+
+    /**
+     * The service side of the config, which ignores versions it has seen
+     */
+    static class Service {
+        private long version=-1;
+
+        boolean offer(long newVersion) {
+            if(newVersion<=version){
+                return false;
+            }
+            version=newVersion;
+            return true;
+        }
+    }
+
+    public static void main(String[] args) {
+        //two writers start from the same cache
+        Service service=new Service();
+        service.offer(OLD_VERSION);
+        Writer first=new Writer(OLD_VERSION);
+        Writer second=new Writer(OLD_VERSION);
+        check("first of two stale writers", service.offer(first.save(START)));
+        check("second of two stale writers", service.offer(second.save(START+5000)));
+        check("first writer again", service.offer(first.save(START+10000)));
+
+        //the file went back to an old version, a restarted writer reads it
+        service=new Service();
+        service.offer(new Writer(OLD_VERSION).save(START));
+        Writer restarted=new Writer(OLD_VERSION);
+        check("restarted writer reading an old file", service.offer(restarted.save(START+60000)));
+
+        //the clock is set back an hour
+        service=new Service();
+        Writer writer=new Writer(OLD_VERSION);
+        service.offer(writer.save(START));
+        check("same writer after the clock went back", service.offer(writer.save(START-3600000L)));
+
+        if(failures>0){
+            System.out.println("FAILED: " + failures + " saves would be dropped");
+            System.exit(1);
+        }
+    }
+
+    private static void check(String name, boolean accepted) {
+        System.out.println(String.format("%-40s %s", name, accepted ? "accepted" : "DROPPED"));
+        if(!accepted){
+            failures++;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.banasiak.android.btom.tools;
+
+import java.util.Random;
+
+import com.banasiak.android.btom.GeoDistance;
+
+/**
+ * Compares the GeoDistance kernels against the Vincenty solution
+ * (the method Location.distanceTo uses):
+ * - worst relative error of each kernel for hops up to the fast path limit
+ * - nanoseconds per distance calculation
+ *
+ * Runs on a plain JVM:
+ *   java com.banasiak.android.btom.tools.DistanceBenchmark [fastPathLimitMeters]
+ * Exits with status 1 if the fast path error bound is exceeded.
+ */
+public class DistanceBenchmark {
+    private final static int PAIRS=4096;
+    private final static int ROUNDS=2000;
+    //the fast path is accepted if it is within this of vincenty
+    private final static double MAX_RELATIVE_ERROR=0.001;
+
+    public static void main(String[] args){
+        double limit=args.length>0 ? Double.parseDouble(args[0]) : GeoDistance.DEFAULT_FAST_PATH_LIMIT_M;
+        GeoDistance kernel=new GeoDistance(limit, false);
+
+        //random hops of up to the limit, at latitudes where people drive
+        Random random=new Random(42);
+        double[] lat1=new double[PAIRS], lon1=new double[PAIRS], cos1=new double[PAIRS];
+        double[] lat2=new double[PAIRS], lon2=new double[PAIRS], cos2=new double[PAIRS];
+        for(int i=0; i<PAIRS; i++){
+            lat1[i]=-70 + random.nextDouble()*140;
+            lon1[i]=-180 + random.nextDouble()*360;
+            double hop=1 + random.nextDouble()*limit;
+            double bearing=random.nextDouble()*2*Math.PI;
+            lat2[i]=lat1[i] + Math.toDegrees(hop*Math.cos(bearing)/GeoDistance.EARTH_RADIUS_M);
+            lon2[i]=lon1[i] + Math.toDegrees(hop*Math.sin(bearing)/(GeoDistance.EARTH_RADIUS_M*Math.cos(Math.toRadians(lat1[i]))));
+            cos1[i]=GeoDistance.cosLatitude(lat1[i]);
+            cos2[i]=GeoDistance.cosLatitude(lat2[i]);
+        }
+
+        double worstEquirectangular=0;
+        double worstHaversine=0;
+        for(int i=0; i<PAIRS; i++){
+            double reference=GeoDistance.vincenty(lat1[i], lon1[i], lat2[i], lon2[i]);
+            double fast=GeoDistance.equirectangular(lat1[i], lon1[i], cos1[i], lat2[i], lon2[i], cos2[i]);
+            double haversine=GeoDistance.haversine(lat1[i], lon1[i], lat2[i], lon2[i]);
+            worstEquirectangular=Math.max(worstEquirectangular, Math.abs(fast-reference)/reference);
+            worstHaversine=Math.max(worstHaversine, Math.abs(haversine-reference)/reference);
+        }
+        System.out.println(String.format("hops up to %.0f m, worst relative error against vincenty:", limit));
+        System.out.println(String.format("  equirectangular %.5f%%", worstEquirectangular*100));
+        System.out.println(String.format("  haversine       %.5f%%", worstHaversine*100));
+
+        //twice, the first round warms up the JIT
+        for(int warmup=0; warmup<2; warmup++){
+            double sink=0;
+            long start=System.nanoTime();
+            for(int r=0; r<ROUNDS; r++){
+                for(int i=0; i<PAIRS; i++){
+                    sink+=kernel.distance(lat1[i], lon1[i], cos1[i], lat2[i], lon2[i], cos2[i]);
+                }
+            }
+            long kernelNanos=System.nanoTime()-start;
+
+            start=System.nanoTime();
+            for(int r=0; r<ROUNDS; r++){
+                for(int i=0; i<PAIRS; i++){
+                    sink+=GeoDistance.haversine(lat1[i], lon1[i], lat2[i], lon2[i]);
+                }
+            }
+            long haversineNanos=System.nanoTime()-start;
+
+            start=System.nanoTime();
+            for(int r=0; r<ROUNDS/10; r++){
+                for(int i=0; i<PAIRS; i++){
+                    sink+=GeoDistance.vincenty(lat1[i], lon1[i], lat2[i], lon2[i]);
+                }
+            }
+            long vincentyNanos=System.nanoTime()-start;
+
+            if(warmup==1){
+                double ops=(double) ROUNDS*PAIRS;
+                System.out.println("ns per distance:");
+                System.out.println(String.format("  kernel (fast path) %8.2f", kernelNanos/ops));
+                System.out.println(String.format("  haversine          %8.2f", haversineNanos/ops));
+                System.out.println(String.format("  vincenty           %8.2f", vincentyNanos/(ops/10)));
+                System.out.println("(checksum " + sink + ")");
+            }
+        }
+
+        if(worstEquirectangular>MAX_RELATIVE_ERROR){
+            System.out.println(String.format("FAILED: fast path error above %.2f%%", MAX_RELATIVE_ERROR*100));
+            System.exit(1);
+        }
+    }
+}
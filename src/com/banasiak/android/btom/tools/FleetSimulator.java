@@ -0,0 +1,400 @@
+package com.banasiak.android.btom.tools;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.banasiak.android.btom.GeoDistance;
+import com.banasiak.android.btom.LocationHistory;
+import com.banasiak.android.btom.MotionController;
+import com.banasiak.android.btom.MotionSettings;
+
+/**
+ * Runs a fleet of virtual devices through the MotionController to
+ * predict the effect of a settings change before it is pushed:
+ * toggles per hour, time from the start of a drive to ENABLE,
+ * missed drives and CPU time per fix.
+ *
+ * Every device has its own controller, random generator and counters,
+ * and the devices are split over the cores with fork/join. Nothing is
+ * shared between devices except the settings and the recorded traces,
+ * which are only read, so it scales with the number of cores.
+ *
+ *   java com.banasiak.android.btom.tools.FleetSimulator [options] [trace.csv|trace.gpx ...]
+ * Options:
+ *   --devices=N           number of virtual devices (2000)
+ *   --hours=N             simulated hours per device (24)
+ *   --threads=N           worker threads (all cores)
+ *   --scaling             also run on 1 thread and report the speedup
+ *   --estimator=NAME, --enable-mph=N, --disable-mph=N, --timeout=SECONDS
+ *                         settings, as for TraceReplay
+ * Without traces every device drives a random synthetic day. With traces
+ * each device replays one of them, shifted in time and position.
+ */
+public class FleetSimulator {
+    //devices simulated by one fork/join leaf
+    private final static int DEVICES_PER_TASK=16;
+    //time to enable histogram, one bucket per second
+    private final static int ENABLE_BUCKETS=1800;
+    private final static long HOUR_MS=3600*1000L;
+    private final static long START_TIME=1000000000000L;
+
+    /**
+     * Counters of one or more devices, merged up the fork/join tree
+     */
+    static class FleetStats {
+        long devices;
+        long fixes;
+        long cpuNanos;
+        long simulatedMillis;
+        long enables;
+        long disables;
+        long drives;
+        long missedDrives;
+        //enables while not driving
+        long falseEnables;
+        long enableDelaySum;
+        final long[] enableDelays=new long[ENABLE_BUCKETS + 1];
+
+        void add(FleetStats other){
+            devices+=other.devices;
+            fixes+=other.fixes;
+            cpuNanos+=other.cpuNanos;
+            simulatedMillis+=other.simulatedMillis;
+            enables+=other.enables;
+            disables+=other.disables;
+            drives+=other.drives;
+            missedDrives+=other.missedDrives;
+            falseEnables+=other.falseEnables;
+            enableDelaySum+=other.enableDelaySum;
+            for(int i=0; i<=ENABLE_BUCKETS; i++){
+                enableDelays[i]+=other.enableDelays[i];
+            }
+        }
+
+        void addEnableDelay(long millis){
+            enableDelaySum+=millis;
+            enableDelays[(int) Math.min(millis/1000, ENABLE_BUCKETS)]++;
+        }
+
+        /**
+         * @return seconds, the last bucket means "or more"
+         */
+        long enableDelayPercentile(double fraction){
+            long count=drives-missedDrives;
+            long seen=0;
+            for(int i=0; i<=ENABLE_BUCKETS; i++){
+                seen+=enableDelays[i];
+                if(count>0 && seen>=fraction*count){
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * A recorded or generated trace, never changed once filled
+     */
+    static class Trace {
+        final long[] time;
+        final double[] lat;
+        final double[] lon;
+        final float[] accuracy;
+        final float[] speed;
+        final int[] provider;
+
+        Trace(int size){
+            time=new long[size];
+            lat=new double[size];
+            lon=new double[size];
+            accuracy=new float[size];
+            speed=new float[size];
+            provider=new int[size];
+        }
+
+        Trace(String file) throws IOException {
+            this(read(file));
+        }
+
+        private Trace(List<double[]> fixes){
+            this(fixes.size());
+            for(int i=0; i<fixes.size(); i++){
+                double[] fix=fixes.get(i);
+                time[i]=(long) fix[0];
+                lat[i]=fix[1];
+                lon[i]=fix[2];
+                accuracy[i]=(float) fix[3];
+                speed[i]=(float) fix[4];
+                provider[i]=(int) fix[5];
+            }
+        }
+
+        private static List<double[]> read(String file) throws IOException {
+            List<double[]> fixes=new ArrayList<double[]>();
+            TraceReplay.FixReader reader=file.toLowerCase().endsWith(".gpx")
+                    ? new TraceReplay.GpxFixReader(file) : new TraceReplay.CsvFixReader(file);
+            try{
+                while(reader.next()){
+                    fixes.add(new double[] {reader.fixTime, reader.fixLat, reader.fixLon,
+                            reader.fixAccuracy, reader.fixSpeed, reader.fixProvider});
+                }
+            }finally{
+                reader.close();
+            }
+            return fixes;
+        }
+    }
+
+    /**
+     * One virtual device. Generates its own fixes and feeds them to its
+     * own controller on a virtual clock.
+     */
+    static class Device {
+        private final MotionController controller;
+        private final Random random;
+        private final FleetStats stats;
+        private final long endTime;
+
+        //ground truth of the synthetic day
+        private boolean driving=false;
+        private long driveStart;
+        private boolean enabledThisDrive;
+
+        Device(long id, MotionSettings settings, long hours, FleetStats stats){
+            controller=new MotionController(settings);
+            random=new Random(id*7919 + 17);
+            this.stats=stats;
+            endTime=START_TIME + hours*HOUR_MS;
+        }
+
+        void runSynthetic(){
+            double lat=-40 + random.nextDouble()*100;
+            double lon=-180 + random.nextDouble()*360;
+            long time=START_TIME;
+            while(time<endTime){
+                //stationary, walking or driving for a while
+                int kind=random.nextInt(10);
+                long duration;
+                double speed;
+                long interval;
+                if(kind<5){
+                    duration=(10 + random.nextInt(110))*60000L;
+                    speed=0;
+                    interval=60000;
+                }else if(kind<7){
+                    duration=(2 + random.nextInt(10))*60000L;
+                    speed=1.0 + random.nextDouble();
+                    interval=20000;
+                }else{
+                    duration=(10 + random.nextInt(50))*60000L;
+                    speed=8 + random.nextDouble()*25;
+                    interval=5000;
+                }
+                setDriving(kind>=7, time);
+
+                double bearing=random.nextDouble()*2*Math.PI;
+                long segmentEnd=Math.min(time + duration, endTime);
+                while(time<segmentEnd){
+                    long elapsed=interval/2 + random.nextInt((int) interval);
+                    time+=elapsed;
+                    double hop=speed*elapsed/1000.0;
+                    bearing+=random.nextGaussian()*0.2;
+                    lat+=Math.toDegrees(hop*Math.cos(bearing)/GeoDistance.EARTH_RADIUS_M);
+                    lon+=Math.toDegrees(hop*Math.sin(bearing)/(GeoDistance.EARTH_RADIUS_M*GeoDistance.cosLatitude(lat)));
+
+                    //gps while moving, mostly network while standing still
+                    boolean gps=speed>0 || random.nextInt(4)==0;
+                    float accuracy=gps ? 5 + random.nextInt(20) : 50 + random.nextInt(1000);
+                    double noise=accuracy/2.0;
+                    double fixLat=lat + Math.toDegrees(random.nextGaussian()*noise/GeoDistance.EARTH_RADIUS_M);
+                    double fixLon=lon + Math.toDegrees(random.nextGaussian()*noise/(GeoDistance.EARTH_RADIUS_M*GeoDistance.cosLatitude(lat)));
+                    float reportedSpeed=gps ? (float) Math.max(0, speed + random.nextGaussian()) : Float.NaN;
+                    fix(gps ? LocationHistory.PROVIDER_GPS : LocationHistory.PROVIDER_NETWORK,
+                            fixLat, fixLon, time, accuracy, reportedSpeed);
+                }
+            }
+            setDriving(false, time);
+            stats.simulatedMillis+=time-START_TIME;
+        }
+
+        void runTrace(Trace trace){
+            if(trace.time.length==0){
+                return;
+            }
+            //shift the trace so devices do not drive in lockstep
+            long offset=START_TIME-trace.time[0] + random.nextInt(3600)*1000L;
+            double dLat=(random.nextDouble()-0.5)*0.01;
+            double dLon=(random.nextDouble()-0.5)*0.01;
+            float enableSpeed=controller.getSettings().minSpeedForChange;
+            long time=START_TIME;
+            for(int i=0; i<trace.time.length && trace.time[i] + offset<endTime; i++){
+                time=trace.time[i] + offset;
+                //the reported speed is the only ground truth a recording has
+                if(!Float.isNaN(trace.speed[i])){
+                    setDriving(trace.speed[i]>=enableSpeed || (driving && trace.speed[i]>1), time);
+                }
+                fix(trace.provider[i], trace.lat[i] + dLat, trace.lon[i] + dLon, time, trace.accuracy[i], trace.speed[i]);
+            }
+            setDriving(false, time);
+            stats.simulatedMillis+=time-START_TIME;
+        }
+
+        private void setDriving(boolean nowDriving, long time){
+            if(nowDriving && !driving){
+                driveStart=time;
+                enabledThisDrive=controller.isBluetoothEnabled();
+                stats.drives++;
+                if(enabledThisDrive){
+                    stats.addEnableDelay(0);
+                }
+            }else if(!nowDriving && driving && !enabledThisDrive){
+                stats.missedDrives++;
+            }
+            driving=nowDriving;
+        }
+
+        private void fix(int provider, double lat, double lon, long time, float accuracy, float speed){
+            long deadline=controller.getNextDeadline();
+            while(deadline>=0 && deadline<=time){
+                count(controller.onTick(deadline), deadline);
+                long next=controller.getNextDeadline();
+                deadline=next==deadline ? -1 : next;
+            }
+            count(controller.onLocation(provider, lat, lon, time, accuracy, speed, time), time);
+            stats.fixes++;
+        }
+
+        private void count(int decision, long time){
+            if(decision==MotionController.DECISION_ENABLE){
+                stats.enables++;
+                if(!driving){
+                    stats.falseEnables++;
+                }else if(!enabledThisDrive){
+                    enabledThisDrive=true;
+                    stats.addEnableDelay(time-driveStart);
+                }
+            }else if(decision==MotionController.DECISION_DISABLE){
+                stats.disables++;
+            }
+        }
+    }
+
+    /**
+     * Simulates a range of devices, splitting it until it is small enough
+     */
+    static class FleetTask extends RecursiveTask<FleetStats> {
+        private final static long serialVersionUID=1L;
+        private final int from;
+        private final int to;
+        private final MotionSettings settings;
+        private final long hours;
+        private final Trace[] traces;
+
+        FleetTask(int from, int to, MotionSettings settings, long hours, Trace[] traces){
+            this.from=from;
+            this.to=to;
+            this.settings=settings;
+            this.hours=hours;
+            this.traces=traces;
+        }
+
+        @Override
+        protected FleetStats compute(){
+            if(to-from>DEVICES_PER_TASK){
+                int middle=(from + to) >>> 1;
+                FleetTask left=new FleetTask(from, middle, settings, hours, traces);
+                FleetTask right=new FleetTask(middle, to, settings, hours, traces);
+                left.fork();
+                FleetStats stats=right.compute();
+                stats.add(left.join());
+                return stats;
+            }
+
+            FleetStats stats=new FleetStats();
+            ThreadMXBean threads=ManagementFactory.getThreadMXBean();
+            long cpu=threads.getCurrentThreadCpuTime();
+            for(int id=from; id<to; id++){
+                Device device=new Device(id, settings, hours, stats);
+                if(traces.length==0){
+                    device.runSynthetic();
+                }else{
+                    device.runTrace(traces[id % traces.length]);
+                }
+                stats.devices++;
+            }
+            stats.cpuNanos+=threads.getCurrentThreadCpuTime()-cpu;
+            return stats;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        MotionSettings settings=new MotionSettings();
+        int devices=2000;
+        long hours=24;
+        int threads=Runtime.getRuntime().availableProcessors();
+        boolean scaling=false;
+        List<Trace> traces=new ArrayList<Trace>();
+        for(String arg : args){
+            String value=arg.substring(arg.indexOf('=') + 1);
+            if(arg.startsWith("--devices=")){
+                devices=Integer.parseInt(value);
+            }else if(arg.startsWith("--hours=")){
+                hours=Long.parseLong(value);
+            }else if(arg.startsWith("--threads=")){
+                threads=Integer.parseInt(value);
+            }else if(arg.equals("--scaling")){
+                scaling=true;
+            }else if(arg.startsWith("--estimator=")){
+                settings.speedEstimator=value;
+            }else if(arg.startsWith("--enable-mph=")){
+                settings.minSpeedForChange=Float.parseFloat(value)*MotionSettings.MPH;
+            }else if(arg.startsWith("--disable-mph=")){
+                settings.maxSpeedForDisable=Float.parseFloat(value)*MotionSettings.MPH;
+            }else if(arg.startsWith("--timeout=")){
+                settings.stationaryTimeout=Long.parseLong(value)*1000L;
+            }else{
+                traces.add(new Trace(arg));
+            }
+        }
+        Trace[] traceArray=traces.toArray(new Trace[traces.size()]);
+
+        //a small run first, so the JIT has compiled the controller
+        run(new ForkJoinPool(threads), Math.min(devices, 200), 1, settings, traceArray);
+
+        double singleSeconds=0;
+        if(scaling && threads>1){
+            singleSeconds=run(new ForkJoinPool(1), devices, hours, settings, traceArray);
+        }
+        double seconds=run(new ForkJoinPool(threads), devices, hours, settings, traceArray);
+        if(singleSeconds>0){
+            System.out.println(String.format("speedup on %d threads: %.2fx (%.0f%% of linear)",
+                    threads, singleSeconds/seconds, 100*singleSeconds/seconds/threads));
+        }
+    }
+
+    private static double run(ForkJoinPool pool, int devices, long hours, MotionSettings settings, Trace[] traces){
+        long start=System.nanoTime();
+        FleetStats stats=pool.invoke(new FleetTask(0, devices, settings, hours, traces));
+        double seconds=(System.nanoTime()-start)/1e9;
+        pool.shutdown();
+
+        double deviceHours=stats.simulatedMillis/(double) HOUR_MS;
+        long enabledDrives=stats.drives-stats.missedDrives;
+        System.out.println(String.format("%d devices, %.0f device hours on %d threads in %.2f s (%.0f fixes/s)",
+                stats.devices, deviceHours, pool.getParallelism(), seconds, stats.fixes/seconds));
+        System.out.println(String.format("  toggles/hour %.3f (%d enables, %d disables, %d while not driving)",
+                (stats.enables + stats.disables)/deviceHours, stats.enables, stats.disables, stats.falseEnables));
+        System.out.println(String.format("  drives %d, missed %d, time to enable mean %.1f s, p50 %d s, p95 %d s",
+                stats.drives, stats.missedDrives,
+                enabledDrives==0 ? 0 : stats.enableDelaySum/1000.0/enabledDrives,
+                stats.enableDelayPercentile(0.5), stats.enableDelayPercentile(0.95)));
+        System.out.println(String.format("  cpu %.0f ns/fix", stats.fixes==0 ? 0 : stats.cpuNanos/(double) stats.fixes));
+        return seconds;
+    }
+}
@@ -0,0 +1,88 @@
+package com.banasiak.android.btom.tools;
+
+import java.util.Random;
+
+import com.banasiak.android.btom.GeoDistance;
+import com.banasiak.android.btom.GeofenceIndex;
+
+/**
+ * Measures the cost of a GeofenceIndex lookup against checking every
+ * zone, and verifies that both give the same answer.
+ *
+ * Runs on a plain JVM:
+ *   java com.banasiak.android.btom.tools.GeofenceBenchmark [zones]
+ */
+public class GeofenceBenchmark {
+    private final static int POINTS=10000;
+    private final static int ROUNDS=200;
+    //zones are spread over a square of this size
+    private final static double AREA_M=200000.0;
+
+    public static void main(String[] args){
+        int zones=args.length>0 ? Integer.parseInt(args[0]) : 10000;
+        Random random=new Random(7);
+        double lat0=59.91;
+        double lon0=10.75;
+        double metersPerDegLat=Math.toRadians(1)*GeoDistance.EARTH_RADIUS_M;
+        double metersPerDegLon=metersPerDegLat*GeoDistance.cosLatitude(lat0);
+
+        GeofenceIndex index=new GeofenceIndex();
+        long start=System.nanoTime();
+        for(int i=0; i<zones; i++){
+            index.addZone("zone" + i,
+                    lat0 + random.nextDouble()*AREA_M/metersPerDegLat,
+                    lon0 + random.nextDouble()*AREA_M/metersPerDegLon,
+                    50 + random.nextFloat()*450,
+                    random.nextBoolean() ? GeofenceIndex.RULE_FORCE_ON : GeofenceIndex.RULE_FORCE_OFF);
+        }
+        long buildNanos=System.nanoTime()-start;
+
+        double[] lat=new double[POINTS];
+        double[] lon=new double[POINTS];
+        for(int i=0; i<POINTS; i++){
+            lat[i]=lat0 + random.nextDouble()*AREA_M/metersPerDegLat;
+            lon[i]=lon0 + random.nextDouble()*AREA_M/metersPerDegLon;
+        }
+
+        int hits=0;
+        for(int i=0; i<POINTS; i++){
+            int indexed=index.lookup(lat[i], lon[i]);
+            int linear=index.lookupLinear(lat[i], lon[i]);
+            if(indexed!=linear){
+                System.out.println("FAILED: lookup " + indexed + " but linear scan " + linear + " at " + lat[i] + "," + lon[i]);
+                System.exit(1);
+            }
+            if(indexed>=0){
+                hits++;
+            }
+        }
+
+        long sink=0;
+        long indexedNanos=0;
+        long linearNanos=0;
+        //twice, the first round warms up the JIT
+        for(int warmup=0; warmup<2; warmup++){
+            start=System.nanoTime();
+            for(int r=0; r<ROUNDS; r++){
+                for(int i=0; i<POINTS; i++){
+                    sink+=index.lookup(lat[i], lon[i]);
+                }
+            }
+            indexedNanos=System.nanoTime()-start;
+
+            start=System.nanoTime();
+            for(int r=0; r<ROUNDS/100 + 1; r++){
+                for(int i=0; i<POINTS; i++){
+                    sink+=index.lookupLinear(lat[i], lon[i]);
+                }
+            }
+            linearNanos=System.nanoTime()-start;
+        }
+
+        System.out.println(zones + " zones, built in " + buildNanos/1000000 + " ms, " + hits + " of " + POINTS + " points inside a zone");
+        System.out.println(String.format("ns per lookup: index %.1f, linear scan %.1f",
+                indexedNanos/((double) ROUNDS*POINTS),
+                linearNanos/((double) (ROUNDS/100 + 1)*POINTS)));
+        System.out.println("(checksum " + sink + ")");
+    }
+}
@@ -0,0 +1,298 @@
+package com.banasiak.android.btom.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import com.banasiak.android.btom.FixGate;
+import com.banasiak.android.btom.FixJournal;
+import com.banasiak.android.btom.GeoDistance;
+import com.banasiak.android.btom.LocationHistory;
+import com.banasiak.android.btom.MotionController;
+import com.banasiak.android.btom.MotionSettings;
+import com.banasiak.android.btom.MotionStateMachine;
+import com.banasiak.android.btom.ProviderFusion;
+import com.banasiak.android.btom.SpeedEstimator;
+import com.banasiak.android.btom.SpeedEstimators;
+
+/**
+ * Measures what one location callback of the service costs, stage by
+ * stage, in nanoseconds and allocated bytes per fix:
+ * - the DEBUG log strings (built, not written)
+ * - LocationHistory.addFix
+ * - each speed estimator, and the old two point getEstimatedSpeed
+ * - the bluetooth adapter isEnabled call (stubbed)
+ * - FixJournal.appendFix, into a journal in the temporary directory
+ * - the whole MotionController.onLocation path, with DEBUG off and on
+ *
+ * The fixes are a 20 m/s drive around a closed loop, so the
+ * pipeline can run for as long as needed without jumps.
+ *
+ * Runs on a plain JVM:
+ *   java com.banasiak.android.btom.tools.HotPathBenchmark [maxNanosPerFix]
+ * Exits with status 1 if the full path with DEBUG off is slower than
+ * maxNanosPerFix, so it can be used to catch regressions.
+ */
+public class HotPathBenchmark {
+    private final static int FIXES=4096;
+    private final static int ROUNDS=200;
+    private final static long FIX_INTERVAL_MS=1000;
+    private final static double SPEED_MS=20;
+    private final static float ACCURACY_M=10;
+
+    private final static double[] lat=new double[FIXES];
+    private final static double[] lon=new double[FIXES];
+    private final static float[] speed=new float[FIXES];
+
+    //time of the first fix of the next round, never goes back
+    private static long clock=1000000000000L;
+
+    private final static com.sun.management.ThreadMXBean threads=threadBean();
+
+    /**
+     * Stands in for BluetoothAdapter, which is a binder call into the
+     * system server on a device
+     */
+    static class StubAdapter {
+        private volatile boolean enabled;
+
+        boolean isEnabled(){
+            return enabled;
+        }
+    }
+
+    /**
+     * One stage of the callback, runs all fixes of one round
+     */
+    abstract static class Stage {
+        final String name;
+
+        Stage(String name){
+            this.name=name;
+        }
+
+        abstract double round(long firstTime);
+    }
+
+    public static void main(String[] args){
+        long maxNanos=args.length>0 ? Long.parseLong(args[0]) : -1;
+
+        //a loop of FIXES seconds at SPEED_MS
+        double radius=SPEED_MS*FIXES/(2*Math.PI);
+        double centerLat=59.9, centerLon=10.7;
+        for(int i=0; i<FIXES; i++){
+            double angle=2*Math.PI*i/FIXES;
+            lat[i]=centerLat + Math.toDegrees(radius*Math.sin(angle)/GeoDistance.EARTH_RADIUS_M);
+            lon[i]=centerLon + Math.toDegrees(radius*Math.cos(angle)/(GeoDistance.EARTH_RADIUS_M*Math.cos(Math.toRadians(centerLat))));
+            speed[i]=(float) SPEED_MS;
+        }
+
+        Stage[] stages=new Stage[] {
+            new Stage("debug log strings"){
+                @Override
+                double round(long firstTime){
+                    double sink=0;
+                    for(int i=0; i<FIXES; i++){
+                        sink+=("Location changed  :" + describe(lat[i], lon[i], firstTime + i*FIX_INTERVAL_MS, speed[i])).length();
+                    }
+                    return sink;
+                }
+            },
+            new Stage("LocationHistory.addFix"){
+                final LocationHistory history=new LocationHistory(SpeedEstimators.REQUIRED_HISTORY_SIZE);
+                @Override
+                double round(long firstTime){
+                    for(int i=0; i<FIXES; i++){
+                        history.addFix(lat[i], lon[i], firstTime + i*FIX_INTERVAL_MS, ACCURACY_M, speed[i], LocationHistory.PROVIDER_GPS);
+                    }
+                    return history.size();
+                }
+            },
+            estimatorStage("getEstimatedSpeed (two point)", null),
+            estimatorStage("estimator " + SpeedEstimators.TWO_POINT, SpeedEstimators.TWO_POINT),
+            estimatorStage("estimator " + SpeedEstimators.LEAST_SQUARES, SpeedEstimators.LEAST_SQUARES),
+            estimatorStage("estimator " + SpeedEstimators.MEDIAN_OF_SEGMENTS, SpeedEstimators.MEDIAN_OF_SEGMENTS),
+            estimatorStage("estimator " + SpeedEstimators.KALMAN, SpeedEstimators.KALMAN),
+            new Stage("adapter.isEnabled (stub)"){
+                final StubAdapter adapter=new StubAdapter();
+                @Override
+                double round(long firstTime){
+                    double sink=0;
+                    for(int i=0; i<FIXES; i++){
+                        sink+=adapter.isEnabled() ? 1 : 0;
+                    }
+                    return sink;
+                }
+            },
+            new Stage("FixJournal.appendFix"){
+                final FixJournal journal=openJournal();
+                @Override
+                double round(long firstTime){
+                    try{
+                        for(int i=0; i<FIXES; i++){
+                            journal.appendFix(firstTime + i*FIX_INTERVAL_MS, lat[i], lon[i], ACCURACY_M, speed[i],
+                                    LocationHistory.PROVIDER_GPS, FixGate.ACCEPTED);
+                        }
+                    }catch(IOException e){
+                        throw new RuntimeException(e);
+                    }
+                    return journal.getAppendCount();
+                }
+            },
+            controllerStage("onLocation, DEBUG off", false),
+            controllerStage("onLocation, DEBUG on", true),
+        };
+
+        //twice, the first round warms up the JIT
+        long fullPathNanos=0;
+        for(int warmup=0; warmup<2; warmup++){
+            if(warmup==1){
+                System.out.println(String.format("%-34s %10s %12s", "stage", "ns/fix", "bytes/fix"));
+            }
+            double sink=0;
+            for(Stage stage : stages){
+                long bytes=allocatedBytes();
+                long start=System.nanoTime();
+                for(int r=0; r<ROUNDS; r++){
+                    sink+=stage.round(clock);
+                    clock+=FIXES*FIX_INTERVAL_MS;
+                }
+                long nanos=System.nanoTime()-start;
+                bytes=allocatedBytes()-bytes;
+
+                double ops=(double) ROUNDS*FIXES;
+                if(warmup==1){
+                    System.out.println(String.format("%-34s %10.1f %12s", stage.name, nanos/ops,
+                            threads==null ? "n/a" : String.format("%.1f", bytes/ops)));
+                    if(stage.name.equals("onLocation, DEBUG off")){
+                        fullPathNanos=(long) (nanos/ops);
+                    }
+                }
+            }
+            if(warmup==1){
+                System.out.println("(checksum " + sink + ")");
+            }
+        }
+
+        if(maxNanos>=0 && fullPathNanos>maxNanos){
+            System.out.println("FAILED: onLocation takes " + fullPathNanos + " ns per fix, limit is " + maxNanos);
+            System.exit(1);
+        }
+    }
+
+    private static Stage estimatorStage(String name, final String estimatorName){
+        return new Stage(name){
+            final LocationHistory history=new LocationHistory(SpeedEstimators.REQUIRED_HISTORY_SIZE);
+            final SpeedEstimator estimator=estimatorName==null ? null : SpeedEstimators.create(estimatorName);
+            @Override
+            double round(long firstTime){
+                double sink=0;
+                for(int i=0; i<FIXES; i++){
+                    history.addFix(lat[i], lon[i], firstTime + i*FIX_INTERVAL_MS, ACCURACY_M, speed[i], LocationHistory.PROVIDER_GPS);
+                    if(estimator==null){
+                        sink+=history.getEstimatedSpeed();
+                    }else{
+                        estimator.onFixAdded(history);
+                        sink+=estimator.getSpeed();
+                    }
+                }
+                return sink;
+            }
+        };
+    }
+
+    /**
+     * The work of the service's onLocationChanged, without the android calls
+     */
+    private static Stage controllerStage(String name, final boolean debug){
+        return new Stage(name){
+            final MotionController controller=new MotionController(new MotionSettings());
+            final StubAdapter adapter=new StubAdapter();
+            @Override
+            double round(long firstTime){
+                double sink=0;
+                for(int i=0; i<FIXES; i++){
+                    long time=firstTime + i*FIX_INTERVAL_MS;
+                    if(debug){
+                        sink+=("Location changed  :" + describe(lat[i], lon[i], time, speed[i])).length();
+                    }
+                    controller.setBluetoothEnabled(adapter.isEnabled());
+                    sink+=controller.onLocation(LocationHistory.PROVIDER_GPS, lat[i], lon[i], time, ACCURACY_M, speed[i], time);
+                    if(debug){
+                        int fixResult=controller.getLastFixResult();
+                        String message;
+                        if(fixResult==MotionController.FIX_NOT_FUSED){
+                            message="Location ignored: " + ProviderFusion.resultName(controller.getLastFixDetail());
+                        }else if(fixResult==MotionController.FIX_REJECTED){
+                            message="Location ignored: " + FixGate.resultName(controller.getLastFixDetail())
+                                    + " (" + controller.getFixGate().getRejectedCount() + " rejected so far)";
+                        }else{
+                            message="Speed estimated to " + controller.getSpeed() + " meters pr second ("
+                                    + controller.getSpeedForChange() + " used for change), state "
+                                    + MotionStateMachine.stateName(controller.getMotionState());
+                        }
+                        sink+=message.length();
+                    }
+                    sink+=controller.getNextDeadline();
+                }
+                return sink;
+            }
+        };
+    }
+
+    /**
+     * Same shape as Location.toString() on the device
+     */
+    private static String describe(double lat, double lon, long time, float speed){
+        return "Location[mProvider=gps,mTime=" + time + ",mLatitude=" + lat + ",mLongitude=" + lon
+                + ",mHasAltitude=false,mAltitude=0.0,mHasSpeed=true,mSpeed=" + speed
+                + ",mHasBearing=false,mBearing=0.0,mHasAccuracy=true,mAccuracy=" + ACCURACY_M
+                + ",mExtras=null]";
+    }
+
+    private static FixJournal openJournal(){
+        try{
+            final File directory=new File(System.getProperty("java.io.tmpdir"), "btom-journal-" + System.nanoTime());
+            //small segments, so rotation is part of the measurement
+            FixJournal journal=new FixJournal(directory, FIXES, 4);
+            Runtime.getRuntime().addShutdownHook(new Thread(){
+                @Override
+                public void run(){
+                    for(File file : directory.listFiles()){
+                        file.delete();
+                    }
+                    directory.delete();
+                }
+            });
+            return journal;
+        }catch(IOException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean(){
+        try{
+            java.lang.management.ThreadMXBean bean=ManagementFactory.getThreadMXBean();
+            if(bean instanceof com.sun.management.ThreadMXBean){
+                com.sun.management.ThreadMXBean threadBean=(com.sun.management.ThreadMXBean) bean;
+                if(threadBean.isThreadAllocatedMemorySupported()){
+                    threadBean.setThreadAllocatedMemoryEnabled(true);
+                    return threadBean;
+                }
+            }
+        }catch(LinkageError e){
+            //not a HotSpot JVM
+        }
+        return null;
+    }
+
+    /**
+     * @return bytes allocated by this thread so far, -1 if the JVM can not tell
+     */
+    private static long allocatedBytes(){
+        if(threads==null){
+            return -1;
+        }
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
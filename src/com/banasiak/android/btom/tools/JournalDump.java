@@ -0,0 +1,87 @@
+package com.banasiak.android.btom.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.banasiak.android.btom.FixJournal;
+import com.banasiak.android.btom.LocationHistory;
+import com.banasiak.android.btom.MotionController;
+import com.banasiak.android.btom.MotionStateMachine;
+import com.banasiak.android.btom.TripArchive;
+
+/**
+ * Prints a FixJournal copied from a device as a CSV trace which
+ * TraceReplay and FleetSimulator can read. Decisions are printed
+ * as comment lines between the fixes. With --archive the fixes are
+ * written to a TripArchive file instead.
+ *
+ *   adb pull /data/data/com.banasiak.android.btom/files/journal journal
+ *   java com.banasiak.android.btom.tools.JournalDump journal > trace.csv
+ *   java com.banasiak.android.btom.tools.JournalDump --archive=trips.bta journal
+ */
+public class JournalDump {
+    public static void main(String[] args) throws IOException {
+        String archive=null;
+        String directory=null;
+        for(String arg : args){
+            if(arg.startsWith("--archive=")){
+                archive=arg.substring(arg.indexOf('=') + 1);
+            }else{
+                directory=arg;
+            }
+        }
+        if(directory==null){
+            System.err.println("usage: JournalDump [--archive=file] journal-directory");
+            System.exit(2);
+        }
+        if(archive!=null){
+            writeArchive(new File(directory), archive);
+            return;
+        }
+        FixJournal.Reader reader=new FixJournal.Reader(new File(directory));
+        StringBuilder line=new StringBuilder();
+        System.out.println("time_ms,lat,lon,accuracy,speed,provider");
+        try{
+            while(reader.next()){
+                line.setLength(0);
+                if(reader.getType()==FixJournal.TYPE_FIX){
+                    line.append(reader.getTime()).append(',')
+                        .append(reader.getLatitude()).append(',')
+                        .append(reader.getLongitude()).append(',')
+                        .append(reader.getAccuracy()).append(',')
+                        .append(reader.getSpeed()).append(',')
+                        .append(reader.getProvider()==LocationHistory.PROVIDER_GPS ? "gps"
+                                : reader.getProvider()==LocationHistory.PROVIDER_NETWORK ? "network" : "");
+                }else{
+                    line.append("# ").append(reader.getTime()).append(' ')
+                        .append(MotionController.decisionName(reader.getDecision())).append(' ')
+                        .append(MotionController.reasonName(reader.getReason())).append(' ')
+                        .append(MotionStateMachine.stateName(reader.getMotionState())).append(' ')
+                        .append(reader.getSpeed());
+                }
+                System.out.println(line);
+            }
+        }finally{
+            reader.close();
+        }
+    }
+
+    private static void writeArchive(File directory, String file) throws IOException {
+        FixJournal.Reader reader=new FixJournal.Reader(directory);
+        TripArchive.Writer writer=new TripArchive.Writer(new BufferedOutputStream(new FileOutputStream(file)));
+        try{
+            while(reader.next()){
+                if(reader.getType()==FixJournal.TYPE_FIX){
+                    writer.add(reader.getTime(), reader.getLatitude(), reader.getLongitude(),
+                            reader.getAccuracy(), reader.getSpeed(), reader.getProvider());
+                }
+            }
+        }finally{
+            reader.close();
+            writer.close();
+        }
+        System.out.println(writer.getFixCount() + " fixes written to " + file + ", " + new File(file).length() + " bytes");
+    }
+}
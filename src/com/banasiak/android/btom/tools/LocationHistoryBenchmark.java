@@ -0,0 +1,273 @@
+package com.banasiak.android.btom.tools;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+
+import com.banasiak.android.btom.GeoDistance;
+import com.banasiak.android.btom.LocationHistory;
+import com.banasiak.android.btom.SpeedEstimators;
+
+/**
+ * Compares LocationHistory, a ring buffer of primitive arrays, with the
+ * LinkedList of Location objects it replaced, in nanoseconds and
+ * allocated bytes per fix:
+ * - adding a fix alone
+ * - adding a fix and getEstimatedSpeed, the old per fix path
+ * - adding a fix and a read of every entry, the way the speed estimators
+ *   walk the history
+ *
+ * The old history is copied here with a plain value class in place of
+ * android.location.Location, and the Vincenty distance Location.distanceTo
+ * uses. The fixes are created before the measurement, since the system
+ * hands the service a new Location with every fix either way, and the
+ * ring buffer gets them through addFix. The fixes are a 20 m/s drive
+ * around a closed loop.
+ *
+ * Runs on a plain JVM:
+ *   java com.banasiak.android.btom.tools.LocationHistoryBenchmark [historySize]
+ */
+public class LocationHistoryBenchmark {
+    private final static int FIXES=4096;
+    private final static int ROUNDS=200;
+    private final static long FIX_INTERVAL_MS=1000;
+    private final static double SPEED_MS=20;
+    private final static float ACCURACY_M=10;
+
+    private final static Fix[] fixes=new Fix[FIXES];
+
+    private final static com.sun.management.ThreadMXBean threads=threadBean();
+
+    /**
+     * Stands in for android.location.Location, with the fields the history uses
+     */
+    static class Fix {
+        final double latitude;
+        final double longitude;
+        final long time;
+        final float accuracy;
+        final float speed;
+        final int provider;
+
+        Fix(double latitude, double longitude, long time, float accuracy, float speed, int provider){
+            this.latitude=latitude;
+            this.longitude=longitude;
+            this.time=time;
+            this.accuracy=accuracy;
+            this.speed=speed;
+            this.provider=provider;
+        }
+
+        long getTime(){
+            return time;
+        }
+
+        float distanceTo(Fix other){
+            return (float) GeoDistance.vincenty(latitude, longitude, other.latitude, other.longitude);
+        }
+    }
+
+    /**
+     * The history as it was before the ring buffer, without the logging
+     */
+    static class LinkedListHistory {
+        int maxSize;
+        LinkedList<Fix> listLocation;
+
+        LinkedListHistory(int maxSize){
+            this.maxSize=maxSize;
+            listLocation=new LinkedList<Fix>();
+        }
+
+        void addLocation(Fix newLocation){
+            listLocation.addFirst(newLocation);
+
+            //delete the last element if we larger than max size
+            if(listLocation.size()>maxSize){
+                listLocation.removeLast();
+            }
+        }
+
+        float getEstimatedSpeed(){
+            try{
+                Fix currentLocation=listLocation.getFirst();
+                Fix lastLocation=listLocation.get(1);
+
+                if(currentLocation!=null && lastLocation!=null){
+                    long timeMillis=currentLocation.getTime()-lastLocation.getTime();
+                    if(timeMillis/1000==0){
+                        return 0f;
+                    }
+
+                    float distance=currentLocation.distanceTo(lastLocation);
+                    return distance/(float) (timeMillis/1000);
+                }else{
+                    return 0f;
+                }
+            }catch(IndexOutOfBoundsException e){
+                return 0f;
+            }
+        }
+    }
+
+    /**
+     * One way of using a history, runs all fixes of one round
+     */
+    abstract static class Stage {
+        final String name;
+
+        Stage(String name){
+            this.name=name;
+        }
+
+        abstract double round();
+    }
+
+    public static void main(String[] args){
+        final int historySize=args.length>0 ? Integer.parseInt(args[0]) : SpeedEstimators.REQUIRED_HISTORY_SIZE;
+
+        //a loop of FIXES seconds at SPEED_MS, the times go on across rounds
+        double radius=SPEED_MS*FIXES/(2*Math.PI);
+        double centerLat=59.9, centerLon=10.7;
+        for(int i=0; i<FIXES; i++){
+            double angle=2*Math.PI*i/FIXES;
+            fixes[i]=new Fix(centerLat + Math.toDegrees(radius*Math.sin(angle)/GeoDistance.EARTH_RADIUS_M),
+                    centerLon + Math.toDegrees(radius*Math.cos(angle)/(GeoDistance.EARTH_RADIUS_M*Math.cos(Math.toRadians(centerLat)))),
+                    1000000000000L + i*FIX_INTERVAL_MS, ACCURACY_M, (float) SPEED_MS, LocationHistory.PROVIDER_GPS);
+        }
+
+        Stage[] stages=new Stage[] {
+            new Stage("LinkedList add"){
+                final LinkedListHistory history=new LinkedListHistory(historySize);
+                @Override
+                double round(){
+                    for(int i=0; i<FIXES; i++){
+                        history.addLocation(fixes[i]);
+                    }
+                    return history.listLocation.size();
+                }
+            },
+            new Stage("ring buffer add"){
+                final LocationHistory history=new LocationHistory(historySize);
+                @Override
+                double round(){
+                    for(int i=0; i<FIXES; i++){
+                        add(history, fixes[i]);
+                    }
+                    return history.size();
+                }
+            },
+            new Stage("LinkedList getEstimatedSpeed"){
+                final LinkedListHistory history=new LinkedListHistory(historySize);
+                @Override
+                double round(){
+                    double sink=0;
+                    for(int i=0; i<FIXES; i++){
+                        history.addLocation(fixes[i]);
+                        sink+=history.getEstimatedSpeed();
+                    }
+                    return sink;
+                }
+            },
+            new Stage("ring buffer getEstimatedSpeed"){
+                final LocationHistory history=new LocationHistory(historySize);
+                @Override
+                double round(){
+                    double sink=0;
+                    for(int i=0; i<FIXES; i++){
+                        add(history, fixes[i]);
+                        sink+=history.getEstimatedSpeed();
+                    }
+                    return sink;
+                }
+            },
+            new Stage("LinkedList read all entries"){
+                final LinkedListHistory history=new LinkedListHistory(historySize);
+                @Override
+                double round(){
+                    double sink=0;
+                    for(int i=0; i<FIXES; i++){
+                        history.addLocation(fixes[i]);
+                        int size=history.listLocation.size();
+                        for(int j=0; j<size; j++){
+                            Fix location=history.listLocation.get(j);
+                            sink+=location.latitude + location.getTime();
+                        }
+                    }
+                    return sink;
+                }
+            },
+            new Stage("ring buffer read all entries"){
+                final LocationHistory history=new LocationHistory(historySize);
+                @Override
+                double round(){
+                    double sink=0;
+                    for(int i=0; i<FIXES; i++){
+                        add(history, fixes[i]);
+                        int size=history.size();
+                        for(int j=0; j<size; j++){
+                            sink+=history.getLatitude(j) + history.getTime(j);
+                        }
+                    }
+                    return sink;
+                }
+            },
+        };
+
+        //twice, the first round warms up the JIT
+        for(int warmup=0; warmup<2; warmup++){
+            if(warmup==1){
+                System.out.println("history of " + historySize + " fixes");
+                System.out.println(String.format("%-34s %10s %12s", "stage", "ns/fix", "bytes/fix"));
+            }
+            double sink=0;
+            for(Stage stage : stages){
+                long bytes=allocatedBytes();
+                long start=System.nanoTime();
+                for(int r=0; r<ROUNDS; r++){
+                    sink+=stage.round();
+                }
+                long nanos=System.nanoTime()-start;
+                bytes=allocatedBytes()-bytes;
+
+                if(warmup==1){
+                    double ops=(double) ROUNDS*FIXES;
+                    System.out.println(String.format("%-34s %10.1f %12s", stage.name, nanos/ops,
+                            threads==null ? "n/a" : String.format("%.1f", bytes/ops)));
+                }
+            }
+            if(warmup==1){
+                System.out.println("(checksum " + sink + ")");
+            }
+        }
+    }
+
+    private static void add(LocationHistory history, Fix fix){
+        history.addFix(fix.latitude, fix.longitude, fix.time, fix.accuracy, fix.speed, fix.provider);
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean(){
+        try{
+            java.lang.management.ThreadMXBean bean=ManagementFactory.getThreadMXBean();
+            if(bean instanceof com.sun.management.ThreadMXBean){
+                com.sun.management.ThreadMXBean threadBean=(com.sun.management.ThreadMXBean) bean;
+                if(threadBean.isThreadAllocatedMemorySupported()){
+                    threadBean.setThreadAllocatedMemoryEnabled(true);
+                    return threadBean;
+                }
+            }
+        }catch(LinkageError e){
+            //not a HotSpot JVM
+        }
+        return null;
+    }
+
+    /**
+     * @return bytes allocated by this thread so far, -1 if the JVM can not tell
+     */
+    private static long allocatedBytes(){
+        if(threads==null){
+            return -1;
+        }
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,109 @@
+package com.banasiak.android.btom.tools;
+
+import com.banasiak.android.btom.GeoDistance;
+import com.banasiak.android.btom.LocationHistory;
+import com.banasiak.android.btom.MotionController;
+import com.banasiak.android.btom.MotionSettings;
+import com.banasiak.android.btom.ProviderFusion;
+
+/**
+ * Checks that a network and a GPS fix of the same moment never both
+ * end up in the history, whichever of them arrives first.
+ *
+ * A MotionController is fed a 20 m/s drive of GPS fixes, 200 s apart
+ * so the GPS is older than the preference window when the network fix
+ * comes. The network fix is 300 m off, as network fixes are. The
+ * scenarios:
+ * - the network fix arrives 1 s before the GPS fix: it is held and
+ *   dropped, the speed does not jump
+ * - the network fix arrives 1 s after the GPS fix: it is a duplicate
+ * - no GPS fix follows: the network fix is processed when the dedupe
+ *   window has passed
+ *
+ * Runs on a plain JVM:
+ *   java com.banasiak.android.btom.tools.ProviderFusionCheck
+ * Exits with status 1 if a check fails.
+ */
+public class ProviderFusionCheck {
+    private final static double SPEED_MS=20;
+    private final static long GPS_INTERVAL_MS=200*1000L;
+    private final static float GPS_ACCURACY_M=10;
+    private final static float NETWORK_ACCURACY_M=300;
+    private final static double NETWORK_ERROR_M=300;
+    private final static double LAT=59.9, LON=10.7;
+
+    private static int failures=0;
+
+    public static void main(String[] args) {
+        //the network fix comes first
+        MotionController controller=drive();
+        long time=3*GPS_INTERVAL_MS;
+        controller.onLocation(LocationHistory.PROVIDER_NETWORK, latitudeAt(time, NETWORK_ERROR_M), LON, time-1000,
+                NETWORK_ACCURACY_M, Float.NaN, time-1000);
+        check("worse fix first is held", controller.getLastFixDetail()==ProviderFusion.HELD);
+        controller.onLocation(LocationHistory.PROVIDER_GPS, latitudeAt(time, 0), LON, time, GPS_ACCURACY_M, Float.NaN, time);
+        check("better fix is processed", controller.getLastFixResult()==MotionController.FIX_PROCESSED);
+        controller.onTick(time+ProviderFusion.DEFAULT_DEDUPE_WINDOW_MS);
+        LocationHistory history=controller.getLocationHistory();
+        check("only GPS fixes in the history", onlyGps(history));
+        check("speed does not jump", controller.getSpeed()<2*SPEED_MS);
+
+        //the network fix comes after
+        controller=drive();
+        controller.onLocation(LocationHistory.PROVIDER_GPS, latitudeAt(time, 0), LON, time, GPS_ACCURACY_M, Float.NaN, time);
+        controller.onLocation(LocationHistory.PROVIDER_NETWORK, latitudeAt(time, NETWORK_ERROR_M), LON, time+1000,
+                NETWORK_ACCURACY_M, Float.NaN, time+1000);
+        check("worse fix after is a duplicate", controller.getLastFixDetail()==ProviderFusion.DUPLICATE);
+        check("only GPS fixes in the history", onlyGps(controller.getLocationHistory()));
+
+        //no better fix comes
+        controller=drive();
+        controller.onLocation(LocationHistory.PROVIDER_NETWORK, latitudeAt(time, 0), LON, time,
+                NETWORK_ACCURACY_M, Float.NaN, time);
+        long deadline=controller.getNextDeadline();
+        check("held fix has a deadline", deadline==time+ProviderFusion.DEFAULT_DEDUPE_WINDOW_MS);
+        controller.onTick(deadline);
+        history=controller.getLocationHistory();
+        check("held fix is processed at the deadline", history.getProvider(0)==LocationHistory.PROVIDER_NETWORK
+                && history.getTime(0)==time);
+
+        if(failures>0){
+            System.out.println("FAILED: " + failures + " checks");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return a controller which has seen GPS fixes up to two intervals
+     */
+    private static MotionController drive() {
+        MotionController controller=new MotionController(new MotionSettings());
+        for(long time=0;time<3*GPS_INTERVAL_MS;time+=GPS_INTERVAL_MS){
+            controller.onLocation(LocationHistory.PROVIDER_GPS, latitudeAt(time, 0), LON, time, GPS_ACCURACY_M, Float.NaN, time);
+        }
+        return controller;
+    }
+
+    /**
+     * @return the latitude of the drive north at the time, moved error meters further
+     */
+    private static double latitudeAt(long time, double error) {
+        return LAT+Math.toDegrees((SPEED_MS*time/1000+error)/GeoDistance.EARTH_RADIUS_M);
+    }
+
+    private static boolean onlyGps(LocationHistory history) {
+        for(int i=0;i<history.size();i++){
+            if(history.getProvider(i)!=LocationHistory.PROVIDER_GPS){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void check(String name, boolean passed) {
+        System.out.println(String.format("%-40s %s", name, passed ? "ok" : "FAILED"));
+        if(!passed){
+            failures++;
+        }
+    }
+}
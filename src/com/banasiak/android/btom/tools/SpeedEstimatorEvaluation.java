@@ -0,0 +1,199 @@
+package com.banasiak.android.btom.tools;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.banasiak.android.btom.GeoDistance;
+import com.banasiak.android.btom.LocationHistory;
+import com.banasiak.android.btom.SpeedEstimator;
+import com.banasiak.android.btom.SpeedEstimators;
+
+/**
+ * Headless harness which runs every SpeedEstimator over labelled traces
+ * and reports the error against the ground truth speed, and how many
+ * fixes per second each estimator handles.
+ *
+ * Runs on a plain JVM, it does not need a device:
+ *   java com.banasiak.android.btom.tools.SpeedEstimatorEvaluation trace1.csv trace2.csv
+ * Without arguments a synthetic stop-and-go trace is generated.
+ *
+ * Trace format, one fix per line (lines starting with # are ignored):
+ *   time_ms,latitude,longitude,accuracy_m,true_speed_ms
+ * Use NaN for an unknown accuracy or ground truth.
+ */
+public class SpeedEstimatorEvaluation {
+    //minimum time spent measuring throughput of one estimator on one trace
+    private final static long MIN_TIMING_NANOS=200L*1000*1000;
+
+    /**
+     * A trace kept as parallel arrays, the same way as LocationHistory
+     */
+    static class Trace {
+        final String name;
+        int size;
+        long[] time=new long[1024];
+        double[] latitude=new double[1024];
+        double[] longitude=new double[1024];
+        float[] accuracy=new float[1024];
+        float[] trueSpeed=new float[1024];
+
+        Trace(String name){
+            this.name=name;
+        }
+
+        void add(long t, double lat, double lon, float acc, float speed){
+            if(size==time.length){
+                int capacity=size*2;
+                time=java.util.Arrays.copyOf(time, capacity);
+                latitude=java.util.Arrays.copyOf(latitude, capacity);
+                longitude=java.util.Arrays.copyOf(longitude, capacity);
+                accuracy=java.util.Arrays.copyOf(accuracy, capacity);
+                trueSpeed=java.util.Arrays.copyOf(trueSpeed, capacity);
+            }
+            time[size]=t;
+            latitude[size]=lat;
+            longitude[size]=lon;
+            accuracy[size]=acc;
+            trueSpeed[size]=speed;
+            size++;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Trace> traces=new ArrayList<Trace>();
+        for(String file : args){
+            traces.add(readTrace(file));
+        }
+        if(traces.isEmpty()){
+            traces.add(syntheticTrace(1000L, 3600, 10f, 1));
+            traces.add(syntheticTrace(60000L, 300, 300f, 2));
+            //the default sampling of the service, with GPS accuracy
+            traces.add(syntheticTrace(60000L, 300, 50f, 3));
+        }
+
+        System.out.println(String.format("%-16s %-24s %8s %10s %10s %14s",
+                "estimator", "trace", "fixes", "mae(m/s)", "rmse(m/s)", "fixes/second"));
+        for(String name : SpeedEstimators.NAMES){
+            for(Trace trace : traces){
+                evaluate(name, trace);
+            }
+        }
+    }
+
+    private static void evaluate(String estimatorName, Trace trace){
+        LocationHistory history=new LocationHistory(SpeedEstimators.REQUIRED_HISTORY_SIZE);
+        SpeedEstimator estimator=SpeedEstimators.create(estimatorName);
+
+        double sumAbs=0;
+        double sumSquare=0;
+        int labelled=0;
+        for(int i=0; i<trace.size; i++){
+            history.addFix(trace.latitude[i], trace.longitude[i], trace.time[i], trace.accuracy[i], Float.NaN, LocationHistory.PROVIDER_UNKNOWN);
+            estimator.onFixAdded(history);
+            if(!Float.isNaN(trace.trueSpeed[i])){
+                double error=estimator.getSpeed()-trace.trueSpeed[i];
+                sumAbs+=Math.abs(error);
+                sumSquare+=error*error;
+                labelled++;
+            }
+        }
+
+        //throughput, repeat the trace until we have measured long enough
+        long fixes=0;
+        long start=System.nanoTime();
+        long elapsed;
+        float sink=0;
+        do {
+            history.clear();
+            estimator.reset();
+            for(int i=0; i<trace.size; i++){
+                history.addFix(trace.latitude[i], trace.longitude[i], trace.time[i], trace.accuracy[i], Float.NaN, LocationHistory.PROVIDER_UNKNOWN);
+                estimator.onFixAdded(history);
+                sink+=estimator.getSpeed();
+            }
+            fixes+=trace.size;
+            elapsed=System.nanoTime()-start;
+        } while(elapsed<MIN_TIMING_NANOS);
+
+        System.out.println(String.format("%-16s %-24s %8d %10.3f %10.3f %14.0f%s",
+                estimatorName, trace.name, trace.size,
+                labelled==0 ? Double.NaN : sumAbs/labelled,
+                labelled==0 ? Double.NaN : Math.sqrt(sumSquare/labelled),
+                fixes*1e9/elapsed,
+                Float.isNaN(sink) ? " (NaN speed seen)" : ""));
+    }
+
+    static Trace readTrace(String file) throws IOException {
+        Trace trace=new Trace(file);
+        BufferedReader reader=new BufferedReader(new FileReader(file));
+        try{
+            String line;
+            int lineNumber=0;
+            while((line=reader.readLine())!=null){
+                lineNumber++;
+                line=line.trim();
+                if(line.length()==0 || line.startsWith("#")){
+                    continue;
+                }
+                String[] columns=line.split(",");
+                if(columns.length<5){
+                    throw new IOException(file + ":" + lineNumber + " expected 5 columns, got " + columns.length);
+                }
+                try{
+                    trace.add(Long.parseLong(columns[0].trim()),
+                            Double.parseDouble(columns[1].trim()),
+                            Double.parseDouble(columns[2].trim()),
+                            Float.parseFloat(columns[3].trim()),
+                            Float.parseFloat(columns[4].trim()));
+                }catch(NumberFormatException e){
+                    //allow a header line
+                    if(trace.size>0){
+                        throw new IOException(file + ":" + lineNumber + " " + e.getMessage());
+                    }
+                }
+            }
+        }finally{
+            reader.close();
+        }
+        return trace;
+    }
+
+    /**
+     * Stop-and-go drive along a straight line with gaussian position noise
+     *
+     * @param interval time between fixes in milliseconds
+     * @param accuracy std. deviation of the position noise in meters
+     */
+    static Trace syntheticTrace(long interval, int fixes, float accuracy, long seed){
+        Trace trace=new Trace("synthetic-" + (interval/1000) + "s-" + (int) accuracy + "m");
+        Random random=new Random(seed);
+        double metersPerDegLat=Math.toRadians(1)*GeoDistance.EARTH_RADIUS_M;
+        double lat0=59.91;
+        double lon0=10.75;
+        double metersPerDegLon=metersPerDegLat*Math.cos(Math.toRadians(lat0));
+
+        double position=0;
+        double speed=0;
+        double target=0;
+        for(int i=0; i<fixes; i++){
+            //pick a new target speed now and then: standing, city or highway
+            if(random.nextInt(60)==0){
+                int kind=random.nextInt(3);
+                target=kind==0 ? 0 : (kind==1 ? 12 : 28);
+            }
+            double seconds=interval/1000.0;
+            double maxChange=2.5*seconds;
+            speed+=Math.max(-maxChange, Math.min(maxChange, target-speed));
+            position+=speed*seconds;
+
+            double east=position + random.nextGaussian()*accuracy/Math.sqrt(2);
+            double north=random.nextGaussian()*accuracy/Math.sqrt(2);
+            trace.add(i*interval, lat0 + north/metersPerDegLat, lon0 + east/metersPerDegLon, accuracy, (float) speed);
+        }
+        return trace;
+    }
+}
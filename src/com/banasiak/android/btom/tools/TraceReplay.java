@@ -0,0 +1,363 @@
+package com.banasiak.android.btom.tools;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.banasiak.android.btom.LocationHistory;
+import com.banasiak.android.btom.MotionController;
+import com.banasiak.android.btom.MotionSettings;
+import com.banasiak.android.btom.MotionStateMachine;
+
+/**
+ * Replays a recorded GPX or CSV trace through the MotionController
+ * on a virtual clock, as fast as the CPU allows, and prints the
+ * timeline of bluetooth decisions.
+ *
+ * The trace is read one fix at a time, so traces of many hours do not
+ * need to fit in memory. The timeouts of the controller run at their
+ * deadline on the virtual clock, exactly as the service's Handler would.
+ *
+ *   java com.banasiak.android.btom.tools.TraceReplay [options] trace.gpx|trace.csv ...
+ * Options:
+ *   --estimator=NAME      speed estimator (see SpeedEstimators)
+ *   --enable-mph=N        speed required to enable
+ *   --disable-mph=N       speed below which we cool down
+ *   --timeout=SECONDS     stationary timeout
+ *   --quiet               only print the summary
+ *
+ * CSV traces have one fix per line. If the first line is a header the
+ * columns time (or time_ms), lat (or latitude), lon (or longitude),
+ * accuracy, speed and provider are picked by name, otherwise the order
+ * is time_ms,lat,lon,accuracy,speed,provider. Missing values are NaN.
+ * GPX traces use trkpt/rtept/wpt with time, and hdop and speed if present.
+ */
+public class TraceReplay {
+    //rough conversion from horizontal dilution of precision to meters
+    private final static float METERS_PER_HDOP=5f;
+    private final static Calendar UTC=Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+
+    /**
+     * Streams fixes from a trace file
+     */
+    abstract static class FixReader {
+        //the current fix
+        long fixTime;
+        double fixLat;
+        double fixLon;
+        float fixAccuracy;
+        float fixSpeed;
+        int fixProvider;
+
+        /**
+         * @return false at the end of the trace
+         */
+        abstract boolean next() throws IOException;
+        abstract void close() throws IOException;
+    }
+
+    static class CsvFixReader extends FixReader {
+        private final BufferedReader reader;
+        private int timeColumn=0, latColumn=1, lonColumn=2, accuracyColumn=3, speedColumn=4, providerColumn=5;
+        private boolean first=true;
+        private int lineNumber=0;
+        private final String file;
+
+        CsvFixReader(String file) throws IOException {
+            this.file=file;
+            reader=new BufferedReader(new FileReader(file));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            String line;
+            while((line=reader.readLine())!=null){
+                lineNumber++;
+                line=line.trim();
+                if(line.length()==0 || line.startsWith("#")){
+                    continue;
+                }
+                String[] columns=line.split(",");
+                if(first){
+                    first=false;
+                    if(!Character.isDigit(columns[0].trim().charAt(0))){
+                        readHeader(columns);
+                        continue;
+                    }
+                }
+                try {
+                    fixTime=Long.parseLong(columns[timeColumn].trim());
+                    fixLat=Double.parseDouble(columns[latColumn].trim());
+                    fixLon=Double.parseDouble(columns[lonColumn].trim());
+                    fixAccuracy=floatColumn(columns, accuracyColumn);
+                    fixSpeed=floatColumn(columns, speedColumn);
+                    fixProvider=providerColumn>=0 && providerColumn<columns.length
+                            ? LocationHistory.toProviderId(columns[providerColumn].trim()) : LocationHistory.PROVIDER_GPS;
+                }catch(RuntimeException e){
+                    throw new IOException(file+":"+lineNumber+" "+e);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private void readHeader(String[] columns){
+            timeColumn=latColumn=lonColumn=accuracyColumn=speedColumn=providerColumn=-1;
+            for(int i=0;i<columns.length;i++){
+                String name=columns[i].trim().toLowerCase();
+                if(name.equals("time") || name.equals("time_ms")){
+                    timeColumn=i;
+                }else if(name.equals("lat") || name.equals("latitude")){
+                    latColumn=i;
+                }else if(name.equals("lon") || name.equals("longitude")){
+                    lonColumn=i;
+                }else if(name.startsWith("accuracy")){
+                    accuracyColumn=i;
+                }else if(name.equals("speed")){
+                    speedColumn=i;
+                }else if(name.equals("provider")){
+                    providerColumn=i;
+                }
+            }
+        }
+
+        private static float floatColumn(String[] columns, int column){
+            if(column<0 || column>=columns.length || columns[column].trim().length()==0){
+                return Float.NaN;
+            }
+            return Float.parseFloat(columns[column].trim());
+        }
+
+        @Override
+        void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    static class GpxFixReader extends FixReader {
+        private final InputStream in;
+        private final XMLStreamReader xml;
+        private final Calendar calendar=Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+
+        GpxFixReader(String file) throws IOException {
+            in=new FileInputStream(file);
+            try {
+                xml=XMLInputFactory.newInstance().createXMLStreamReader(in);
+            }catch(XMLStreamException e){
+                in.close();
+                throw new IOException(file+": "+e.getMessage());
+            }
+        }
+
+        @Override
+        boolean next() throws IOException {
+            try {
+                boolean inPoint=false;
+                String element=null;
+                StringBuilder text=new StringBuilder();
+                while(xml.hasNext()){
+                    int event=xml.next();
+                    if(event==XMLStreamConstants.START_ELEMENT){
+                        String name=xml.getLocalName();
+                        if(name.equals("trkpt") || name.equals("rtept") || name.equals("wpt")){
+                            inPoint=true;
+                            fixLat=Double.parseDouble(xml.getAttributeValue(null, "lat"));
+                            fixLon=Double.parseDouble(xml.getAttributeValue(null, "lon"));
+                            fixTime=Long.MIN_VALUE;
+                            fixAccuracy=Float.NaN;
+                            fixSpeed=Float.NaN;
+                            fixProvider=LocationHistory.PROVIDER_GPS;
+                        }
+                        element=name;
+                        text.setLength(0);
+                    }else if(event==XMLStreamConstants.CHARACTERS && inPoint){
+                        text.append(xml.getText());
+                    }else if(event==XMLStreamConstants.END_ELEMENT && inPoint){
+                        String name=xml.getLocalName();
+                        String value=text.toString().trim();
+                        if(name.equals("time")){
+                            fixTime=parseTime(value);
+                        }else if(name.equals("hdop")){
+                            fixAccuracy=Float.parseFloat(value)*METERS_PER_HDOP;
+                        }else if(name.equals("speed")){
+                            fixSpeed=Float.parseFloat(value);
+                        }else if(name.equals("trkpt") || name.equals("rtept") || name.equals("wpt")){
+                            if(fixTime!=Long.MIN_VALUE){
+                                return true;
+                            }
+                            //points without time can not be replayed
+                            inPoint=false;
+                        }
+                        text.setLength(0);
+                    }
+                }
+                return false;
+            }catch(XMLStreamException e){
+                throw new IOException(e.getMessage());
+            }catch(NumberFormatException e){
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        /**
+         * Parse an ISO 8601 UTC time such as 2010-05-04T07:15:30.250Z
+         */
+        private long parseTime(String value){
+            calendar.clear();
+            calendar.set(Integer.parseInt(value.substring(0, 4)),
+                    Integer.parseInt(value.substring(5, 7))-1,
+                    Integer.parseInt(value.substring(8, 10)),
+                    Integer.parseInt(value.substring(11, 13)),
+                    Integer.parseInt(value.substring(14, 16)),
+                    Integer.parseInt(value.substring(17, 19)));
+            long millis=calendar.getTimeInMillis();
+            int i=19;
+            if(i<value.length() && value.charAt(i)=='.'){
+                int start=++i;
+                while(i<value.length() && Character.isDigit(value.charAt(i))){
+                    i++;
+                }
+                String fraction=(value.substring(start, i)+"000").substring(0, 3);
+                millis+=Integer.parseInt(fraction);
+            }
+            if(i<value.length() && (value.charAt(i)=='+' || value.charAt(i)=='-')){
+                int sign=value.charAt(i)=='+' ? 1 : -1;
+                int hours=Integer.parseInt(value.substring(i+1, i+3));
+                int minutes=Integer.parseInt(value.substring(i+4, i+6));
+                millis-=sign*(hours*60+minutes)*60000L;
+            }
+            return millis;
+        }
+
+        @Override
+        void close() throws IOException {
+            try {
+                xml.close();
+            }catch(XMLStreamException e){
+                //closing the stream below is what matters
+            }
+            in.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        MotionSettings settings=new MotionSettings();
+        boolean quiet=false;
+        int files=0;
+        for(String arg : args){
+            if(arg.startsWith("--estimator=")){
+                settings.speedEstimator=value(arg);
+            }else if(arg.startsWith("--enable-mph=")){
+                settings.minSpeedForChange=Float.parseFloat(value(arg))*MotionSettings.MPH;
+            }else if(arg.startsWith("--disable-mph=")){
+                settings.maxSpeedForDisable=Float.parseFloat(value(arg))*MotionSettings.MPH;
+            }else if(arg.startsWith("--timeout=")){
+                settings.stationaryTimeout=Long.parseLong(value(arg))*1000L;
+            }else if(arg.equals("--quiet")){
+                quiet=true;
+            }else {
+                files++;
+            }
+        }
+        if(files==0){
+            System.err.println("usage: TraceReplay [--estimator=NAME] [--enable-mph=N] [--disable-mph=N] [--timeout=SECONDS] [--quiet] trace ...");
+            System.exit(2);
+        }
+
+        for(String arg : args){
+            if(!arg.startsWith("--")){
+                replay(arg, settings, quiet);
+            }
+        }
+    }
+
+    private static String value(String arg){
+        return arg.substring(arg.indexOf('=')+1);
+    }
+
+    static void replay(String file, MotionSettings settings, boolean quiet) throws IOException {
+        FixReader reader = file.toLowerCase().endsWith(".gpx") ? new GpxFixReader(file) : new CsvFixReader(file);
+        MotionController controller=new MotionController(settings);
+
+        long fixes=0;
+        //a held fix is processed after the fix which delivered it
+        final long[] processed=new long[1];
+        controller.setFixListener(new MotionController.FixListener(){
+            @Override
+            public void onFixProcessed(int providerId, double lat, double lon, long timeMillis, float accuracy, int gateResult){
+                processed[0]++;
+            }
+        });
+        //enables and disables
+        long[] decisions=new long[2];
+        long firstTime=Long.MIN_VALUE;
+        long lastTime=0;
+        long start=System.nanoTime();
+        try {
+            while(reader.next()){
+                if(firstTime==Long.MIN_VALUE){
+                    firstTime=reader.fixTime;
+                }
+                //run the timeouts which are due before this fix
+                runTimeouts(controller, reader.fixTime, decisions, quiet);
+
+                //the virtual clock is the time of the fix
+                int decision=controller.onLocation(reader.fixProvider, reader.fixLat, reader.fixLon, reader.fixTime, reader.fixAccuracy, reader.fixSpeed, reader.fixTime);
+                fixes++;
+                count(reader.fixTime, decision, controller, decisions, quiet);
+                lastTime=reader.fixTime;
+            }
+            //the service keeps running after the last fix, e.g. parked where no fixes come
+            runTimeouts(controller, Long.MAX_VALUE, decisions, quiet);
+        }finally {
+            reader.close();
+        }
+        long elapsed=System.nanoTime()-start;
+
+        double traceSeconds = fixes==0 ? 0 : (lastTime-firstTime)/1000.0;
+        System.out.println(String.format("%s: %d fixes (%d processed, %d rejected), %d enables, %d disables",
+                file, fixes, processed[0], controller.getFixGate().getRejectedCount(), decisions[0], decisions[1]));
+        System.out.println(String.format("  %.1f hours of trace replayed in %.1f ms: %.0f fixes/second, %.0fx real time",
+                traceSeconds/3600, elapsed/1e6, fixes*1e9/elapsed, traceSeconds*1e9/elapsed));
+    }
+
+    /**
+     * Run the timeouts of the controller which are due up to the given time
+     */
+    private static void runTimeouts(MotionController controller, long until, long[] decisions, boolean quiet){
+        long deadline=controller.getNextDeadline();
+        while(deadline>=0 && deadline<=until){
+            count(deadline, controller.onTick(deadline), controller, decisions, quiet);
+            long next=controller.getNextDeadline();
+            deadline = next==deadline ? -1 : next;
+        }
+    }
+
+    private static void count(long time, int decision, MotionController controller, long[] decisions, boolean quiet){
+        if(decision==MotionController.DECISION_NONE){
+            return;
+        }
+        decisions[decision==MotionController.DECISION_ENABLE ? 0 : 1]++;
+        if(!quiet){
+            print(time, decision, controller);
+        }
+    }
+
+    private static void print(long time, int decision, MotionController controller){
+        UTC.setTimeInMillis(time);
+        System.out.println(String.format("%tFT%<tTZ %-7s %-18s state=%-10s speed=%.1f km/h",
+                UTC, MotionController.decisionName(decision),
+                MotionController.reasonName(controller.getDecisionReason()),
+                MotionStateMachine.stateName(controller.getMotionState()),
+                controller.getSpeed()*3.6f));
+    }
+}